@@ -2,6 +2,7 @@ package mps.client;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -9,11 +10,15 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.Random;
 import java.util.logging.Logger;
 
 import mps.config.Config;
 import mps.config.ConfigFile;
+import mps.request.BodyCompressor;
+import mps.request.Protocol;
 import mps.request.Request;
 import mps.request.Response;
 import mps.statistics.StatisticsFormatter;
@@ -45,6 +50,25 @@ public class Client implements Runnable {
 	// Data output stream to which primitive data will be written to the socket 
 	private DataOutputStream out;
 	
+	// Reusable buffer in which a request is serialized before its length is known
+	private ByteArrayOutputStream frameBuffer;
+	
+	// Data output stream to which primitive data will be written to the frame buffer
+	private DataOutputStream frameOut;
+	
+	// Protocol version negotiated with the middleware
+	private int protocolVersion;
+	
+	// Capabilities accepted by the middleware
+	private int capabilities;
+	
+	// Compresses large message bodies if the middleware accepted compression
+	private BodyCompressor compressor;
+	
+	// Pushed messages which arrived while waiting for a response and vice versa
+	private ArrayDeque<Response> pushedMessages = new ArrayDeque<Response>();
+	private ArrayDeque<Response> pendingResponses = new ArrayDeque<Response>();
+	
 	// STATS
 	// Current number of the messages sent
 	private int numRequestsSent;
@@ -162,6 +186,27 @@ public class Client implements Runnable {
 		 */
 		BufferedOutputStream bos = new BufferedOutputStream(this.clientSocket.getOutputStream());
 		out = new DataOutputStream(bos);
+		
+		// Each request is prefixed with its length. Serialize it to the frame buffer first
+		frameBuffer = new ByteArrayOutputStream();
+		frameOut = new DataOutputStream(frameBuffer);
+		
+		// Negotiate the protocol version. Version 1 needs no handshake
+		this.protocolVersion = Protocol.VERSION_1;
+		this.capabilities = 0;
+		
+		if (config.protocolVersion >= Protocol.VERSION_2) {
+			
+			out.writeByte(Protocol.VERSION_2);
+			out.writeByte(config.compression ? Protocol.CAP_COMPRESSION : 0);
+			out.flush();
+			
+			// The middleware replies with the version and the capabilities it accepted
+			this.protocolVersion = in.readUnsignedByte();
+			this.capabilities = in.readUnsignedByte();
+		}
+		
+		this.compressor = new BodyCompressor();
 	}
 	
 	/**
@@ -182,6 +227,12 @@ public class Client implements Runnable {
 			
 			System.out.println("Client: " + this.clientId + " succesfully disconnected");	
 			
+			// STATS
+			if ((this.capabilities & Protocol.CAP_COMPRESSION) != 0 && statisticsLog != null) {
+				statisticsLog.info("compression client=" + this.clientId + " " + this.compressor.formatStatistics());
+			}
+			// STATS END
+			
 		} catch (IOException e) {
 			
 			System.out.println(e);
@@ -344,34 +395,203 @@ public class Client implements Runnable {
 		 * IMPORTANT: Based on the type of request the message body is sent as well
 		 */
 		
+		// Reuse the frame buffer for every request
+		frameBuffer.reset();
+		
+		if (this.protocolVersion >= Protocol.VERSION_2) {
+			writeVersion2(request);
+			return;
+		}
+		
 		// Write unique (client-wide) request id for statistics
-		out.writeInt(request.requestId);
+		frameOut.writeInt(request.requestId);
 		
 		// Write request type
-		out.writeInt(request.type);
+		frameOut.writeInt(request.type);
 		
 		// Write sender id
-		out.writeInt(request.senderId);
+		frameOut.writeInt(request.senderId);
 		
 		// Write receiver id
-		out.writeInt(request.receiverId);
+		frameOut.writeInt(request.receiverId);
 		
 		// Write queue id
-		out.writeInt(request.queueId);
+		frameOut.writeInt(request.queueId);
 		
 		// Check if MSG_SEND_REQ (message send request)
 		if (request.type == 0) {
-			out.writeUTF(request.message);
+			frameOut.writeUTF(request.message);
+		}
+		
+		// Batch requests append their items
+		if (request.type == 8) {
+			
+			frameOut.writeInt(request.batchMessages.length);
+			
+			for (int i = 0; i < request.batchMessages.length; ++i) {
+				
+				frameOut.writeInt(request.batchReceiverIds[i]);
+				frameOut.writeInt(request.batchQueueIds[i]);
+				frameOut.writeUTF(request.batchMessages[i]);
+			}
+			
+		} else if (request.type == 9) {
+			
+			frameOut.writeInt(request.maxMessages);
+		}
+		
+		// Receive requests from a queue may end with a wait timeout
+		if (request.waitTimeout > 0 && (request.type == 3 || request.type == 4 || request.type == 9)) {
+			frameOut.writeInt(request.waitTimeout);
+		}
+		
+		// SUBSCRIBE_REQ and CREDIT_REQ carry credits
+		if (request.type == 10 || request.type == 11) {
+			frameOut.writeInt(request.credits);
 		}
+		
+		// Write length prefix followed by the request itself
+		out.writeInt(frameBuffer.size());
+		frameBuffer.writeTo(out);
 				
 		// Flush written data to the stream
 		out.flush();
 
 	}
 	
-	// Read data from the socket input reader
+	// Protocol version 2: varint header fields and raw UTF-8 body
+	private void writeVersion2(Request request) throws IOException {
+		
+		byte[] body = null;
+		byte[] compressedBody = null;
+		
+		// Check if MSG_SEND_REQ (message send request)
+		if (request.type == 0) {
+			
+			body = request.message.getBytes(StandardCharsets.UTF_8);
+			
+			// Large bodies are compressed if the middleware accepted compression
+			if ((this.capabilities & Protocol.CAP_COMPRESSION) != 0 && body.length >= config.compressionThreshold) {
+				compressedBody = this.compressor.compress(body);
+			}
+		}
+		
+		int flags = compressedBody != null ? request.flags | Protocol.FLAG_COMPRESSED : request.flags & ~Protocol.FLAG_COMPRESSED;
+		
+		// Receive requests from a queue may end with a wait timeout
+		boolean longPoll = request.waitTimeout > 0 && (request.type == 3 || request.type == 4 || request.type == 9);
+		
+		flags = longPoll ? flags | Protocol.FLAG_LONG_POLL : flags & ~Protocol.FLAG_LONG_POLL;
+		
+		Protocol.writeVarint(frameOut, flags);
+		Protocol.writeVarint(frameOut, request.requestId);
+		Protocol.writeVarint(frameOut, request.type);
+		
+		// Ids may be -1
+		Protocol.writeVarint(frameOut, Protocol.zigzag(request.senderId));
+		Protocol.writeVarint(frameOut, Protocol.zigzag(request.receiverId));
+		Protocol.writeVarint(frameOut, Protocol.zigzag(request.queueId));
+		
+		if (compressedBody != null) {
+			
+			// A compressed body is preceded by its length after decompression
+			Protocol.writeVarint(frameOut, body.length);
+			Protocol.writeVarint(frameOut, compressedBody.length);
+			frameOut.write(compressedBody);
+			
+		} else if (body != null) {
+			
+			Protocol.writeVarint(frameOut, body.length);
+			frameOut.write(body);
+		}
+		
+		// Batch requests append their items. Batch bodies are not compressed
+		if (request.type == 8) {
+			
+			Protocol.writeVarint(frameOut, request.batchMessages.length);
+			
+			for (int i = 0; i < request.batchMessages.length; ++i) {
+				
+				byte[] batchBody = request.batchMessages[i].getBytes(StandardCharsets.UTF_8);
+				
+				Protocol.writeVarint(frameOut, Protocol.zigzag(request.batchReceiverIds[i]));
+				Protocol.writeVarint(frameOut, Protocol.zigzag(request.batchQueueIds[i]));
+				Protocol.writeVarint(frameOut, batchBody.length);
+				frameOut.write(batchBody);
+			}
+			
+		} else if (request.type == 9) {
+			
+			Protocol.writeVarint(frameOut, request.maxMessages);
+		}
+		
+		// SUBSCRIBE_REQ and CREDIT_REQ carry credits
+		if (request.type == 10 || request.type == 11) {
+			Protocol.writeVarint(frameOut, request.credits);
+		}
+		
+		if (longPoll) {
+			Protocol.writeVarint(frameOut, request.waitTimeout);
+		}
+		
+		// Write varint length prefix followed by the request itself
+		Protocol.writeVarint(out, frameBuffer.size());
+		frameBuffer.writeTo(out);
+		
+		// Flush written data to the stream
+		out.flush();
+	}
+	
+	/**
+	 * Read the next response. Messages pushed in the meantime are kept for receivePushedMessage()
+	 * @return Response
+	 * @throws IOException
+	 */
 	public Response read() throws IOException {
 		
+		if (!this.pendingResponses.isEmpty()) {
+			return this.pendingResponses.poll();
+		}
+		
+		while (true) {
+			
+			Response rsp = readFrame();
+			
+			if (rsp.requestType != 12) {
+				return rsp;
+			}
+			
+			this.pushedMessages.add(rsp);
+		}
+	}
+	
+	/**
+	 * Wait for the next message pushed to one of the subscriptions of this client.
+	 * Responses read in the meantime are kept for read()
+	 * @return pushed message, its requestId is the one of the SUBSCRIBE_REQ
+	 * @throws IOException
+	 */
+	public Response receivePushedMessage() throws IOException {
+		
+		if (!this.pushedMessages.isEmpty()) {
+			return this.pushedMessages.poll();
+		}
+		
+		while (true) {
+			
+			Response rsp = readFrame();
+			
+			if (rsp.requestType == 12) {
+				return rsp;
+			}
+			
+			this.pendingResponses.add(rsp);
+		}
+	}
+	
+	// Read data from the socket input reader
+	private Response readFrame() throws IOException {
+		
 		// Initialize new Response object
 		Response rsp = new Response();
 		
@@ -380,11 +600,74 @@ public class Client implements Runnable {
 		 * Read all fields of the Response object to the socket
 		 * IMPORTANT: Based on the type of Response the retrieved message body is sent as well
 		 */
+		if (this.protocolVersion >= Protocol.VERSION_2) {
+			
+			// Every response is prefixed with its length. The fields itself are self-delimiting
+			Protocol.readVarint(in);
+			
+			rsp.flags = Protocol.readVarint(in);
+			rsp.errorType = Protocol.readVarint(in);
+			rsp.requestId = Protocol.readVarint(in);
+			rsp.requestType = Protocol.readVarint(in);
+			rsp.messageId = Protocol.unzigzag(Protocol.readVarint(in));
+			
+			// A compressed body is preceded by its length after decompression
+			int originalLength = (rsp.flags & Protocol.FLAG_COMPRESSED) != 0 ? Protocol.readVarint(in) : -1;
+			
+			byte[] body = new byte[Protocol.readVarint(in)];
+			in.readFully(body);
+			
+			if (originalLength >= 0) {
+				rsp.retrievedMessage = this.compressor.decompress(body, originalLength);
+			} else {
+				rsp.retrievedMessage = new String(body, StandardCharsets.UTF_8);
+			}
+			
+			// Batch responses append the ids and bodies of the messages
+			if (rsp.requestType == 8 || rsp.requestType == 9) {
+				
+				int count = Protocol.readVarint(in);
+				
+				rsp.batchMessageIds = new int[count];
+				rsp.batchMessages = new String[count];
+				
+				for (int i = 0; i < count; ++i) {
+					
+					rsp.batchMessageIds[i] = Protocol.unzigzag(Protocol.readVarint(in));
+					
+					byte[] batchBody = new byte[Protocol.readVarint(in)];
+					in.readFully(batchBody);
+					
+					rsp.batchMessages[i] = new String(batchBody, StandardCharsets.UTF_8);
+				}
+			}
+			
+			return rsp;
+		}
+		
+		// Every response is prefixed with its length. The fields itself are self-delimiting
+		in.readInt();
+		
 		rsp.errorType = in.readInt();
 		rsp.requestId = in.readInt();
 		rsp.requestType = in.readInt();
 		rsp.messageId = in.readInt();
 		rsp.retrievedMessage = in.readUTF();				
+		
+		// Batch responses append the ids and bodies of the messages
+		if (rsp.requestType == 8 || rsp.requestType == 9) {
+			
+			int count = in.readInt();
+			
+			rsp.batchMessageIds = new int[count];
+			rsp.batchMessages = new String[count];
+			
+			for (int i = 0; i < count; ++i) {
+				
+				rsp.batchMessageIds[i] = in.readInt();
+				rsp.batchMessages[i] = in.readUTF();
+			}
+		}
 
 		// Return new response object
 		return rsp;
@@ -456,6 +739,24 @@ public class Client implements Runnable {
 				
 				break;
 				
+			case 4: // BUSY_ERROR
+				
+				// The middleware is overloaded and did not process the request
+				if (config.DEBUG) {
+					System.out.println("Client: " + this.clientId + " gets response to request: " + rsp.requestId + ", request type: " + rsp.requestType + " with 'Busy error'");
+				}
+				
+				break;
+				
+			case 5: // MESSAGE_TOO_LONG_ERROR
+				
+				// Protocol version 1 cannot decode the message, it stays in the queue
+				if (config.DEBUG) {
+					System.out.println("Client: " + this.clientId + " gets response to request: " + rsp.requestId + ", request type: " + rsp.requestType + " with 'Message too long error'");
+				}
+				
+				break;
+				
 			default: // Default. Should not happen
 				
 				if (config.DEBUG) {
@@ -559,6 +860,9 @@ public class Client implements Runnable {
 		req.receiverId = receiverId;
 		req.queueId = queueId;
 		req.message = "";
+		
+		// Only receive requests from a queue wait for a message
+		req.waitTimeout = config.receiveWaitTimeout;
 
 	}
 	
@@ -848,6 +1152,127 @@ public class Client implements Runnable {
 		sendRequest(req);
 	}
 	
+	/**
+	 * Receive a message from a queue and delete it. If the queue is empty the
+	 * middleware waits up to waitTimeout milliseconds for a message
+	 * @param queueId
+	 * @param waitTimeout
+	 */
+	public void receiveMessageFromQueueWithDelete(int queueId, int waitTimeout) {
+		
+		// Create a new request and assign all fields
+		Request req = new Request();
+		
+		// Default configuration of request
+		configureDefaultRequest(req);
+		
+		// Define request type
+		req.type = 4; // QUEUE_READ_WITH_REMOVE_REQ
+		
+		req.queueId = queueId;
+		req.waitTimeout = waitTimeout;
+	
+		// Send request to the output stream
+		sendRequest(req);
+	}
+	
+	/**
+	 * Subscribe to a queue. The middleware pushes the messages of the queue
+	 * without receiver and the messages for receiverId, up to the number of credits
+	 * @param queueId
+	 * @param receiverId - -1 for the messages of this client
+	 * @param credits - number of messages which may be pushed before new credits are granted
+	 */
+	public void subscribe(int queueId, int receiverId, int credits) {
+		
+		// Create a new request and assign all fields
+		Request req = new Request();
+		
+		// Default configuration of request
+		configureDefaultRequest(req);
+		
+		// Define request type
+		req.type = 10; // SUBSCRIBE_REQ
+		
+		req.queueId = queueId;
+		req.receiverId = receiverId;
+		req.credits = credits;
+	
+		// Send request to the output stream
+		sendRequest(req);
+	}
+	
+	/**
+	 * Allow the middleware to push more messages of a subscribed queue. Not answered
+	 * @param queueId
+	 * @param credits
+	 */
+	public void grantCredits(int queueId, int credits) {
+		
+		// Create a new request and assign all fields
+		Request req = new Request();
+		
+		// Default configuration of request
+		configureDefaultRequest(req);
+		
+		// Define request type
+		req.type = 11; // CREDIT_REQ
+		
+		req.queueId = queueId;
+		req.credits = credits;
+	
+		// Send request to the output stream
+		sendRequest(req);
+	}
+	
+	/**
+	 * Sends several messages in one request
+	 * @param messages
+	 * @param receiverIds - -1 for no specific receiver
+	 * @param queueIds
+	 */
+	public void sendMessages(String[] messages, int[] receiverIds, int[] queueIds) {
+		
+		// Create a new request and assign all fields
+		Request req = new Request();
+		
+		// Default configuration of request
+		configureDefaultRequest(req);
+		
+		// Define request type
+		req.type = 8; // MSG_SEND_BATCH_REQ
+		
+		req.batchMessages = messages;
+		req.batchReceiverIds = receiverIds;
+		req.batchQueueIds = queueIds;
+	
+		// Send request to the output stream
+		sendRequest(req);
+	}
+	
+	/**
+	 * Receive and delete up to maxMessages messages from a queue in one request
+	 * @param queueId
+	 * @param maxMessages
+	 */
+	public void receiveMessagesFromQueueWithDelete(int queueId, int maxMessages) {
+		
+		// Create a new request and assign all fields
+		Request req = new Request();
+		
+		// Default configuration of request
+		configureDefaultRequest(req);
+		
+		// Define request type
+		req.type = 9; // QUEUE_READ_WITH_REMOVE_BATCH_REQ
+		
+		req.queueId = queueId;
+		req.maxMessages = maxMessages;
+	
+		// Send request to the output stream
+		sendRequest(req);
+	}
+	
 	public void queryForQueue(int receiverId) {
 		
 		// Create a new request and assign all fields
@@ -32,6 +32,10 @@ public class Config {
 	public int numOfRequestsPerSecond = 2;
 	public int totalNumberOfRequestsToSend = 10;
 	public int messageSize = 200;
+	public int protocolVersion = 2; // Wire protocol version 1 or 2, negotiated with the middleware
+	public boolean compression = true; // Protocol version 2: compress large message bodies if the middleware agrees
+	public int compressionThreshold = 1024; // Bodies of at least this many bytes are compressed
+	public int receiveWaitTimeout = 0; // Milliseconds the middleware waits for a message if the queue is empty, 0 answers at once
 	
 	/*
 	 * MIDDLEWARE
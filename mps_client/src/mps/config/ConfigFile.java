@@ -42,6 +42,10 @@ public class ConfigFile {
 		config.totalNumberOfRequestsToSend = Integer.parseInt(prop.getProperty("totalNumberOfRequests"));
 		config.numOfRequestsPerSecond = Integer.parseInt(prop.getProperty("requestsPerSecond"));
 		config.messageSize = Integer.parseInt(prop.getProperty("messageSize"));
+		config.protocolVersion = Integer.parseInt(prop.getProperty("protocolVersion", String.valueOf(config.protocolVersion)));
+		config.compression = Boolean.parseBoolean(prop.getProperty("compression", String.valueOf(config.compression)));
+		config.compressionThreshold = Integer.parseInt(prop.getProperty("compressionThreshold", String.valueOf(config.compressionThreshold)));
+		config.receiveWaitTimeout = Integer.parseInt(prop.getProperty("receiveWaitTimeout", String.valueOf(config.receiveWaitTimeout)));
 		
 		config.numberOfInstances = Integer.parseInt(prop.getProperty("numberOfInstances"));
 		config.numberOfThreadsInThreadPool = Integer.parseInt(prop.getProperty("numberOfThreadsInPool"));
@@ -57,6 +61,10 @@ public class ConfigFile {
 		System.out.println(config.numOfRequestsPerSecond);
 		System.out.println(config.totalNumberOfRequestsToSend);
 		System.out.println(config.messageSize);
+		System.out.println(config.protocolVersion);
+		System.out.println(config.compression);
+		System.out.println(config.compressionThreshold);
+		System.out.println(config.receiveWaitTimeout);
 		System.out.println(config.numberOfInstances);
 		System.out.println(config.numberOfThreadsInThreadPool);
 		System.out.println(config.maxPooledConnections);
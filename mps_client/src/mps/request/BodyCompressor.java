@@ -0,0 +1,150 @@
+package mps.request;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Compresses and decompresses message bodies of protocol version 2 frames
+ * which carry FLAG_COMPRESSED. Raw deflate with BEST_SPEED is used as fast codec.
+ * Every Client owns its own BodyCompressor, it is not thread safe.
+ *
+ */
+
+public class BodyCompressor {
+	
+	private Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+	private Inflater inflater = new Inflater(true);
+	
+	/*
+	 * STATS
+	 */
+	private long compressedBodies = 0;
+	private long uncompressibleBodies = 0;
+	private long bytesBeforeCompression = 0;
+	private long bytesAfterCompression = 0;
+	private long compressionTime = 0; // In nanoseconds
+	
+	private long decompressedBodies = 0;
+	private long decompressionTime = 0; // In nanoseconds
+	/*
+	 * STATS END
+	 */
+	
+	/**
+	 * Compress a message body
+	 * @param body - message in UTF-8
+	 * @return compressed body or null if compression does not make the body smaller
+	 */
+	public byte[] compress(byte[] body) {
+		
+		long start = System.nanoTime();
+		
+		this.deflater.reset();
+		this.deflater.setInput(body);
+		this.deflater.finish();
+		
+		// Compressed bodies must be smaller than the original
+		byte[] output = new byte[body.length];
+		int length = 0;
+		
+		while (!this.deflater.finished() && length < output.length) {
+			length += this.deflater.deflate(output, length, output.length - length);
+		}
+		
+		// STATS
+		this.compressionTime += System.nanoTime() - start;
+		// STATS END
+		
+		if (!this.deflater.finished() || length >= body.length) {
+			
+			this.uncompressibleBodies += 1;
+			return null;
+		}
+		
+		// STATS
+		this.compressedBodies += 1;
+		this.bytesBeforeCompression += body.length;
+		this.bytesAfterCompression += length;
+		// STATS END
+		
+		byte[] compressed = new byte[length];
+		System.arraycopy(output, 0, compressed, 0, length);
+		
+		return compressed;
+	}
+	
+	/**
+	 * Decompress a message body
+	 * @param data - compressed body
+	 * @param originalLength - number of bytes in UTF-8 after decompression
+	 * @return message
+	 * @throws IOException if the body is corrupted
+	 */
+	public String decompress(byte[] data, int originalLength) throws IOException {
+		
+		long start = System.nanoTime();
+		
+		this.inflater.reset();
+		this.inflater.setInput(data);
+		
+		byte[] output = new byte[originalLength];
+		int inflated = 0;
+		
+		try {
+			
+			while (inflated < originalLength) {
+				
+				int n = this.inflater.inflate(output, inflated, originalLength - inflated);
+				
+				if (n == 0 && (this.inflater.finished() || this.inflater.needsInput() || this.inflater.needsDictionary())) {
+					break;
+				}
+				
+				inflated += n;
+			}
+			
+		} catch (DataFormatException e) {
+			
+			throw new IOException("Corrupted compressed body", e);
+		}
+		
+		if (inflated != originalLength) {
+			throw new IOException("Compressed body has " + inflated + " bytes instead of " + originalLength);
+		}
+		
+		// STATS
+		this.decompressionTime += System.nanoTime() - start;
+		this.decompressedBodies += 1;
+		// STATS END
+		
+		return new String(output, StandardCharsets.UTF_8);
+	}
+	
+	// STATS
+	public String formatStatistics() {
+		
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("compressed=");
+		sb.append(this.compressedBodies);
+		sb.append(" uncompressible=");
+		sb.append(this.uncompressibleBodies);
+		sb.append(" ratio=");
+		sb.append(String.format("%.3f", this.bytesBeforeCompression > 0 ? (double) this.bytesAfterCompression / this.bytesBeforeCompression : 1.0));
+		sb.append(" compress_us=");
+		sb.append(String.format("%.1f", this.compressionTime / 1000.0 / Math.max(1, this.compressedBodies + this.uncompressibleBodies)));
+		sb.append(" decompressed=");
+		sb.append(this.decompressedBodies);
+		sb.append(" decompress_us=");
+		sb.append(String.format("%.1f", this.decompressionTime / 1000.0 / Math.max(1, this.decompressedBodies)));
+		
+		return sb.toString();
+	}
+	// STATS END
+	
+}
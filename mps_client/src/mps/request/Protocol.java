@@ -0,0 +1,80 @@
+package mps.request;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Constants and varint helpers of the client/middleware wire protocol.
+ * Version 1 frames are prefixed by a 4 byte length and contain fixed 4 byte ints and a writeUTF body.
+ * Version 2 is negotiated with a handshake [VERSION_2][capabilities] when the connection is opened.
+ * Version 2 frames are prefixed by a varint length and contain a flags field, varint header fields
+ * and a raw UTF-8 body with a varint length. Fields which may be negative (ids of -1) are zigzag encoded.
+ *
+ */
+
+public class Protocol {
+	
+	public static final int VERSION_1 = 1;
+	public static final int VERSION_2 = 2;
+	
+	// Capability: message bodies above a threshold may be compressed in both directions
+	public static final int CAP_COMPRESSION = 0x01;
+	
+	// Flag: the message body is compressed with raw deflate
+	public static final int FLAG_COMPRESSED = 0x01;
+	
+	// Flag: a receive request is followed by a wait timeout in milliseconds
+	public static final int FLAG_LONG_POLL = 0x02;
+	
+	/**
+	 * Write an int as unsigned varint. Negative values take 5 bytes, use zigzag for them
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	public static void writeVarint(DataOutput out, int value) throws IOException {
+		
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		
+		out.writeByte(value);
+	}
+	
+	/**
+	 * Read an unsigned varint
+	 * @param in
+	 * @return value
+	 * @throws IOException if the varint is malformed
+	 */
+	public static int readVarint(DataInput in) throws IOException {
+		
+		int value = 0;
+		
+		for (int shift = 0; shift < 35; shift += 7) {
+			
+			int b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		
+		throw new IOException("Malformed varint");
+	}
+	
+	// Map signed ints to unsigned ones so small negative values stay short: 0, -1, 1, -2, ...
+	public static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+	
+	public static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+}
@@ -11,7 +11,8 @@ public class Request {
 	
 	/*
 	 * Type of possible requests: MSG_SEND_REQ = 0, MSG_REC_REQ = 1, MSG_QUERY_REQ = 2, QUEUE_READ_REQ = 3, 
-	 * QUEUE_READ_WITH_REMOVE_REQ = 4, QUEUE_QUERY_REQ = 5, QUEUE_CREATE_REQ = 6, QUEUE_DEL_REQ = 7
+	 * QUEUE_READ_WITH_REMOVE_REQ = 4, QUEUE_QUERY_REQ = 5, QUEUE_CREATE_REQ = 6, QUEUE_DEL_REQ = 7,
+	 * MSG_SEND_BATCH_REQ = 8, QUEUE_READ_WITH_REMOVE_BATCH_REQ = 9, SUBSCRIBE_REQ = 10, CREDIT_REQ = 11
 	 */
 	public int type;
 	
@@ -26,4 +27,21 @@ public class Request {
 	
 	// Message body
 	public String message;
+	
+	// Protocol version 2 only: flags of the request
+	public int flags = 0;
+	
+	// MSG_SEND_BATCH_REQ only: receiver, queue and body of every message
+	public int[] batchReceiverIds;
+	public int[] batchQueueIds;
+	public String[] batchMessages;
+	
+	// QUEUE_READ_WITH_REMOVE_BATCH_REQ only: maximum number of messages to retrieve
+	public int maxMessages;
+	
+	// Receive requests from a queue only: milliseconds the middleware waits for a message if the queue is empty
+	public int waitTimeout = 0;
+	
+	// SUBSCRIBE_REQ and CREDIT_REQ only: number of messages the middleware may push
+	public int credits;
 }
\ No newline at end of file
@@ -3,7 +3,8 @@ package mps.request;
 public class Response {
 
 	/*
-	 * Type of possible errors: NO_ERROR = 0, SQL_EXECUTION_ERROR = 1, RECORD_NOT_FOUND_ERROR = 2, PSQL_EXCEPTION_ERROR = 3
+	 * Type of possible errors: NO_ERROR = 0, SQL_EXECUTION_ERROR = 1, RECORD_NOT_FOUND_ERROR = 2, PSQL_EXCEPTION_ERROR = 3, BUSY_ERROR = 4,
+	 * MESSAGE_TOO_LONG_ERROR = 5: the message cannot be encoded in protocol version 1, it stays in the queue
 	 */
 	public int errorType = 0;
 	
@@ -16,7 +17,9 @@ public class Response {
 	
 	/*
 	 * Type of possible requests: MSG_SEND_REQ = 0, MSG_REC_REQ = 1, MSG_QUERY_REQ = 2, QUEUE_READ_REQ = 3, 
-	 * QUEUE_READ_WITH_REMOVE_REQ = 4, QUEUE_QUERY_REQ = 5, QUEUE_CREATE_REQ = 6, QUEUE_DEL_REQ = 7
+	 * QUEUE_READ_WITH_REMOVE_REQ = 4, QUEUE_QUERY_REQ = 5, QUEUE_CREATE_REQ = 6, QUEUE_DEL_REQ = 7,
+	 * MSG_SEND_BATCH_REQ = 8, QUEUE_READ_WITH_REMOVE_BATCH_REQ = 9, SUBSCRIBE_REQ = 10, CREDIT_REQ = 11.
+	 * Messages pushed to a subscription have type MSG_PUSH = 12 and the request id of the SUBSCRIBE_REQ
 	 */
 	public int requestType;
 	
@@ -25,4 +28,11 @@ public class Response {
 	
 	// Message body
 	public String retrievedMessage;
+	
+	// Protocol version 2 only: flags of the response
+	public int flags = 0;
+	
+	// Batch requests only: ids and bodies of the inserted or retrieved messages
+	public int[] batchMessageIds;
+	public String[] batchMessages;
 }
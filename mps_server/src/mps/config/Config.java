@@ -18,6 +18,7 @@ public class Config {
 	 * STATS
 	 */
 	public static Logger statisticsLog = null;
+	public int statisticsIntervalSeconds = 10; // Interval of the component counters in the log
 	
 	/**
 	 * DEFAULT configurations
@@ -39,6 +40,45 @@ public class Config {
 	public int numberOfInstances = 1;
 	public int numberOfThreadsInThreadPool = 10;
 	public int maxPooledConnections = 10; // Pooling configuration
+	public int numberOfSelectorThreads = 1; // Selector loops handling the client connections
+	public int maxPooledBuffersPerSizeClass = 1024; // Free buffers kept per size class of the BufferPool
+	public int requestQueueHighWatermark = 1000; // Admission control: no more requests admitted past this mark
+	public int requestQueueLowWatermark = 500; // Admission control: paused clients read again below this mark
+	public String overloadPolicy = "throttle"; // Admission control: "throttle" stops reading, "reject" replies BUSY_ERROR
+	public String executionMode = "fixed"; // RequestHandlerThreads run on a "fixed" thread pool or on "virtual" threads
+	public boolean stagedPipeline = false; // Decode, DB and encode stages with own queues. The DB stage uses numberOfThreadsInPool
+	public int decodeStageThreads = 2;
+	public int encodeStageThreads = 2;
+	public boolean compression = true; // Protocol version 2: offer compression of large message bodies
+	public int compressionThreshold = 1024; // Bodies of at least this many bytes are compressed
+	public boolean adaptivePoolSizing = false; // PoolSizeController resizes the workers performing DB requests
+	public int minWorkerThreads = 2;
+	public int maxWorkerThreads = 100; // Bounded by maxPooledConnections as well
+	public int poolControllerStep = 2;
+	public int poolControllerIntervalSeconds = 10;
+	public boolean longPolling = true; // Receive requests with a wait timeout are parked until a message arrives
+	public int maxLongPollTimeout = 30000; // Upper bound of the wait timeout in milliseconds
+	public boolean statementCache = true; // Reuse prepared statements per physical DB connection
+	public int statementCacheSize = 32; // Statements per connection, the least recently used one is closed first
+	public int connectionTimeout = 10000; // Milliseconds a request waits for a pooled DB connection
+	public int connectionValidationInterval = 5000; // Connections idle for longer are validated before they are used
+	public String messageStore = "postgres"; // Queues and messages are kept in the "postgres" DB, in "memory" or in a "log"
+	public String logDirectory = "message_log"; // Log store: directory of the segment files
+	public int logSegmentSize = 64 * 1024 * 1024; // Log store: bytes per memory-mapped segment file
+	public boolean logForce = false; // Log store: force every record to the disk, otherwise only the page cache is written
+	public double logCompactionThreshold = 0.5; // Log store: segments with a smaller fraction of live records are compacted
+	public int logCompactionIntervalSeconds = 10;
+	public boolean dequeueSkipLocked = false; // Competing consumers skip locked messages with SKIP LOCKED. Needs PostgreSQL 9.5, the deployment runs 9.3 and uses advisory locks
+	public boolean groupCommit = false; // MSG_SEND_REQs of several clients are committed in one transaction
+	public int groupCommitWindowMicros = 200; // Time the group waits for more inserts after the first one
+	public int groupCommitMaxSize = 64; // Maximum number of inserts per transaction
+	public boolean prefetch = false; // QUEUE_READ_WITH_REMOVE_REQs are served from messages claimed in batches. Claimed messages are lost on a crash
+	public int prefetchBatchSize = 16; // Messages claimed per DB call
+	public int prefetchLeaseMillis = 2000; // Claimed messages which were not delivered are inserted again after this time
+	public boolean negativeCache = false; // Receive requests which found no message are answered from memory until a message is inserted
+	public int negativeCacheTtlMillis = 100; // Bounds the time a message inserted by another middleware instance is not seen
+	public boolean queueRegistry = false; // Queue creates, deletes and sends to missing queues are answered from the queues loaded at startup
+	public int queueRegistryRefreshMillis = 1000; // An unknown queue is looked up in the DB at most once per interval
 	
 	/*
 	 * DATABASE
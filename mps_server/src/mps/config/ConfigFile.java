@@ -46,6 +46,47 @@ public class ConfigFile {
 		config.numberOfInstances = Integer.parseInt(prop.getProperty("numberOfInstances"));
 		config.numberOfThreadsInThreadPool = Integer.parseInt(prop.getProperty("numberOfThreadsInPool"));
 		config.maxPooledConnections = Integer.parseInt(prop.getProperty("numberOfConnectionsToDb"));
+		config.numberOfSelectorThreads = Integer.parseInt(prop.getProperty("numberOfSelectorThreads", String.valueOf(config.numberOfSelectorThreads)));
+		config.maxPooledBuffersPerSizeClass = Integer.parseInt(prop.getProperty("maxPooledBuffersPerSizeClass", String.valueOf(config.maxPooledBuffersPerSizeClass)));
+		config.requestQueueHighWatermark = Integer.parseInt(prop.getProperty("requestQueueHighWatermark", String.valueOf(config.requestQueueHighWatermark)));
+		config.requestQueueLowWatermark = Integer.parseInt(prop.getProperty("requestQueueLowWatermark", String.valueOf(config.requestQueueLowWatermark)));
+		config.overloadPolicy = prop.getProperty("overloadPolicy", config.overloadPolicy);
+		config.executionMode = prop.getProperty("executionMode", config.executionMode);
+		config.stagedPipeline = Boolean.parseBoolean(prop.getProperty("stagedPipeline", String.valueOf(config.stagedPipeline)));
+		config.decodeStageThreads = Integer.parseInt(prop.getProperty("decodeStageThreads", String.valueOf(config.decodeStageThreads)));
+		config.encodeStageThreads = Integer.parseInt(prop.getProperty("encodeStageThreads", String.valueOf(config.encodeStageThreads)));
+		config.compression = Boolean.parseBoolean(prop.getProperty("compression", String.valueOf(config.compression)));
+		config.compressionThreshold = Integer.parseInt(prop.getProperty("compressionThreshold", String.valueOf(config.compressionThreshold)));
+		config.adaptivePoolSizing = Boolean.parseBoolean(prop.getProperty("adaptivePoolSizing", String.valueOf(config.adaptivePoolSizing)));
+		config.minWorkerThreads = Integer.parseInt(prop.getProperty("minWorkerThreads", String.valueOf(config.minWorkerThreads)));
+		config.maxWorkerThreads = Integer.parseInt(prop.getProperty("maxWorkerThreads", String.valueOf(config.maxWorkerThreads)));
+		config.poolControllerStep = Integer.parseInt(prop.getProperty("poolControllerStep", String.valueOf(config.poolControllerStep)));
+		config.poolControllerIntervalSeconds = Integer.parseInt(prop.getProperty("poolControllerIntervalSeconds", String.valueOf(config.poolControllerIntervalSeconds)));
+		config.longPolling = Boolean.parseBoolean(prop.getProperty("longPolling", String.valueOf(config.longPolling)));
+		config.maxLongPollTimeout = Integer.parseInt(prop.getProperty("maxLongPollTimeout", String.valueOf(config.maxLongPollTimeout)));
+		config.statementCache = Boolean.parseBoolean(prop.getProperty("statementCache", String.valueOf(config.statementCache)));
+		config.statementCacheSize = Integer.parseInt(prop.getProperty("statementCacheSize", String.valueOf(config.statementCacheSize)));
+		config.connectionTimeout = Integer.parseInt(prop.getProperty("connectionTimeout", String.valueOf(config.connectionTimeout)));
+		config.connectionValidationInterval = Integer.parseInt(prop.getProperty("connectionValidationInterval", String.valueOf(config.connectionValidationInterval)));
+		config.messageStore = prop.getProperty("messageStore", config.messageStore);
+		config.logDirectory = prop.getProperty("logDirectory", config.logDirectory);
+		config.logSegmentSize = Integer.parseInt(prop.getProperty("logSegmentSize", String.valueOf(config.logSegmentSize)));
+		config.logForce = Boolean.parseBoolean(prop.getProperty("logForce", String.valueOf(config.logForce)));
+		config.logCompactionThreshold = Double.parseDouble(prop.getProperty("logCompactionThreshold", String.valueOf(config.logCompactionThreshold)));
+		config.logCompactionIntervalSeconds = Integer.parseInt(prop.getProperty("logCompactionIntervalSeconds", String.valueOf(config.logCompactionIntervalSeconds)));
+		config.dequeueSkipLocked = Boolean.parseBoolean(prop.getProperty("dequeueSkipLocked", String.valueOf(config.dequeueSkipLocked)));
+		config.groupCommit = Boolean.parseBoolean(prop.getProperty("groupCommit", String.valueOf(config.groupCommit)));
+		config.groupCommitWindowMicros = Integer.parseInt(prop.getProperty("groupCommitWindowMicros", String.valueOf(config.groupCommitWindowMicros)));
+		config.groupCommitMaxSize = Integer.parseInt(prop.getProperty("groupCommitMaxSize", String.valueOf(config.groupCommitMaxSize)));
+		config.prefetch = Boolean.parseBoolean(prop.getProperty("prefetch", String.valueOf(config.prefetch)));
+		config.prefetchBatchSize = Integer.parseInt(prop.getProperty("prefetchBatchSize", String.valueOf(config.prefetchBatchSize)));
+		config.prefetchLeaseMillis = Integer.parseInt(prop.getProperty("prefetchLeaseMillis", String.valueOf(config.prefetchLeaseMillis)));
+		config.negativeCache = Boolean.parseBoolean(prop.getProperty("negativeCache", String.valueOf(config.negativeCache)));
+		config.negativeCacheTtlMillis = Integer.parseInt(prop.getProperty("negativeCacheTtlMillis", String.valueOf(config.negativeCacheTtlMillis)));
+		config.queueRegistry = Boolean.parseBoolean(prop.getProperty("queueRegistry", String.valueOf(config.queueRegistry)));
+		config.queueRegistryRefreshMillis = Integer.parseInt(prop.getProperty("queueRegistryRefreshMillis", String.valueOf(config.queueRegistryRefreshMillis)));
+		
+		config.statisticsIntervalSeconds = Integer.parseInt(prop.getProperty("statisticsIntervalSeconds", String.valueOf(config.statisticsIntervalSeconds)));
 		
 	}
 	
@@ -60,6 +101,46 @@ public class ConfigFile {
 		System.out.println(config.numberOfInstances);
 		System.out.println(config.numberOfThreadsInThreadPool);
 		System.out.println(config.maxPooledConnections);
+		System.out.println(config.numberOfSelectorThreads);
+		System.out.println(config.maxPooledBuffersPerSizeClass);
+		System.out.println(config.requestQueueHighWatermark);
+		System.out.println(config.requestQueueLowWatermark);
+		System.out.println(config.overloadPolicy);
+		System.out.println(config.executionMode);
+		System.out.println(config.stagedPipeline);
+		System.out.println(config.decodeStageThreads);
+		System.out.println(config.encodeStageThreads);
+		System.out.println(config.compression);
+		System.out.println(config.compressionThreshold);
+		System.out.println(config.adaptivePoolSizing);
+		System.out.println(config.minWorkerThreads);
+		System.out.println(config.maxWorkerThreads);
+		System.out.println(config.poolControllerStep);
+		System.out.println(config.poolControllerIntervalSeconds);
+		System.out.println(config.longPolling);
+		System.out.println(config.maxLongPollTimeout);
+		System.out.println(config.statementCache);
+		System.out.println(config.statementCacheSize);
+		System.out.println(config.connectionTimeout);
+		System.out.println(config.connectionValidationInterval);
+		System.out.println(config.messageStore);
+		System.out.println(config.logDirectory);
+		System.out.println(config.logSegmentSize);
+		System.out.println(config.logForce);
+		System.out.println(config.logCompactionThreshold);
+		System.out.println(config.logCompactionIntervalSeconds);
+		System.out.println(config.dequeueSkipLocked);
+		System.out.println(config.groupCommit);
+		System.out.println(config.groupCommitWindowMicros);
+		System.out.println(config.groupCommitMaxSize);
+		System.out.println(config.prefetch);
+		System.out.println(config.prefetchBatchSize);
+		System.out.println(config.prefetchLeaseMillis);
+		System.out.println(config.negativeCache);
+		System.out.println(config.negativeCacheTtlMillis);
+		System.out.println(config.queueRegistry);
+		System.out.println(config.queueRegistryRefreshMillis);
+		System.out.println(config.statisticsIntervalSeconds);
 		System.out.println(config.numberOfQueues);
 		System.out.println(config.JDBC_DRIVER);
 		System.out.println(config.DB_URL);
@@ -0,0 +1,690 @@
+package mps.database;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import mps.config.Config;
+import mps.statistics.StatisticsSource;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Pool of physical DB connections. Replaces the Jdbc3PoolingDataSource of the driver whose
+ * synchronized getConnection() and close() showed lock contention at 50 threads.
+ * A Semaphore bounds the number of borrowed connections, a thread which gets a permit is guaranteed
+ * a connection. The borrow path is lock-free: first the connection the thread used last is tried,
+ * then the idle queue, a new connection is only opened while the pool is below its maximum size.
+ * The thread affinity also keeps the StatementCache of a connection warm for the same thread.
+ * Connections idle for longer than the validation interval are checked before they are handed out,
+ * connections which failed with a connection error are closed when they are given back.
+ * The PoolSizeController resizes the pool at runtime, surplus connections are closed.
+ * The caller gets a handle, close() on the handle gives the connection back to the pool.
+ *
+ */
+
+public class ConnectionPool implements DataSource, StatisticsSource {
+	
+	// States of a pooled connection
+	private static final int IDLE = 0;
+	private static final int IN_USE = 1;
+	private static final int REMOVED = -1;
+	
+	// Upper bounds of the wait time histogram buckets in microseconds, the last bucket is open
+	private static final long[] WAIT_BUCKETS = { 10, 100, 1000, 10000, 100000, 1000000 };
+	
+	/**
+	 * Permits which can be reduced while they are held
+	 */
+	private static class Permits extends Semaphore {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private Permits(int permits) {
+			super(permits);
+		}
+		
+		private void reduce(int reduction) {
+			reducePermits(reduction);
+		}
+	}
+	
+	/**
+	 * A physical connection of the pool
+	 */
+	private static class PooledConnection {
+		
+		private final Connection connection;
+		
+		private AtomicInteger state = new AtomicInteger(IN_USE);
+		
+		// True while the connection is in the idle queue. Keeps it from being queued twice
+		private AtomicBoolean queued = new AtomicBoolean(false);
+		
+		// Set if a call failed with a connection error, the connection is closed when it is given back
+		private volatile boolean broken = false;
+		
+		// Time when the connection was given back
+		private volatile long lastUsed;
+		
+		private PooledConnection(Connection connection) {
+			
+			this.connection = connection;
+			this.lastUsed = System.nanoTime();
+		}
+	}
+	
+	/**
+	 * Handle of a borrowed connection. Forwards all calls to the physical connection,
+	 * close() gives the connection back. The handle cannot be used after close()
+	 */
+	private class ConnectionHandle implements InvocationHandler {
+		
+		private final PooledConnection pooled;
+		
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+		
+		private ConnectionHandle(PooledConnection pooled) {
+			this.pooled = pooled;
+		}
+		
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			
+			String name = method.getName();
+			
+			if (name.equals("close")) {
+				
+				if (this.closed.compareAndSet(false, true)) {
+					giveBack(this.pooled);
+				}
+				
+				return null;
+			}
+			
+			if (name.equals("isClosed")) {
+				return this.closed.get() || this.pooled.connection.isClosed();
+			}
+			
+			if (name.equals("equals")) {
+				return proxy == args[0];
+			}
+			
+			if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			
+			if (name.equals("toString")) {
+				return "ConnectionHandle[" + this.pooled.connection + "]";
+			}
+			
+			if (this.closed.get()) {
+				throw new SQLException("Connection handle is closed", "08003");
+			}
+			
+			// The StatementCache keeps statements per physical connection
+			if (name.equals("unwrap") && args[0] == Connection.class) {
+				return this.pooled.connection;
+			}
+			
+			if (name.equals("isWrapperFor") && args[0] == Connection.class) {
+				return true;
+			}
+			
+			try {
+				
+				return method.invoke(this.pooled.connection, args);
+				
+			} catch (InvocationTargetException e) {
+				
+				Throwable cause = e.getCause();
+				
+				// SQL state class 08: connection exception
+				if (cause instanceof SQLException) {
+					
+					String sqlState = ((SQLException) cause).getSQLState();
+					
+					if (sqlState != null && sqlState.startsWith("08")) {
+						this.pooled.broken = true;
+					}
+				}
+				
+				throw cause;
+			}
+		}
+	}
+	
+	// JDBC URL and credentials of the physical connections
+	private final String url;
+	private final String user;
+	private final String password;
+	
+	// Changed by resize()
+	private volatile int maxSize;
+	
+	// Time a thread waits for a connection before getConnection() fails
+	private final long timeoutNanos;
+	
+	// Idle connections are validated if they were not used for this long
+	private final long validationIntervalNanos;
+	
+	// One permit per connection which may be borrowed
+	private Permits permits;
+	
+	// Idle connections. May contain connections which were taken by the thread affinity path, they are skipped
+	private ConcurrentLinkedQueue<PooledConnection> idleConnections = new ConcurrentLinkedQueue<PooledConnection>();
+	
+	// Connection the current thread used last
+	private ThreadLocal<PooledConnection> lastConnection = new ThreadLocal<PooledConnection>();
+	
+	// Number of open physical connections
+	private AtomicInteger totalConnections = new AtomicInteger(0);
+	
+	/*
+	 * STATS
+	 */
+	private AtomicInteger activeConnections = new AtomicInteger(0);
+	private AtomicLong borrowed = new AtomicLong(0);
+	private AtomicLong affinityHits = new AtomicLong(0);
+	private AtomicLong timeouts = new AtomicLong(0);
+	private AtomicLong created = new AtomicLong(0);
+	private AtomicLong closed = new AtomicLong(0);
+	private AtomicLong validationFailures = new AtomicLong(0);
+	
+	// Wait time histogram and the values of the last report. The histogram is reported per interval
+	private AtomicLongArray waitHistogram = new AtomicLongArray(WAIT_BUCKETS.length + 1);
+	private long[] lastWaitHistogram = new long[WAIT_BUCKETS.length + 1];
+	private AtomicLong totalWaitNanos = new AtomicLong(0);
+	private long lastTotalWaitNanos = 0;
+	/*
+	 * STATS END
+	 */
+	
+	/**
+	 * @param url - JDBC URL of the DB
+	 * @param user
+	 * @param password
+	 * @param maxSize - maximum number of physical connections
+	 * @param timeoutMillis - time getConnection() waits for a free connection
+	 * @param validationIntervalMillis - idle time after which a connection is validated before it is handed out
+	 */
+	public ConnectionPool(String url, String user, String password, int maxSize, int timeoutMillis, int validationIntervalMillis) {
+		
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		
+		this.maxSize = Math.max(1, maxSize);
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		this.validationIntervalNanos = TimeUnit.MILLISECONDS.toNanos(validationIntervalMillis);
+		
+		this.permits = new Permits(this.maxSize);
+	}
+	
+	/**
+	 * Pool for the DB of the config
+	 * @param config
+	 * @return
+	 */
+	public static ConnectionPool create(Config config) {
+		
+		String url = "jdbc:postgresql://" + config.DB_URL + ":" + config.DB_PORT + "/" + config.DB_NAME;
+		
+		return new ConnectionPool(url, config.DB_USER, config.DB_PASS, config.maxPooledConnections, config.connectionTimeout, config.connectionValidationInterval);
+	}
+	
+	/**
+	 * Open connections in advance, otherwise they are opened by the first requests
+	 * @param numberOfConnections
+	 * @throws SQLException
+	 */
+	public void fill(int numberOfConnections) throws SQLException {
+		
+		numberOfConnections = Math.min(numberOfConnections, this.maxSize);
+		
+		while (true) {
+			
+			int total = this.totalConnections.get();
+			
+			if (total >= numberOfConnections) {
+				return;
+			}
+			
+			if (this.totalConnections.compareAndSet(total, total + 1)) {
+				
+				PooledConnection pooled;
+				
+				try {
+					pooled = open();
+				} catch (SQLException e) {
+					this.totalConnections.decrementAndGet();
+					throw e;
+				}
+				
+				makeIdle(pooled);
+			}
+		}
+	}
+	
+	/**
+	 * Change the maximum number of connections. Surplus idle connections are closed at once,
+	 * surplus borrowed connections when they are given back
+	 * @param size
+	 */
+	public synchronized void resize(int size) {
+		
+		size = Math.max(1, size);
+		
+		if (size > this.maxSize) {
+			
+			this.permits.release(size - this.maxSize);
+			
+		} else if (size < this.maxSize) {
+			
+			// Takes effect as soon as the surplus permits are released
+			this.permits.reduce(this.maxSize - size);
+		}
+		
+		this.maxSize = size;
+		
+		PooledConnection pooled;
+		
+		while (this.totalConnections.get() > size && (pooled = this.idleConnections.poll()) != null) {
+			
+			pooled.queued.set(false);
+			
+			if (pooled.state.compareAndSet(IDLE, IN_USE)) {
+				remove(pooled);
+			}
+		}
+	}
+	
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+	
+	/**
+	 * Borrow a connection. close() on the returned handle gives it back
+	 * @return connection handle
+	 * @throws SQLException if no connection is free within the timeout or a new connection cannot be opened
+	 */
+	public Connection getConnection() throws SQLException {
+		
+		long start = System.nanoTime();
+		
+		// Fast path: a permit is free
+		if (!this.permits.tryAcquire()) {
+			
+			boolean acquired;
+			
+			try {
+				acquired = this.permits.tryAcquire(this.timeoutNanos, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a DB connection", "08001");
+			}
+			
+			if (!acquired) {
+				
+				this.timeouts.incrementAndGet();
+				throw new SQLException("No DB connection free within " + TimeUnit.NANOSECONDS.toMillis(this.timeoutNanos) + " ms", "08001");
+			}
+		}
+		
+		PooledConnection pooled;
+		
+		try {
+			pooled = take();
+		} catch (SQLException e) {
+			this.permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			this.permits.release();
+			throw e;
+		}
+		
+		this.lastConnection.set(pooled);
+		
+		/*
+		 * STATS
+		 */
+		long waitNanos = System.nanoTime() - start;
+		
+		this.borrowed.incrementAndGet();
+		this.activeConnections.incrementAndGet();
+		this.totalWaitNanos.addAndGet(waitNanos);
+		this.waitHistogram.incrementAndGet(bucket(waitNanos / 1000));
+		/*
+		 * STATS END
+		 */
+		
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, new ConnectionHandle(pooled));
+	}
+	
+	// Take an idle connection or open a new one. The caller holds a permit
+	private PooledConnection take() throws SQLException {
+		
+		while (true) {
+			
+			// Thread affinity: the connection this thread used last
+			PooledConnection pooled = this.lastConnection.get();
+			
+			if (pooled != null && pooled.state.compareAndSet(IDLE, IN_USE)) {
+				
+				if (validate(pooled)) {
+					
+					this.affinityHits.incrementAndGet();
+					return pooled;
+				}
+				
+				continue;
+			}
+			
+			// Idle queue
+			while ((pooled = this.idleConnections.poll()) != null) {
+				
+				pooled.queued.set(false);
+				
+				// Skip connections which were taken by the affinity path or removed
+				if (pooled.state.compareAndSet(IDLE, IN_USE) && validate(pooled)) {
+					return pooled;
+				}
+			}
+			
+			// Open a new connection if the pool is not full
+			int total = this.totalConnections.get();
+			
+			if (total < this.maxSize) {
+				
+				if (this.totalConnections.compareAndSet(total, total + 1)) {
+					
+					try {
+						return open();
+					} catch (SQLException e) {
+						this.totalConnections.decrementAndGet();
+						throw e;
+					}
+				}
+				
+			} else {
+				
+				// A connection is being given back, its permit was released before it was queued
+				Thread.yield();
+			}
+		}
+	}
+	
+	// Open a physical connection. The caller has counted it in totalConnections
+	private PooledConnection open() throws SQLException {
+		
+		Connection connection;
+		
+		if (this.user != null) {
+			connection = DriverManager.getConnection(this.url, this.user, this.password);
+		} else {
+			connection = DriverManager.getConnection(this.url);
+		}
+		
+		this.created.incrementAndGet();
+		
+		return new PooledConnection(connection);
+	}
+	
+	// Check a connection which was idle for a long time. A connection which fails is closed
+	private boolean validate(PooledConnection pooled) {
+		
+		if (System.nanoTime() - pooled.lastUsed < this.validationIntervalNanos) {
+			return true;
+		}
+		
+		Statement stmt = null;
+		
+		try {
+			
+			// isValid() is not implemented by the JDBC 3 driver
+			stmt = pooled.connection.createStatement();
+			stmt.execute("SELECT 1");
+			
+			return true;
+			
+		} catch (SQLException e) {
+			
+			this.validationFailures.incrementAndGet();
+			
+			remove(pooled);
+			
+			return false;
+			
+		} finally {
+			
+			if (stmt != null) {
+				
+				try {
+					stmt.close();
+				} catch (SQLException e) {
+					// Connection is closed already
+				}
+			}
+		}
+	}
+	
+	// Called by the handle
+	private void giveBack(PooledConnection pooled) {
+		
+		this.activeConnections.decrementAndGet();
+		
+		// Undo a transaction which was left open
+		if (!pooled.broken) {
+			
+			try {
+				
+				if (!pooled.connection.getAutoCommit()) {
+					
+					pooled.connection.rollback();
+					pooled.connection.setAutoCommit(true);
+				}
+				
+			} catch (SQLException e) {
+				
+				pooled.broken = true;
+			}
+		}
+		
+		if (pooled.broken || this.totalConnections.get() > this.maxSize) {
+			
+			// Broken or surplus after the pool was shrunk
+			remove(pooled);
+			
+		} else {
+			
+			pooled.lastUsed = System.nanoTime();
+			
+			makeIdle(pooled);
+		}
+		
+		this.permits.release();
+	}
+	
+	// Make a connection available to all threads
+	private void makeIdle(PooledConnection pooled) {
+		
+		pooled.state.set(IDLE);
+		
+		if (pooled.queued.compareAndSet(false, true)) {
+			this.idleConnections.offer(pooled);
+		}
+	}
+	
+	// Close a connection which is in use by the caller
+	private void remove(PooledConnection pooled) {
+		
+		pooled.state.set(REMOVED);
+		
+		this.totalConnections.decrementAndGet();
+		this.closed.incrementAndGet();
+		
+		try {
+			pooled.connection.close();
+		} catch (SQLException e) {
+			// Broken anyway
+		}
+	}
+	
+	/**
+	 * Close all idle connections. Borrowed connections are closed when they are given back
+	 */
+	public void close() {
+		
+		PooledConnection pooled;
+		
+		while ((pooled = this.idleConnections.poll()) != null) {
+			
+			if (pooled.state.compareAndSet(IDLE, IN_USE)) {
+				remove(pooled);
+			}
+		}
+	}
+	
+	public Connection getConnection(String username, String password) throws SQLException {
+		throw new SQLFeatureNotSupportedException("The pool only hands out connections of the configured user");
+	}
+	
+	public PrintWriter getLogWriter() throws SQLException {
+		return null;
+	}
+	
+	public void setLogWriter(PrintWriter out) throws SQLException {
+		// No logging
+	}
+	
+	public void setLoginTimeout(int seconds) throws SQLException {
+		DriverManager.setLoginTimeout(seconds);
+	}
+	
+	public int getLoginTimeout() throws SQLException {
+		return DriverManager.getLoginTimeout();
+	}
+	
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+	
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		
+		if (iface.isInstance(this)) {
+			return iface.cast(this);
+		}
+		
+		throw new SQLException("Not a wrapper for " + iface.getName());
+	}
+	
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this);
+	}
+	
+	// STATS
+	private static int bucket(long waitMicros) {
+		
+		for (int i = 0; i < WAIT_BUCKETS.length; ++i) {
+			
+			if (waitMicros < WAIT_BUCKETS[i]) {
+				return i;
+			}
+		}
+		
+		return WAIT_BUCKETS.length;
+	}
+	
+	public int getActiveConnections() {
+		return this.activeConnections.get();
+	}
+	
+	public int getIdleConnections() {
+		return this.totalConnections.get() - this.activeConnections.get();
+	}
+	
+	public long getTimeouts() {
+		return this.timeouts.get();
+	}
+	
+	public synchronized String formatStatistics() {
+		
+		StringBuilder sb = new StringBuilder();
+		
+		int total = this.totalConnections.get();
+		int active = this.activeConnections.get();
+		
+		sb.append("max=");
+		sb.append(this.maxSize);
+		sb.append(" total=");
+		sb.append(total);
+		sb.append(" active=");
+		sb.append(active);
+		sb.append(" idle=");
+		sb.append(Math.max(0, total - active));
+		sb.append(" borrowed=");
+		sb.append(this.borrowed.get());
+		sb.append(" affinity_hits=");
+		sb.append(this.affinityHits.get());
+		sb.append(" timeouts=");
+		sb.append(this.timeouts.get());
+		sb.append(" created=");
+		sb.append(this.created.get());
+		sb.append(" closed=");
+		sb.append(this.closed.get());
+		sb.append(" validation_failures=");
+		sb.append(this.validationFailures.get());
+		
+		// Wait times of the last interval
+		long intervalBorrowed = 0;
+		
+		sb.append(" wait_us=[");
+		
+		for (int i = 0; i <= WAIT_BUCKETS.length; ++i) {
+			
+			long count = this.waitHistogram.get(i);
+			long intervalCount = count - this.lastWaitHistogram[i];
+			
+			this.lastWaitHistogram[i] = count;
+			intervalBorrowed += intervalCount;
+			
+			if (i > 0) {
+				sb.append(' ');
+			}
+			
+			sb.append(i < WAIT_BUCKETS.length ? "<" + WAIT_BUCKETS[i] : ">=" + WAIT_BUCKETS[WAIT_BUCKETS.length - 1]);
+			sb.append(':');
+			sb.append(intervalCount);
+		}
+		
+		sb.append(']');
+		
+		long waitNanos = this.totalWaitNanos.get();
+		long intervalWaitNanos = waitNanos - this.lastTotalWaitNanos;
+		
+		this.lastTotalWaitNanos = waitNanos;
+		
+		sb.append(" avg_wait_us=");
+		sb.append(String.format("%.1f", intervalBorrowed > 0 ? intervalWaitNanos / 1000.0 / intervalBorrowed : 0.0));
+		
+		return sb.toString();
+	}
+	// STATS END
+	
+}
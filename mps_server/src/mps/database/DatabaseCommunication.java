@@ -4,15 +4,23 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.sql.CallableStatement;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sql.DataSource;
 
-import org.postgresql.jdbc3.Jdbc3PoolingDataSource;
 import org.postgresql.util.PSQLException;
 
 import mps.config.Config;
+import mps.request.Protocol;
 import mps.request.Request;
 import mps.request.Response;
+import mps.request.ResponseEncoder;
 
 public class DatabaseCommunication {
 	
@@ -26,18 +34,21 @@ public class DatabaseCommunication {
 	
 	// Time when a response from the DB arrives
 	private long endTimeSQLExecute;
-		
+	
 	/*
 	 * Pooled data source. It is important to open/close the connection to the DB
 	 * as short as possible. close() will not physically close the DB connection
 	 * but rather return it to the connection pool
 	 */
-	private Jdbc3PoolingDataSource pooledDataSource;
-
+	private DataSource pooledDataSource;
+	
+	// Prepared statements are reused per physical connection instead of being prepared for every request
+	private StatementCache statementCache;
+	
 	/**
 	 * Important: first register then connect to the DB
 	 */
-	public DatabaseCommunication(Jdbc3PoolingDataSource ds) {
+	public DatabaseCommunication(DataSource ds) {
 		
 		// STATS
 		config = Config.getInstance();
@@ -45,6 +56,8 @@ public class DatabaseCommunication {
 		// Assign pooled data source
 		this.pooledDataSource = ds;
 		
+		this.statementCache = StatementCache.getInstance();
+		
 		// Default initialization to avoid errors
 		this.startTimeSQLExecute = 0;
 		this.endTimeSQLExecute = 0;
@@ -69,6 +82,9 @@ public class DatabaseCommunication {
 		Connection dbConnection = null;
 		CallableStatement cstmt = null;
 		
+		// A statement which threw is not reused
+		boolean failed = false;
+		
 		// Initialize new Response object
 		Response rsp = new Response();
 		// Pre-populate response
@@ -76,7 +92,7 @@ public class DatabaseCommunication {
 		rsp.requestId = req.requestId;
 		rsp.requestType = req.type;
 		rsp.retrievedMessage = "";
-
+		
 		/*
 		 * Distinguish between specific receivers and 'NULL' receiver
 		 */
@@ -88,10 +104,10 @@ public class DatabaseCommunication {
 			
 			// Ensure messages will be inserted concurrently
 			//dbConnection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
-
-			// Create new statement
-			cstmt = dbConnection.prepareCall(sqlQuery);
-
+			
+			// Get the cached statement of the connection or prepare a new one
+			cstmt = statementCache.prepareCall(dbConnection, sqlQuery);
+			
 			/*
 			 * STATS
 			 */
@@ -116,24 +132,24 @@ public class DatabaseCommunication {
 				}
 				
 				cstmt.setInt(3, req.queueId);
-				cstmt.setString(4, req.message);
+				cstmt.setString(4, req.getMessage());
 				
 				cstmt.registerOutParameter(5, Types.INTEGER);
-	
+				
 				/**
 				 * executeUpadte does not return a ResultSet
 				 * sqlQuery gets executed
 				 */
 				cstmt.executeUpdate();
-	
+				
 				rsp.messageId = cstmt.getInt(5);
 				
 				if (config.DEBUG) {
 					System.out.println("Retrieved message id: " + rsp.messageId);
 				}
-			
+				
 			} else if (req.type == 1) {
-								
+				
 				// MSG_REC_REQ
 				cstmt.setInt(1, req.senderId);
 				cstmt.setInt(2, req.receiverId);
@@ -165,14 +181,14 @@ public class DatabaseCommunication {
 					
 					// Proceed with reading out parameters
 					rsp.retrievedMessage = cstmt.getString(4);
-
+					
 					if (config.DEBUG) {
 						System.out.println("Retrieved message id: " + rsp.messageId);
 					}
 				}
 				
 			} else if (req.type == 3 || req.type == 4) {
-								
+				
 				// QUEUE_READ_REQ
 				// or
 				// QUEUE_READ_WITH_REMOVE_REQ
@@ -208,7 +224,7 @@ public class DatabaseCommunication {
 					
 					// Proceed with reading out parameters
 					rsp.retrievedMessage = cstmt.getString(4);
-
+					
 					if (config.DEBUG) {
 						System.out.println("Retrieved message id: " + rsp.messageId);
 					}
@@ -257,14 +273,14 @@ public class DatabaseCommunication {
 			} else if (req.type == 7) {
 				
 				// QUEUE_DEL_REQUEST
-								
+				
 				cstmt.setInt(1, req.queueId);
 				
 				// If query is a normal update query
 				cstmt.executeUpdate();
 				
 			} else if (req.type == 2) {
-								
+				
 				// MESSAGE_DELETE_REQUEST
 				// This queueId corresponds to the message id
 				// IMPORTANT: Evil hack!
@@ -272,13 +288,16 @@ public class DatabaseCommunication {
 				
 				cstmt.executeUpdate();
 			}
-
+			
 		} catch (PSQLException e) {
 			
 			//e.printStackTrace();
 			
+			failed = true;
+			
 			// PSQL error occurred
 			rsp.errorType = 3;
+			rsp.sqlState = e.getSQLState();
 			rsp.requestId = req.requestId;
 			rsp.requestType = req.type;
 			rsp.messageId = -1;
@@ -291,7 +310,7 @@ public class DatabaseCommunication {
 			
 			// Round to two decimals
 			BigDecimal bd = new BigDecimal(elapsedSqlExecutionTime).setScale(2, RoundingMode.HALF_UP);
-
+			
 			rsp.sqlExecutionTime = bd.doubleValue();
 			// STATS END
 			
@@ -306,6 +325,8 @@ public class DatabaseCommunication {
 			 */
 			e.printStackTrace();
 			
+			failed = true;
+			
 			// SQL error occurred
 			rsp.errorType = 1;
 			rsp.requestId = req.requestId;
@@ -331,9 +352,12 @@ public class DatabaseCommunication {
 			
 			try {
 				
-				// After executing statement close everything
-				cstmt.close();
-				dbConnection.close();
+				// After executing statement hand it back to the cache and close the connection
+				statementCache.release(dbConnection, sqlQuery, cstmt, failed);
+				
+				if (dbConnection != null) {
+					dbConnection.close();
+				}
 				
 			} catch (SQLException e) {
 				
@@ -360,7 +384,7 @@ public class DatabaseCommunication {
 	public Response insertQueueById(Request req) {
 		
 		String sqlQuery = "{call insert_queue(?)}";
-
+		
 		if (config.DEBUG) {
 			System.out.println(sqlQuery);
 		}
@@ -374,7 +398,7 @@ public class DatabaseCommunication {
 	public Response deleteQueueById(Request req) {
 		
 		String sqlQuery = "{call delete_queue(?)}";
-
+		
 		if (config.DEBUG) {
 			System.out.println(sqlQuery);
 		}		
@@ -386,7 +410,7 @@ public class DatabaseCommunication {
 	public Response insertMessage(Request req) {
 		
 		String sqlQuery = "{call insert_message(?,?,?,?,?)}";
-				
+		
 		if (config.DEBUG) {
 			System.out.println(sqlQuery);
 		}		
@@ -399,7 +423,7 @@ public class DatabaseCommunication {
 	public Response retrieveMessageByReceiverId(Request req) {
 		
 		String sqlQuery = "{call get_message_from_receiver(?,?,?,?)}";
-
+		
 		if (config.DEBUG) {
 			System.out.println(sqlQuery);
 		}
@@ -409,11 +433,11 @@ public class DatabaseCommunication {
 		return rsp;
 		
 	}
-
+	
 	public Response retrieveMessageFromQueueById(Request req) {
 		
 		String sqlQuery = "{call get_message_from_queue(?,?,?,?)}";
-
+		
 		if (config.DEBUG) {
 			System.out.println(sqlQuery);
 		}
@@ -426,38 +450,903 @@ public class DatabaseCommunication {
 	
 	public Response retrieveMessageFromQueueByIdWithDelete(Request req) {
 		
-		String sqlQuery = "{call get_message_from_queue(?,?,?,?)}";
-
+		/*
+		 * Claim and delete the newest message in one statement. A message is received by exactly one consumer.
+		 * A consumer skips the message another one is deleting and takes the next one
+		 * instead of waiting for the other transaction
+		 */
+		String sqlQuery = "DELETE FROM mps_message WHERE m_message_id = (" + newestUnclaimed("1") + ") RETURNING m_message_id, m_message_body";
+				
 		if (config.DEBUG) {
 			System.out.println(sqlQuery);
 		}
 		
-		Response rsp = updateQuery(sqlQuery, req);
+		Response rsp = batchQuery(sqlQuery, req);
+		
+		return rsp;
+	}
+	
+	/*
+	 * Subquery of the dequeue statements: ids of the newest messages for the receiver (parameter 1) in the queue (parameter 2)
+	 * which no other consumer is deleting. SKIP LOCKED needs PostgreSQL 9.5. Before, a consumer takes a transaction
+	 * level advisory lock on the message id instead. It is tried on the sorted messages outside of the subquery, only
+	 * until the limit is reached. Without a lock the losing consumer waits for the row lock and deletes nothing
+	 */
+	private String newestUnclaimed(String limit) {
+		
+		String newest = "SELECT m_message_id FROM mps_message WHERE (m_receiver_id IS NULL OR m_receiver_id = ?) AND m_queue_id = ? "
+				+ "ORDER BY m_arrival_time DESC";
+		
+		if (config.dequeueSkipLocked) {
+			return newest + " LIMIT " + limit + " FOR UPDATE SKIP LOCKED";
+		}
+		
+		return "SELECT m_message_id FROM (" + newest + ") AS newest WHERE pg_try_advisory_xact_lock(m_message_id) LIMIT " + limit;
+	}
+	
+	/**
+	 * Handle the requests which are performed with one plain statement instead of a stored procedure:
+	 * the batch requests and the atomic QUEUE_READ_WITH_REMOVE_REQ. One round trip to the DB for all messages
+	 * @param sqlQuery
+	 * @param req
+	 * @return Response
+	 */
+	public Response batchQuery(String sqlQuery, Request req) {
+		
+		Connection dbConnection = null;
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		
+		// A statement which threw is not reused
+		boolean failed = false;
+		
+		/*
+		 * Protocol version 1 cannot encode every body. A read is deleted in a transaction which is
+		 * rolled back if the client cannot decode a message, the message stays in the queue
+		 */
+		boolean checkEncodable = (req.type == 4 || req.type == 9) && req.protocolVersion < Protocol.VERSION_2;
+		boolean rollback = false;
+		
+		// Messages of a rolled back batch the client can decode, deleted again by id
+		int[] encodableIds = null;
+		
+		// Initialize new Response object
+		Response rsp = new Response();
+		// Pre-populate response
+		rsp.errorType = 0; // NO_ERROR
+		rsp.requestId = req.requestId;
+		rsp.requestType = req.type;
+		rsp.messageId = -1;
+		rsp.retrievedMessage = "";
 		
-		// If successfully retrieved message, try to delete it		
-		if (rsp.messageId >= 0) {
+		try {
 			
-			sqlQuery = "{call delete_message(?)}";
+			// Try to get a pooled connection from the data source
+			dbConnection = pooledDataSource.getConnection();
 			
-			if (config.DEBUG) {
-				System.out.println(sqlQuery);
+			if (checkEncodable) {
+				dbConnection.setAutoCommit(false);
 			}
 			
-			req.type = 2;
-			req.queueId = rsp.messageId;
+			// Get the cached statement of the connection or prepare a new one
+			pstmt = statementCache.prepareStatement(dbConnection, sqlQuery);
 			
-			updateQuery(sqlQuery, req);
-
+			/*
+			 * STATS
+			 */
+			this.startTimeSQLExecute = System.nanoTime();
+			/*
+			 * STATS END
+			 */
+			
+			if (req.type == 8) {
+				
+				// MSG_SEND_BATCH_REQ
+				int parameter = 1;
+				
+				for (int i = 0; i < req.batchCount; ++i) {
+					
+					pstmt.setInt(parameter++, req.senderId);
+					
+					/*
+					 * Distinguish between specific receivers and 'NULL' receiver
+					 */
+					if (req.batchReceiverIds[i] == -1) {
+						pstmt.setNull(parameter++, Types.INTEGER);
+					} else {
+						pstmt.setInt(parameter++, req.batchReceiverIds[i]);
+					}
+					
+					pstmt.setInt(parameter++, req.batchQueueIds[i]);
+					pstmt.setString(parameter++, req.getBatchMessage(i));
+				}
+				
+				// The rows are returned in the order of the VALUES list
+				rs = pstmt.executeQuery();
+				
+				rsp.batchMessageIds = new int[req.batchCount];
+				
+				int n = 0;
+				
+				while (rs.next() && n < req.batchCount) {
+					rsp.batchMessageIds[n++] = rs.getInt(1);
+				}
+				
+				rsp.messageId = rsp.batchMessageIds[0];
+				
+				if (config.DEBUG) {
+					System.out.println("Inserted " + n + " messages");
+				}
+				
+			} else if (req.type == 4) {
+				
+				// QUEUE_READ_WITH_REMOVE_REQ
+				pstmt.setInt(1, req.senderId);
+				pstmt.setInt(2, req.queueId);
+				
+				rs = pstmt.executeQuery();
+				
+				boolean found = rs.next();
+				
+				if (found && checkEncodable && !ResponseEncoder.canEncode(rs.getString(2), req.protocolVersion)) {
+					
+					rollback = true;
+					
+					rsp.errorType = 5; // MESSAGE_TOO_LONG_ERROR
+					
+				} else if (found) {
+					
+					rsp.messageId = rs.getInt(1);
+					rsp.retrievedMessage = rs.getString(2);
+					
+					if (config.DEBUG) {
+						System.out.println("Retrieved message id: " + rsp.messageId);
+					}
+					
+				} else {
+					
+					// Debugging purpose
+					if (config.DEBUG) {
+						System.out.println("RETURNED EMPTY RESULT SET");
+					}
+					
+					rsp.errorType = 2; // RECORD_NOT_FOUND_ERROR
+				}
+				
+			} else if (req.type == 9) {
+				
+				// QUEUE_READ_WITH_REMOVE_BATCH_REQ
+				pstmt.setInt(1, req.senderId);
+				pstmt.setInt(2, req.queueId);
+				pstmt.setInt(3, req.maxMessages);
+				
+				rs = pstmt.executeQuery();
+				
+				int[] ids = new int[req.maxMessages];
+				String[] messages = new String[req.maxMessages];
+				
+				int n = 0;
+				
+				while (rs.next() && n < req.maxMessages) {
+					
+					ids[n] = rs.getInt(1);
+					messages[n] = rs.getString(2);
+					++n;
+				}
+				
+				if (n == 0) {
+					
+					// Debugging purpose
+					if (config.DEBUG) {
+						System.out.println("RETURNED EMPTY RESULT SET");
+					}
+					
+					rsp.errorType = 2; // RECORD_NOT_FOUND_ERROR
+					
+				} else {
+					
+					// DELETE ... RETURNING has no order, restore newest first as for a single message
+					rsp.batchMessageIds = Arrays.copyOf(ids, n);
+					rsp.batchMessages = Arrays.copyOf(messages, n);
+					
+					sortNewestFirst(rsp.batchMessageIds, rsp.batchMessages);
+					
+					// The client gets the newest messages up to the first one it cannot decode
+					int encodable = 0;
+					
+					while (checkEncodable && encodable < n && ResponseEncoder.canEncode(rsp.batchMessages[encodable], req.protocolVersion)) {
+						++encodable;
+					}
+					
+					if (checkEncodable && encodable < n) {
+						
+						rollback = true;
+						
+						if (encodable == 0) {
+							
+							rsp.errorType = 5; // MESSAGE_TOO_LONG_ERROR
+							rsp.batchMessageIds = null;
+							rsp.batchMessages = null;
+							
+						} else {
+							
+							encodableIds = Arrays.copyOf(rsp.batchMessageIds, encodable);
+							rsp.batchMessages = Arrays.copyOf(rsp.batchMessages, encodable);
+						}
+					}
+					
+					if (rsp.errorType == 0) {
+						
+						rsp.messageId = rsp.batchMessageIds[0];
+						rsp.retrievedMessage = rsp.batchMessages[0];
+					}
+					
+					if (config.DEBUG) {
+						System.out.println("Retrieved " + n + " messages");
+					}
+				}
+			}
+			
+			if (checkEncodable) {
+				
+				if (rollback) {
+					dbConnection.rollback();
+				} else {
+					dbConnection.commit();
+				}
+				
+				dbConnection.setAutoCommit(true);
+			}
+			
+		} catch (PSQLException e) {
+			
+			// PSQL error occurred, e.g. a queue of the batch does not exist. The whole batch is rejected
+			failed = true;
+			encodableIds = null;
+			
+			rsp.errorType = 3;
+			rsp.sqlState = e.getSQLState();
+			rsp.messageId = -1;
+			rsp.retrievedMessage = "";
+			rsp.batchMessageIds = null;
+			rsp.batchMessages = null;
+			
+		} catch (SQLException e) {
+			
+			e.printStackTrace();
+			
+			failed = true;
+			encodableIds = null;
+			
+			// SQL error occurred
+			rsp.errorType = 1;
+			rsp.messageId = -1;
+			rsp.retrievedMessage = "";
+			rsp.batchMessageIds = null;
+			rsp.batchMessages = null;
+			
+		} finally {
+			
+			// IMPORTANT This gets executed always
+			
+			try {
+				
+				// After executing statement hand it back to the cache and close the connection
+				if (rs != null) {
+					rs.close();
+				}
+				
+				statementCache.release(dbConnection, sqlQuery, pstmt, failed);
+				
+				if (dbConnection != null) {
+					dbConnection.close();
+				}
+				
+			} catch (SQLException e) {
+				
+				e.printStackTrace();
+			}
+		}
+		
+		if (encodableIds != null) {
+			keepDeleted(rsp, deleteMessages(encodableIds, encodableIds.length));
 		}
 		
+		/*
+		 * STATS
+		 */
+		this.endTimeSQLExecute = System.nanoTime();	
+		
+		double elapsedSqlExecutionTime = (this.endTimeSQLExecute - this.startTimeSQLExecute) / 1000000.0; // In milliseconds
+		
+		// Round to two decimals
+		rsp.sqlExecutionTime = new BigDecimal(elapsedSqlExecutionTime).setScale(2, RoundingMode.HALF_UP).doubleValue();
+		
+		// Return Response object
 		return rsp;
+	}
+	
+	// Keep the messages of the batch which were deleted again after the rollback, another consumer may have taken the others
+	private static void keepDeleted(Response rsp, int[] deleted) {
+		
+		int[] ids = new int[deleted.length];
+		String[] messages = new String[deleted.length];
+		
+		int n = 0;
+		
+		for (int i = 0; i < rsp.batchMessages.length; ++i) {
+			
+			for (int id : deleted) {
+				
+				if (id == rsp.batchMessageIds[i]) {
+					
+					ids[n] = id;
+					messages[n] = rsp.batchMessages[i];
+					++n;
+					break;
+				}
+			}
+		}
+		
+		if (n == 0) {
+			
+			rsp.errorType = 2; // RECORD_NOT_FOUND_ERROR
+			rsp.messageId = -1;
+			rsp.retrievedMessage = "";
+			rsp.batchMessageIds = null;
+			rsp.batchMessages = null;
+			
+			return;
+		}
 		
+		rsp.batchMessageIds = Arrays.copyOf(ids, n);
+		rsp.batchMessages = Arrays.copyOf(messages, n);
+		rsp.messageId = ids[0];
+		rsp.retrievedMessage = messages[0];
 	}
-
-	public Response queryForQueueByReceiverId(Request req) {
+	
+	// Message ids grow with the arrival time, sort descending
+	private static void sortNewestFirst(int[] ids, String[] messages) {
+		
+		for (int i = 1; i < ids.length; ++i) {
+			
+			int id = ids[i];
+			String message = messages[i];
+			
+			int j = i - 1;
+			
+			while (j >= 0 && ids[j] < id) {
+				
+				ids[j + 1] = ids[j];
+				messages[j + 1] = messages[j];
+				--j;
+			}
+			
+			ids[j + 1] = id;
+			messages[j + 1] = message;
+		}
+	}
+	
+	public Response insertMessages(Request req) {
+		
+		// One multi-row insert for the whole batch. clock_timestamp(): the arrival times keep the order of the batch
+		StringBuilder sb = new StringBuilder("INSERT INTO mps_message (m_sender_id, m_receiver_id, m_queue_id, m_message_body, m_arrival_time) VALUES ");
+		
+		for (int i = 0; i < req.batchCount; ++i) {
+			
+			if (i > 0) {
+				sb.append(',');
+			}
+			
+			sb.append("(?,?,?,?,clock_timestamp())");
+		}
+		
+		sb.append(" RETURNING m_message_id");
+		
+		String sqlQuery = sb.toString();
+		
+		if (config.DEBUG) {
+			System.out.println(sqlQuery);
+		}
+		
+		Response rsp = batchQuery(sqlQuery, req);
+		
+		return rsp;
+	}
+	
+	/**
+	 * Group commit: insert the MSG_SEND_REQs of several clients in one transaction.
+	 * The rows are written with multi-row inserts of power of two sizes, which keeps
+	 * the number of different statements in the StatementCache small
+	 * @param requests - MSG_SEND_REQs
+	 * @param count - number of requests to insert
+	 * @return message ids in the order of the requests
+	 * @throws SQLException if the transaction failed, nothing is inserted then
+	 */
+	public int[] insertMessageGroup(Request[] requests, int count) throws SQLException {
+		
+		int[] messageIds = new int[count];
+		
+		Connection dbConnection = null;
+		
+		try {
+			
+			dbConnection = pooledDataSource.getConnection();
+			
+			// One commit for the whole group
+			dbConnection.setAutoCommit(false);
+			
+			int inserted = 0;
+			
+			while (inserted < count) {
+				
+				// Largest power of two which fits
+				int rows = Integer.highestOneBit(count - inserted);
+				
+				insertRows(dbConnection, requests, inserted, rows, messageIds);
+				
+				inserted += rows;
+			}
+			
+			dbConnection.commit();
+			
+			if (config.DEBUG) {
+				System.out.println("Group commit of " + count + " messages");
+			}
+			
+			return messageIds;
+			
+		} catch (SQLException e) {
+			
+			if (dbConnection != null) {
+				
+				try {
+					dbConnection.rollback();
+				} catch (SQLException re) {
+					re.printStackTrace();
+				}
+			}
+			
+			throw e;
+			
+		} finally {
+			
+			if (dbConnection != null) {
+				
+				try {
+					
+					dbConnection.setAutoCommit(true);
+					dbConnection.close();
+					
+				} catch (SQLException e) {
+					
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	// Insert the requests [offset, offset + rows) with one statement. The rows are returned in the order of the VALUES list
+	private void insertRows(Connection dbConnection, Request[] requests, int offset, int rows, int[] messageIds) throws SQLException {
+		
+		// clock_timestamp(): now() is the same for the whole transaction, the arrival times keep the order of the messages
+		StringBuilder sb = new StringBuilder("INSERT INTO mps_message (m_sender_id, m_receiver_id, m_queue_id, m_message_body, m_arrival_time) VALUES ");
+		
+		for (int i = 0; i < rows; ++i) {
+			
+			if (i > 0) {
+				sb.append(',');
+			}
+			
+			sb.append("(?,?,?,?,clock_timestamp())");
+		}
+		
+		sb.append(" RETURNING m_message_id");
+		
+		String sqlQuery = sb.toString();
+		
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		
+		// A statement which threw is not reused
+		boolean failed = true;
+		
+		try {
+			
+			pstmt = statementCache.prepareStatement(dbConnection, sqlQuery);
+			
+			int parameter = 1;
+			
+			for (int i = offset; i < offset + rows; ++i) {
+				
+				Request req = requests[i];
+				
+				pstmt.setInt(parameter++, req.senderId);
+				
+				/*
+				 * Distinguish between specific receivers and 'NULL' receiver
+				 */
+				if (req.receiverId == -1) {
+					pstmt.setNull(parameter++, Types.INTEGER);
+				} else {
+					pstmt.setInt(parameter++, req.receiverId);
+				}
+				
+				pstmt.setInt(parameter++, req.queueId);
+				pstmt.setString(parameter++, req.getMessage());
+			}
+			
+			rs = pstmt.executeQuery();
+			
+			int n = 0;
+			
+			while (rs.next() && n < rows) {
+				messageIds[offset + n++] = rs.getInt(1);
+			}
+			
+			if (n < rows) {
+				throw new SQLException("Inserted " + n + " of " + rows + " messages");
+			}
+			
+			failed = false;
+			
+		} finally {
+			
+			if (rs != null) {
+				rs.close();
+			}
+			
+			statementCache.release(dbConnection, sqlQuery, pstmt, failed);
+		}
+	}
+	
+	public Response retrieveMessagesFromQueueWithDelete(Request req) {
+		
+		// Select and delete in one statement, no second round trip per message
+		String sqlQuery = "DELETE FROM mps_message WHERE m_message_id IN (" + newestUnclaimed("?") + ") RETURNING m_message_id, m_message_body";
+				
+		if (config.DEBUG) {
+			System.out.println(sqlQuery);
+		}
+		
+		Response rsp = batchQuery(sqlQuery, req);
+		
+		return rsp;
+	}
+	
+	/**
+	 * @return ids of all queues in the DB
+	 * @throws SQLException if the queues could not be read
+	 */
+	public List<Integer> retrieveQueueIds() throws SQLException {
+		
+		String sqlQuery = "SELECT q_queue_id FROM mps_queue";
+		
+		if (config.DEBUG) {
+			System.out.println(sqlQuery);
+		}
+		
+		Connection dbConnection = null;
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		
+		// A statement which threw is not reused
+		boolean failed = true;
+		
+		List<Integer> queueIds = new ArrayList<Integer>();
+		
+		try {
+			
+			dbConnection = pooledDataSource.getConnection();
+			
+			pstmt = statementCache.prepareStatement(dbConnection, sqlQuery);
+			
+			rs = pstmt.executeQuery();
+			
+			while (rs.next()) {
+				queueIds.add(rs.getInt(1));
+			}
+			
+			failed = false;
+			
+		} finally {
+			
+			try {
+				
+				if (rs != null) {
+					rs.close();
+				}
+				
+				statementCache.release(dbConnection, sqlQuery, pstmt, failed);
+				
+				if (dbConnection != null) {
+					dbConnection.close();
+				}
+				
+			} catch (SQLException e) {
+				
+				e.printStackTrace();
+			}
+		}
+		
+		return queueIds;
+	}
+	
+	/**
+	 * Claim the newest messages of a queue for a receiver: delete and return them with one statement.
+	 * The messages are removed from the DB, the caller keeps them until they are delivered or released again
+	 * @param queueId
+	 * @param receiverId - messages without receiver or for this receiver
+	 * @param maxMessages
+	 * @return claimed messages, newest first. Empty if the queue has no messages
+	 * @throws SQLException if nothing could be claimed
+	 */
+	public List<StoredMessage> claimMessages(int queueId, int receiverId, int maxMessages) throws SQLException {
+		
+		String sqlQuery = "DELETE FROM mps_message WHERE m_message_id IN (" + newestUnclaimed("?") + ") "
+				+ "RETURNING m_message_id, m_sender_id, m_receiver_id, m_message_body, m_arrival_time";
+				
+		if (config.DEBUG) {
+			System.out.println(sqlQuery);
+		}
+		
+		Connection dbConnection = null;
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		
+		// A statement which threw is not reused
+		boolean failed = true;
+		
+		List<StoredMessage> messages = new ArrayList<StoredMessage>(maxMessages);
+		
+		try {
+			
+			dbConnection = pooledDataSource.getConnection();
+			
+			pstmt = statementCache.prepareStatement(dbConnection, sqlQuery);
+			
+			pstmt.setInt(1, receiverId);
+			pstmt.setInt(2, queueId);
+			pstmt.setInt(3, maxMessages);
+			
+			rs = pstmt.executeQuery();
+			
+			while (rs.next()) {
+				
+				StoredMessage message = new StoredMessage();
+				
+				message.messageId = rs.getInt(1);
+				message.senderId = rs.getInt(2);
+				message.receiverId = rs.getInt(3);
+				
+				// 'NULL' receiver
+				if (rs.wasNull()) {
+					message.receiverId = -1;
+				}
+				
+				message.queueId = queueId;
+				message.body = rs.getString(4);
+				message.arrivalTime = rs.getTimestamp(5);
+				
+				messages.add(message);
+			}
+			
+			failed = false;
+			
+		} finally {
+			
+			try {
+				
+				if (rs != null) {
+					rs.close();
+				}
+				
+				statementCache.release(dbConnection, sqlQuery, pstmt, failed);
+				
+				if (dbConnection != null) {
+					dbConnection.close();
+				}
+				
+			} catch (SQLException e) {
+				
+				e.printStackTrace();
+			}
+		}
+		
+		// DELETE ... RETURNING has no order. Message ids grow with the arrival time
+		for (int i = 1; i < messages.size(); ++i) {
+			
+			StoredMessage message = messages.get(i);
+			
+			int j = i - 1;
+			
+			while (j >= 0 && messages.get(j).messageId < message.messageId) {
+				
+				messages.set(j + 1, messages.get(j));
+				--j;
+			}
+			
+			messages.set(j + 1, message);
+		}
+		
+		return messages;
+	}
+	
+	/**
+	 * Insert claimed messages again with their ids and arrival times. Messages of a queue which was
+	 * deleted in the meantime are dropped. All messages are inserted in one transaction
+	 * @param messages
+	 * @return number of messages inserted
+	 * @throws SQLException if the messages could not be inserted, none of them is inserted then
+	 */
+	public int releaseMessages(List<StoredMessage> messages) throws SQLException {
+		
+		String sqlQuery = "INSERT INTO mps_message (m_message_id, m_sender_id, m_receiver_id, m_queue_id, m_message_body, m_arrival_time) "
+				+ "SELECT ?, ?, ?, ?, ?, ? WHERE EXISTS (SELECT 1 FROM mps_queue WHERE q_queue_id = ?)";
+				
+		if (config.DEBUG) {
+			System.out.println(sqlQuery);
+		}
+		
+		Connection dbConnection = null;
+		PreparedStatement pstmt = null;
+		
+		// A statement which threw is not reused
+		boolean failed = true;
+		
+		int inserted = 0;
+		
+		try {
+			
+			dbConnection = pooledDataSource.getConnection();
+			
+			// A failed release is retried, it must not leave a part of the messages behind
+			dbConnection.setAutoCommit(false);
+			
+			pstmt = statementCache.prepareStatement(dbConnection, sqlQuery);
+			
+			// One round trip for all messages
+			for (StoredMessage message : messages) {
+				
+				pstmt.setInt(1, message.messageId);
+				pstmt.setInt(2, message.senderId);
+				
+				/*
+				 * Distinguish between specific receivers and 'NULL' receiver
+				 */
+				if (message.receiverId == -1) {
+					pstmt.setNull(3, Types.INTEGER);
+				} else {
+					pstmt.setInt(3, message.receiverId);
+				}
+				
+				pstmt.setInt(4, message.queueId);
+				pstmt.setString(5, message.body);
+				pstmt.setTimestamp(6, message.arrivalTime);
+				pstmt.setInt(7, message.queueId);
+				
+				pstmt.addBatch();
+			}
+			
+			for (int count : pstmt.executeBatch()) {
+				
+				if (count > 0) {
+					inserted += count;
+				}
+			}
+			
+			dbConnection.commit();
+			dbConnection.setAutoCommit(true);
+			
+			failed = false;
+			
+		} finally {
+			
+			try {
+				
+				statementCache.release(dbConnection, sqlQuery, pstmt, failed);
+				
+				if (dbConnection != null) {
+					dbConnection.close();
+				}
+				
+			} catch (SQLException e) {
+				
+				e.printStackTrace();
+			}
+		}
+		
+		return inserted;
+	}
+	
+	/**
+	 * Delete messages by id with one statement
+	 * @param messageIds
+	 * @param count - number of ids to delete
+	 * @return ids of the messages which were deleted. Messages which were already retrieved by someone else are missing
+	 */
+	public int[] deleteMessages(int[] messageIds, int count) {
+		
+		StringBuilder sb = new StringBuilder("DELETE FROM mps_message WHERE m_message_id IN (");
+		
+		for (int i = 0; i < count; ++i) {
+			
+			if (i > 0) {
+				sb.append(',');
+			}
+			
+			sb.append('?');
+		}
+		
+		sb.append(") RETURNING m_message_id");
+		
+		if (config.DEBUG) {
+			System.out.println(sb.toString());
+		}
+		
+		String sqlQuery = sb.toString();
+		
+		Connection dbConnection = null;
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		
+		// A statement which threw is not reused
+		boolean failed = false;
+		
+		int[] deleted = new int[count];
+		int n = 0;
+		
+		try {
+			
+			dbConnection = pooledDataSource.getConnection();
+			
+			pstmt = statementCache.prepareStatement(dbConnection, sqlQuery);
+			
+			for (int i = 0; i < count; ++i) {
+				pstmt.setInt(i + 1, messageIds[i]);
+			}
+			
+			rs = pstmt.executeQuery();
+			
+			while (rs.next() && n < count) {
+				deleted[n++] = rs.getInt(1);
+			}
+			
+		} catch (SQLException e) {
+			
+			// Nothing is deleted, the messages stay in the queue
+			e.printStackTrace();
+			
+			failed = true;
+			n = 0;
+			
+		} finally {
+			
+			try {
+				
+				if (rs != null) {
+					rs.close();
+				}
+				
+				statementCache.release(dbConnection, sqlQuery, pstmt, failed);
+				
+				if (dbConnection != null) {
+					dbConnection.close();
+				}
+				
+			} catch (SQLException e) {
+				
+				e.printStackTrace();
+			}
+		}
+		
+		return Arrays.copyOf(deleted, n);
+	}
+	
+	public Response queryForQueueByReceiverId(Request req) {
+		
+		String sqlQuery = "{call get_queue_from_receiver(?,?)}";
 		
-		String sqlQuery = "{call get_queue_from_receiver(?,?)}";
-
 		if (config.DEBUG) {
 			System.out.println(sqlQuery);
 		}		
@@ -0,0 +1,327 @@
+package mps.database;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import mps.config.Config;
+import mps.request.Request;
+import mps.request.Response;
+import mps.statistics.StatisticsSource;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Group commit of MSG_SEND_REQs. The RequestHandlerThreads hand their insert to the writer
+ * thread and wait. The writer collects the inserts arriving within a short window, or until the group is full,
+ * and writes them in one transaction. Every waiting request is completed with its message id.
+ * Under heavy send load this trades a few microseconds of delay for far fewer commits and fsyncs.
+ * If the group fails, e.g. because one message is for a queue which does not exist, every insert of the
+ * group is repeated on its own so that each request gets its own answer.
+ *
+ */
+
+public class GroupCommitWriter implements Runnable, StatisticsSource {
+	
+	// An insert waiting for its group to be committed
+	private static class PendingInsert {
+		
+		private final Request request;
+		
+		private Response response;
+		
+		private final CountDownLatch done = new CountDownLatch(1);
+		
+		private PendingInsert(Request request) {
+			this.request = request;
+		}
+	}
+	
+	private Config config;
+	
+	private DataSource pooledDataSource;
+	
+	// Inserts waiting for the writer
+	private LinkedBlockingQueue<PendingInsert> pendingInserts = new LinkedBlockingQueue<PendingInsert>();
+	
+	// Time the writer waits for more inserts after the first one of a group
+	private final long windowNanos;
+	
+	private final int maxGroupSize;
+	
+	/*
+	 * STATS
+	 */
+	private AtomicLong groups = new AtomicLong(0);
+	private AtomicLong messages = new AtomicLong(0);
+	private AtomicLong fullGroups = new AtomicLong(0);
+	private AtomicLong failedGroups = new AtomicLong(0);
+	
+	// Values of the last report. The group size is reported per interval
+	private long lastGroups = 0;
+	private long lastMessages = 0;
+	/*
+	 * STATS END
+	 */
+	
+	/**
+	 * @param ds - data source of the DB connections
+	 * @param windowMicros - time to wait for more inserts after the first one of a group
+	 * @param maxGroupSize - maximum number of inserts per transaction
+	 */
+	public GroupCommitWriter(DataSource ds, int windowMicros, int maxGroupSize) {
+		
+		this.config = Config.getInstance();
+		
+		this.pooledDataSource = ds;
+		
+		this.windowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, windowMicros));
+		this.maxGroupSize = Math.max(1, maxGroupSize);
+	}
+	
+	/**
+	 * Start the writer thread
+	 */
+	public void start() {
+		
+		Thread t = new Thread(this, "GroupCommitWriter");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * Insert the message of a MSG_SEND_REQ. Blocks until its group is committed
+	 * @param req - MSG_SEND_REQ
+	 * @return Response with the message id, as DatabaseCommunication.insertMessage()
+	 */
+	public Response insert(Request req) {
+		
+		PendingInsert pending = new PendingInsert(req);
+		
+		this.pendingInserts.add(pending);
+		
+		boolean interrupted = false;
+		
+		// The request must not be answered before its message is committed
+		while (true) {
+			
+			try {
+				
+				pending.done.await();
+				break;
+				
+			} catch (InterruptedException e) {
+				
+				interrupted = true;
+			}
+		}
+		
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		
+		return pending.response;
+	}
+	
+	public void run() {
+		
+		PendingInsert[] group = new PendingInsert[this.maxGroupSize];
+		Request[] requests = new Request[this.maxGroupSize];
+		
+		while (true) {
+			
+			try {
+				
+				// Wait for the first insert of the group
+				group[0] = this.pendingInserts.take();
+				
+				int size = 1;
+				
+				long deadline = System.nanoTime() + this.windowNanos;
+				
+				// Collect the inserts arriving within the window
+				while (size < this.maxGroupSize) {
+					
+					// Take what is already waiting without blocking
+					size += drain(group, size);
+					
+					long remaining = deadline - System.nanoTime();
+					
+					if (size >= this.maxGroupSize || remaining <= 0) {
+						break;
+					}
+					
+					PendingInsert pending = this.pendingInserts.poll(remaining, TimeUnit.NANOSECONDS);
+					
+					if (pending == null) {
+						break;
+					}
+					
+					group[size++] = pending;
+				}
+				
+				for (int i = 0; i < size; ++i) {
+					requests[i] = group[i].request;
+				}
+				
+				try {
+					
+					write(group, requests, size);
+					
+				} catch (RuntimeException e) {
+					
+					e.printStackTrace();
+					
+					// The waiting requests must be answered in any case
+					for (int i = 0; i < size; ++i) {
+						
+						if (group[i].done.getCount() > 0) {
+							complete(group[i], sqlError(requests[i]));
+						}
+					}
+				}
+				
+				// Do not keep the requests, they are recycled
+				for (int i = 0; i < size; ++i) {
+					
+					group[i] = null;
+					requests[i] = null;
+				}
+				
+			} catch (InterruptedException e) {
+				
+				// Writer thread is a daemon, it ends with the middleware
+				return;
+			}
+		}
+	}
+	
+	// Move waiting inserts into the group
+	private int drain(PendingInsert[] group, int size) {
+		
+		int n = 0;
+		
+		while (size + n < this.maxGroupSize) {
+			
+			PendingInsert pending = this.pendingInserts.poll();
+			
+			if (pending == null) {
+				break;
+			}
+			
+			group[size + n++] = pending;
+		}
+		
+		return n;
+	}
+	
+	// Write a group and complete its requests
+	private void write(PendingInsert[] group, Request[] requests, int size) {
+		
+		DatabaseCommunication dbCommunication = new DatabaseCommunication(this.pooledDataSource);
+		
+		// STATS
+		long start = System.nanoTime();
+		
+		this.groups.incrementAndGet();
+		this.messages.addAndGet(size);
+		
+		if (size == this.maxGroupSize) {
+			this.fullGroups.incrementAndGet();
+		}
+		// STATS END
+		
+		try {
+			
+			int[] messageIds = dbCommunication.insertMessageGroup(requests, size);
+			
+			// STATS: every request of the group waited for the whole transaction
+			double sqlExecutionTime = new BigDecimal((System.nanoTime() - start) / 1000000.0).setScale(2, RoundingMode.HALF_UP).doubleValue();
+			
+			for (int i = 0; i < size; ++i) {
+				
+				Response rsp = new Response();
+				
+				rsp.errorType = 0; // NO_ERROR
+				rsp.requestId = requests[i].requestId;
+				rsp.requestType = requests[i].type;
+				rsp.messageId = messageIds[i];
+				rsp.retrievedMessage = "";
+				rsp.sqlExecutionTime = sqlExecutionTime;
+				
+				complete(group[i], rsp);
+			}
+			
+		} catch (SQLException e) {
+			
+			if (config.DEBUG) {
+				e.printStackTrace();
+			}
+			
+			this.failedGroups.incrementAndGet();
+			
+			// Nothing was inserted. Insert one by one, every request gets its own error
+			for (int i = 0; i < size; ++i) {
+				complete(group[i], dbCommunication.insertMessage(requests[i]));
+			}
+		}
+	}
+	
+	// Response of an insert which could not be performed
+	private static Response sqlError(Request req) {
+		
+		Response rsp = new Response();
+		
+		rsp.errorType = 1; // SQL error
+		rsp.requestId = req.requestId;
+		rsp.requestType = req.type;
+		rsp.messageId = -1;
+		rsp.retrievedMessage = "";
+		
+		return rsp;
+	}
+	
+	private static void complete(PendingInsert pending, Response rsp) {
+		
+		pending.response = rsp;
+		pending.done.countDown();
+	}
+	
+	// STATS
+	public synchronized String formatStatistics() {
+		
+		long groups = this.groups.get();
+		long messages = this.messages.get();
+		
+		long intervalGroups = groups - this.lastGroups;
+		long intervalMessages = messages - this.lastMessages;
+		
+		this.lastGroups = groups;
+		this.lastMessages = messages;
+		
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("groups=");
+		sb.append(intervalGroups);
+		sb.append(" messages=");
+		sb.append(intervalMessages);
+		sb.append(" avg_group_size=");
+		sb.append(String.format("%.2f", intervalGroups > 0 ? (double) intervalMessages / intervalGroups : 0.0));
+		sb.append(" full_groups=");
+		sb.append(this.fullGroups.get());
+		sb.append(" failed_groups=");
+		sb.append(this.failedGroups.get());
+		sb.append(" pending=");
+		sb.append(this.pendingInserts.size());
+		
+		return sb.toString();
+	}
+	// STATS END
+	
+}
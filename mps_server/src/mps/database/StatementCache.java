@@ -0,0 +1,326 @@
+package mps.database;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mps.config.Config;
+import mps.statistics.StatisticsSource;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Cache of prepared statements keyed by the physical DB connection and the SQL string.
+ * Preparing a statement costs a round trip to parse and plan it. A cached statement is reused by every
+ * request which gets the same physical connection from the pool, after a few executions the JDBC driver
+ * switches it to a server-side prepared statement and only the parameters are sent.
+ * A pooled connection handle is unwrapped to its physical connection, statements of a handle would be
+ * closed together with the handle. If the physical connection cannot be found the statement is not cached.
+ * Only the thread which checked the connection out uses its statements.
+ * Every connection keeps at most capacity statements, the least recently used one is closed first.
+ * A statement which failed is closed, the next request prepares it again.
+ *
+ */
+
+public class StatementCache implements StatisticsSource {
+	
+	// Keep only one existing instance of StatementCache
+	private static StatementCache instance = null;
+	
+	// Maximum number of statements per physical connection. 0 disables the cache
+	private final int capacity;
+	
+	// Physical connection -> SQL string -> statement, least recently used first
+	private ConcurrentHashMap<Connection, Map<String, PreparedStatement>> connections = new ConcurrentHashMap<Connection, Map<String, PreparedStatement>>();
+	
+	/*
+	 * STATS
+	 */
+	private AtomicLong hits = new AtomicLong(0);
+	private AtomicLong misses = new AtomicLong(0);
+	private AtomicLong evictions = new AtomicLong(0);
+	
+	// Values of the last report. The hit rate is reported per interval
+	private long lastHits = 0;
+	private long lastMisses = 0;
+	/*
+	 * STATS END
+	 */
+	
+	/**
+	 * @param capacity - maximum number of statements per physical connection, 0 disables the cache
+	 */
+	public StatementCache(int capacity) {
+		
+		this.capacity = Math.max(0, capacity);
+	}
+	
+	public static synchronized StatementCache getInstance() {
+		
+		if (instance == null) {
+			
+			Config config = Config.getInstance();
+			
+			instance = new StatementCache(config.statementCache ? config.statementCacheSize : 0);
+		}
+		
+		return instance;
+	}
+	
+	/**
+	 * Get a callable statement for a stored procedure call
+	 * @param connection - pooled connection handle which is checked out by the current thread
+	 * @param sql
+	 * @return cached or newly prepared statement. Hand it back with release()
+	 * @throws SQLException
+	 */
+	public CallableStatement prepareCall(Connection connection, String sql) throws SQLException {
+		
+		return (CallableStatement) prepare(connection, sql, true);
+	}
+	
+	/**
+	 * Get a prepared statement
+	 * @param connection - pooled connection handle which is checked out by the current thread
+	 * @param sql
+	 * @return cached or newly prepared statement. Hand it back with release()
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
+		
+		return prepare(connection, sql, false);
+	}
+	
+	private PreparedStatement prepare(Connection connection, String sql, boolean call) throws SQLException {
+		
+		Connection physical = this.capacity > 0 ? physicalConnection(connection) : null;
+		
+		if (physical == null) {
+			
+			this.misses.incrementAndGet();
+			
+			return call ? connection.prepareCall(sql) : connection.prepareStatement(sql);
+		}
+		
+		Map<String, PreparedStatement> statements = statements(physical);
+		
+		synchronized (statements) {
+			
+			PreparedStatement statement = statements.get(sql);
+			
+			if (statement != null) {
+				
+				this.hits.incrementAndGet();
+				return statement;
+			}
+			
+			this.misses.incrementAndGet();
+			
+			statement = call ? physical.prepareCall(sql) : physical.prepareStatement(sql);
+			
+			statements.put(sql, statement);
+			
+			return statement;
+		}
+	}
+	
+	/**
+	 * Hand a statement back after it was executed
+	 * @param connection - the connection handle it was prepared for
+	 * @param sql
+	 * @param statement - may be null
+	 * @param failed - true if executing the statement threw an exception. It is closed then
+	 */
+	public void release(Connection connection, String sql, PreparedStatement statement, boolean failed) {
+		
+		if (statement == null) {
+			return;
+		}
+		
+		try {
+			
+			Connection physical = this.capacity > 0 ? physicalConnection(connection) : null;
+			
+			if (physical == null) {
+				
+				// Not cached
+				statement.close();
+				
+			} else if (failed) {
+				
+				// The statement or the connection may be broken, prepare it again next time
+				Map<String, PreparedStatement> statements = this.connections.get(physical);
+				
+				if (statements != null) {
+					
+					synchronized (statements) {
+						
+						if (statements.get(sql) == statement) {
+							statements.remove(sql);
+						}
+					}
+				}
+				
+				statement.close();
+				
+			} else {
+				
+				statement.clearParameters();
+			}
+			
+		} catch (SQLException e) {
+			
+			e.printStackTrace();
+		}
+	}
+	
+	// Statements of a physical connection. Connections closed by the pool are forgotten as soon as a new one shows up
+	private Map<String, PreparedStatement> statements(Connection physical) throws SQLException {
+		
+		Map<String, PreparedStatement> statements = this.connections.get(physical);
+		
+		if (statements != null) {
+			return statements;
+		}
+		
+		Iterator<Map.Entry<Connection, Map<String, PreparedStatement>>> it = this.connections.entrySet().iterator();
+		
+		while (it.hasNext()) {
+			
+			if (it.next().getKey().isClosed()) {
+				it.remove();
+			}
+		}
+		
+		statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				
+				if (size() <= capacity) {
+					return false;
+				}
+				
+				evictions.incrementAndGet();
+				
+				try {
+					eldest.getValue().close();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+				
+				return true;
+			}
+		};
+		
+		Map<String, PreparedStatement> existing = this.connections.putIfAbsent(physical, statements);
+		
+		return existing != null ? existing : statements;
+	}
+	
+	/**
+	 * The connection behind a pooled connection handle. JDBC 4 handles unwrap themselves. The JDBC 3 driver
+	 * knows no unwrap(), its handles are proxies which keep the physical connection in the field "con"
+	 * @param connection
+	 * @return physical connection or null if it cannot be found
+	 */
+	private static Connection physicalConnection(Connection connection) {
+		
+		try {
+			
+			if (connection.isWrapperFor(Connection.class)) {
+				return connection.unwrap(Connection.class);
+			}
+			
+		} catch (SQLException e) {
+			// Try the proxy
+		} catch (AbstractMethodError e) {
+			// JDBC 3 driver
+		} catch (UndeclaredThrowableException e) {
+			// JDBC 3 handle forwarded the call to a JDBC 3 connection
+		}
+		
+		if (!Proxy.isProxyClass(connection.getClass())) {
+			return connection;
+		}
+		
+		try {
+			
+			InvocationHandler handler = Proxy.getInvocationHandler(connection);
+			
+			Field field = handler.getClass().getDeclaredField("con");
+			field.setAccessible(true);
+			
+			Object physical = field.get(handler);
+			
+			return physical instanceof Connection ? (Connection) physical : null;
+			
+		} catch (Exception e) {
+			
+			return null;
+		}
+	}
+	
+	// STATS
+	public long getHits() {
+		return this.hits.get();
+	}
+	
+	public long getMisses() {
+		return this.misses.get();
+	}
+	
+	public synchronized String formatStatistics() {
+		
+		long hits = this.hits.get();
+		long misses = this.misses.get();
+		
+		long intervalHits = hits - this.lastHits;
+		long intervalMisses = misses - this.lastMisses;
+		
+		this.lastHits = hits;
+		this.lastMisses = misses;
+		
+		double hitRate = intervalHits + intervalMisses > 0 ? (double) intervalHits / (intervalHits + intervalMisses) : 0.0;
+		
+		int cachedStatements = 0;
+		
+		for (Map<String, PreparedStatement> statements : this.connections.values()) {
+			
+			synchronized (statements) {
+				cachedStatements += statements.size();
+			}
+		}
+		
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("hits=");
+		sb.append(intervalHits);
+		sb.append(" misses=");
+		sb.append(intervalMisses);
+		sb.append(" hit_rate=");
+		sb.append(String.format("%.3f", hitRate));
+		sb.append(" connections=");
+		sb.append(this.connections.size());
+		sb.append(" statements=");
+		sb.append(cachedStatements);
+		sb.append(" evictions=");
+		sb.append(this.evictions.get());
+		
+		return sb.toString();
+	}
+	// STATS END
+	
+}
@@ -0,0 +1,28 @@
+package mps.database;
+
+import java.sql.Timestamp;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description A row of mps_message which was taken out of the DB, e.g. claimed by the prefetch buffer.
+ * It carries everything to insert the row again unchanged.
+ *
+ */
+
+public class StoredMessage {
+	
+	public int messageId;
+	
+	public int senderId;
+	
+	// -1 if the message has no specific receiver ('NULL' in the DB)
+	public int receiverId;
+	
+	public int queueId;
+	
+	public String body;
+	
+	public Timestamp arrivalTime;
+	
+}
@@ -0,0 +1,179 @@
+package mps.middleware;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mps.statistics.StatisticsSource;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Slab style pool of direct ByteBuffers. The SelectorThreads lease a buffer for every read
+ * and for every response and return it as soon as the data is consumed or written to the SocketChannel.
+ * Buffers are kept in a few size classes. A lease is always served by the smallest class which is large enough.
+ * Requests larger than the largest class get an unpooled heap buffer.
+ *
+ */
+
+public class BufferPool implements StatisticsSource {
+	
+	// Capacities of the size classes in bytes
+	private static final int[] SIZE_CLASSES = { 512, 2048, 8192, 65536 };
+	
+	// Free buffers of each size class
+	private Queue<ByteBuffer>[] freeBuffers;
+	
+	// Number of free buffers of each size class. Avoids the O(n) size() of the queue
+	private AtomicInteger[] freeCounts;
+	
+	// Upper bound of free buffers kept per size class
+	private int maxBuffersPerClass;
+	
+	/*
+	 * STATS
+	 */
+	// Leases served by a free buffer
+	private AtomicLong hits = new AtomicLong(0);
+	
+	// Leases which had to allocate a new buffer
+	private AtomicLong misses = new AtomicLong(0);
+	
+	// Buffers currently leased and not yet returned
+	private AtomicInteger outstanding = new AtomicInteger(0);
+	/*
+	 * STATS END
+	 */
+	
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool(int maxBuffersPerClass) {
+		
+		this.maxBuffersPerClass = maxBuffersPerClass;
+		
+		this.freeBuffers = new Queue[SIZE_CLASSES.length];
+		this.freeCounts = new AtomicInteger[SIZE_CLASSES.length];
+		
+		for (int i = 0; i < SIZE_CLASSES.length; ++i) {
+			this.freeBuffers[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			this.freeCounts[i] = new AtomicInteger(0);
+		}
+	}
+	
+	/**
+	 * Lease a cleared buffer with at least the given capacity
+	 * @param size - minimal capacity in bytes
+	 * @return ByteBuffer ready to be written
+	 */
+	public ByteBuffer lease(int size) {
+		
+		this.outstanding.incrementAndGet();
+		
+		int sizeClass = sizeClassOf(size);
+		
+		// Too large for the pool
+		if (sizeClass < 0) {
+			
+			this.misses.incrementAndGet();
+			return ByteBuffer.allocate(size);
+		}
+		
+		ByteBuffer buffer = this.freeBuffers[sizeClass].poll();
+		
+		if (buffer == null) {
+			
+			this.misses.incrementAndGet();
+			return ByteBuffer.allocateDirect(SIZE_CLASSES[sizeClass]);
+		}
+		
+		this.freeCounts[sizeClass].decrementAndGet();
+		this.hits.incrementAndGet();
+		
+		buffer.clear();
+		
+		return buffer;
+	}
+	
+	/**
+	 * Return a leased buffer to the pool. The caller must not use the buffer afterwards
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		
+		if (buffer == null) {
+			return;
+		}
+		
+		this.outstanding.decrementAndGet();
+		
+		// Unpooled buffers are left to the garbage collector
+		if (!buffer.isDirect()) {
+			return;
+		}
+		
+		int sizeClass = sizeClassOf(buffer.capacity());
+		
+		if (sizeClass < 0 || SIZE_CLASSES[sizeClass] != buffer.capacity()) {
+			return;
+		}
+		
+		// Keep the pool bounded
+		if (this.freeCounts[sizeClass].incrementAndGet() > this.maxBuffersPerClass) {
+			
+			this.freeCounts[sizeClass].decrementAndGet();
+			return;
+		}
+		
+		this.freeBuffers[sizeClass].add(buffer);
+	}
+	
+	// Index of the smallest size class which can hold size bytes, -1 if none
+	private static int sizeClassOf(int size) {
+		
+		for (int i = 0; i < SIZE_CLASSES.length; ++i) {
+			
+			if (size <= SIZE_CLASSES[i]) {
+				return i;
+			}
+		}
+		
+		return -1;
+	}
+	
+	// STATS
+	public long getHits() {
+		return this.hits.get();
+	}
+	
+	public long getMisses() {
+		return this.misses.get();
+	}
+	
+	public int getOutstanding() {
+		return this.outstanding.get();
+	}
+	
+	public String formatStatistics() {
+		
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("hits=");
+		sb.append(getHits());
+		sb.append(" misses=");
+		sb.append(getMisses());
+		sb.append(" outstanding=");
+		sb.append(getOutstanding());
+		
+		for (int i = 0; i < SIZE_CLASSES.length; ++i) {
+			sb.append(" free_");
+			sb.append(SIZE_CLASSES[i]);
+			sb.append("=");
+			sb.append(this.freeCounts[i].get());
+		}
+		
+		return sb.toString();
+	}
+	// STATS END
+	
+}
@@ -0,0 +1,359 @@
+package mps.middleware;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mps.request.Protocol;
+import mps.request.Request;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Per connection state which is attached to the SelectionKey of a client.
+ * Every request on the wire is framed by a length prefix, 4 bytes in protocol version 1
+ * and a varint in protocol version 2. The decode buffer
+ * collects the bytes read from the SocketChannel until one or more complete frames are available.
+ * A partial frame is carried over to the next read. The decode buffer is leased from the BufferPool
+ * for a read and returned as soon as no partial frame is left.
+ * Responses are queued in a lock free outbound queue. The RequestHandlerThreads enqueue,
+ * only the owning SelectorThread dequeues and writes.
+ *
+ */
+
+public class ClientSession {
+	
+	// Size of the length prefix in front of every protocol version 1 frame
+	public static final int FRAME_HEADER_SIZE = 4;
+	
+	// Upper bound of a single frame. Protects the middleware against corrupted length prefixes
+	// Protocol version 2 allows message bodies larger than 64 KB
+	public static final int MAX_FRAME_SIZE = 1 << 24;
+	
+	// Initial size of the decode buffer. Should be large enough to contain several requests
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+	
+	// Maximum number of responses flushed with one gathering write
+	private static final int MAX_GATHER_BUFFERS = 64;
+	
+	// SocketChannel of the client
+	private SocketChannel socketChannel;
+	
+	// Pool from which the decode buffer is leased
+	private BufferPool bufferPool;
+	
+	// Buffer in which data will be read from the SocketChannel. null if no partial frame is pending
+	private ByteBuffer decodeBuffer;
+	
+	// Capacity needed to hold the partial frame at the head of the decode buffer
+	private int requiredCapacity;
+	
+	// SelectorThread which owns this client
+	private SelectorThread selectorThread;
+	
+	// SelectionKey of the client. Set by the SelectorThread after registering the channel
+	private SelectionKey key;
+	
+	// Framed responses waiting to be written. Multiple producers, single consumer
+	private Queue<ByteBuffer> outboundQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+	
+	// Responses taken off the outbound queue but not yet completely written. Owned by the SelectorThread
+	// A partially written response is always at the head
+	private ByteBuffer[] writeBatch = new ByteBuffer[MAX_GATHER_BUFFERS];
+	
+	// Number of responses in the write batch
+	private int writeBatchCount = 0;
+	
+	// Set as soon as the SelectorThread was asked to add OP_WRITE for this client
+	private AtomicBoolean writeInterestPending = new AtomicBoolean(false);
+	
+	// Requests of this client which were admitted and are not yet completed
+	private AtomicInteger requestsInFlight = new AtomicInteger(0);
+	
+	// Set while OP_READ is cleared by the admission control. Only used by the SelectorThread
+	private boolean readPaused = false;
+	
+	// Set once the connection is closed. Late responses are dropped
+	private volatile boolean closed = false;
+	
+	// Negotiated protocol version, 0 until the first bytes of the connection are read
+	private int protocolVersion = 0;
+	
+	// Capabilities accepted in the protocol version 2 handshake
+	private int capabilities = 0;
+	
+	public ClientSession(SelectorThread selectorThread, SocketChannel socketChannel, BufferPool bufferPool) {
+		
+		this.selectorThread = selectorThread;
+		this.socketChannel = socketChannel;
+		this.bufferPool = bufferPool;
+		this.decodeBuffer = null;
+		this.requiredCapacity = 0;
+	}
+	
+	public SocketChannel getSocketChannel() {
+		return this.socketChannel;
+	}
+	
+	public SelectorThread getSelectorThread() {
+		return this.selectorThread;
+	}
+	
+	public SelectionKey getKey() {
+		return this.key;
+	}
+	
+	public void setKey(SelectionKey key) {
+		this.key = key;
+	}
+	
+	public Queue<ByteBuffer> getOutboundQueue() {
+		return this.outboundQueue;
+	}
+	
+	public ByteBuffer[] getWriteBatch() {
+		return this.writeBatch;
+	}
+	
+	public int getWriteBatchCount() {
+		return this.writeBatchCount;
+	}
+	
+	public void setWriteBatchCount(int writeBatchCount) {
+		this.writeBatchCount = writeBatchCount;
+	}
+	
+	public AtomicBoolean getWriteInterestPending() {
+		return this.writeInterestPending;
+	}
+	
+	public AtomicInteger getRequestsInFlight() {
+		return this.requestsInFlight;
+	}
+	
+	public boolean isReadPaused() {
+		return this.readPaused;
+	}
+	
+	public void setReadPaused(boolean readPaused) {
+		this.readPaused = readPaused;
+	}
+	
+	/**
+	 * Interest ops of this client
+	 * @param write - whether responses are pending
+	 * @return OP_READ unless reading is paused, plus OP_WRITE if requested
+	 */
+	public int interestOps(boolean write) {
+		
+		int ops = this.readPaused ? 0 : SelectionKey.OP_READ;
+		
+		if (write) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		
+		return ops;
+	}
+	
+	public boolean isClosed() {
+		return this.closed;
+	}
+	
+	public int getProtocolVersion() {
+		return this.protocolVersion;
+	}
+	
+	public int getCapabilities() {
+		return this.capabilities;
+	}
+	
+	/**
+	 * The first bytes of a connection select the protocol version. A version 1 frame starts
+	 * with the high byte of its length which is always 0. A version 2 client sends a handshake first
+	 * @param supportedCapabilities - capabilities enabled in the middleware
+	 * @return false if the handshake is not yet complete
+	 */
+	public boolean negotiate(int supportedCapabilities) {
+		
+		if (!this.decodeBuffer.hasRemaining()) {
+			return false;
+		}
+		
+		if (this.decodeBuffer.get(this.decodeBuffer.position()) != Protocol.VERSION_2) {
+			
+			this.protocolVersion = Protocol.VERSION_1;
+			return true;
+		}
+		
+		if (this.decodeBuffer.remaining() < Protocol.HANDSHAKE_SIZE) {
+			return false;
+		}
+		
+		// Consume version and capabilities of the client
+		this.decodeBuffer.get();
+		int clientCapabilities = this.decodeBuffer.get() & 0xFF;
+		
+		this.protocolVersion = Protocol.VERSION_2;
+		this.capabilities = clientCapabilities & supportedCapabilities;
+		
+		return true;
+	}
+	
+	/**
+	 * Read off the SocketChannel into the decode buffer. Afterwards the buffer is
+	 * ready to extract frames with nextFrame()
+	 * @return number of bytes read, -1 if the client shut the socket down
+	 * @throws IOException
+	 */
+	public int read() throws IOException {
+		
+		// Lease a buffer if no partial frame is carried over
+		if (this.decodeBuffer == null) {
+			this.decodeBuffer = this.bufferPool.lease(INITIAL_BUFFER_SIZE);
+		}
+		
+		int numRead = this.socketChannel.read(this.decodeBuffer);
+		
+		// Switch buffer to reading mode
+		this.decodeBuffer.flip();
+		
+		return numRead;
+	}
+	
+	/**
+	 * Copy the next complete frame from the decode buffer into the frame buffer of the request
+	 * @param request - recycled Request which receives the frame
+	 * @return false if no complete frame is available
+	 * @throws IOException if the length prefix is invalid
+	 */
+	public boolean nextFrame(Request request) throws IOException {
+		
+		int position = this.decodeBuffer.position();
+		int remaining = this.decodeBuffer.remaining();
+		
+		int headerSize;
+		int frameLength;
+		
+		if (this.protocolVersion >= Protocol.VERSION_2) {
+			
+			// Peek at the varint length prefix without consuming it
+			headerSize = 0;
+			frameLength = 0;
+			
+			while (true) {
+				
+				// Length prefix not yet complete
+				if (headerSize == remaining) {
+					return false;
+				}
+				
+				int b = this.decodeBuffer.get(position + headerSize);
+				frameLength |= (b & 0x7F) << (7 * headerSize);
+				++headerSize;
+				
+				if ((b & 0x80) == 0) {
+					break;
+				}
+				
+				if (headerSize == Protocol.MAX_VARINT_SIZE) {
+					throw new IOException("Invalid frame length prefix");
+				}
+			}
+			
+		} else {
+			
+			// Length prefix not yet complete
+			if (remaining < FRAME_HEADER_SIZE) {
+				return false;
+			}
+			
+			// Peek at the length prefix without consuming it
+			headerSize = FRAME_HEADER_SIZE;
+			frameLength = this.decodeBuffer.getInt(position);
+		}
+		
+		if (frameLength < 0 || frameLength > MAX_FRAME_SIZE) {
+			throw new IOException("Invalid frame length: " + frameLength);
+		}
+		
+		// Payload not yet complete. Remember how much space the frame needs
+		if (remaining < headerSize + frameLength) {
+			this.requiredCapacity = headerSize + frameLength;
+			return false;
+		}
+		
+		// Consume length prefix and copy the payload without an intermediate array
+		this.decodeBuffer.position(position + headerSize);
+		
+		int limit = this.decodeBuffer.limit();
+		this.decodeBuffer.limit(this.decodeBuffer.position() + frameLength);
+		
+		request.ensureFrameCapacity(frameLength);
+		request.frame.clear();
+		request.frame.put(this.decodeBuffer);
+		request.frame.flip();
+		request.protocolVersion = this.protocolVersion;
+		
+		this.decodeBuffer.limit(limit);
+		
+		this.requiredCapacity = 0;
+		
+		return true;
+	}
+	
+	/**
+	 * Carry a partial frame over to the next read and make the buffer
+	 * ready to be written again. Grows the buffer if the partial frame does not fit.
+	 * If all frames were consumed the buffer is returned to the pool
+	 */
+	public void compact() {
+		
+		if (!this.decodeBuffer.hasRemaining()) {
+			
+			this.bufferPool.release(this.decodeBuffer);
+			this.decodeBuffer = null;
+			
+		} else if (this.requiredCapacity > this.decodeBuffer.capacity()) {
+			
+			ByteBuffer largerBuffer = this.bufferPool.lease(this.requiredCapacity);
+			largerBuffer.put(this.decodeBuffer);
+			this.bufferPool.release(this.decodeBuffer);
+			this.decodeBuffer = largerBuffer;
+			
+		} else {
+			
+			this.decodeBuffer.compact();
+		}
+	}
+	
+	/**
+	 * Return the decode buffer and all responses which cannot be written anymore
+	 * to the pool when the connection is closed
+	 */
+	public void close() {
+		
+		this.closed = true;
+		
+		this.bufferPool.release(this.decodeBuffer);
+		this.decodeBuffer = null;
+		
+		for (int i = 0; i < this.writeBatchCount; ++i) {
+			this.bufferPool.release(this.writeBatch[i]);
+			this.writeBatch[i] = null;
+		}
+		
+		this.writeBatchCount = 0;
+		
+		ByteBuffer buf;
+		
+		while ((buf = this.outboundQueue.poll()) != null) {
+			this.bufferPool.release(buf);
+		}
+	}
+	
+}
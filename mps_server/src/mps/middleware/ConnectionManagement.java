@@ -1,49 +1,60 @@
 package mps.middleware;
 
+import java.io.File;
 import java.io.IOException;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
+import java.sql.SQLException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.postgresql.jdbc3.Jdbc3PoolingDataSource;
 
 import mps.config.Config;
+import mps.database.ConnectionPool;
+import mps.database.GroupCommitWriter;
+import mps.database.StatementCache;
+import mps.request.BodyCompressor;
+import mps.request.RequestPool;
+import mps.statistics.StatisticsReporter;
+import mps.statistics.StatisticsSource;
+import mps.store.InMemoryMessageStore;
+import mps.store.InsertListener;
+import mps.store.LogMessageStore;
+import mps.store.MessageStore;
+import mps.store.NegativeCacheMessageStore;
+import mps.store.PostgresMessageStore;
+import mps.store.PrefetchMessageStore;
+import mps.store.QueueRegistryMessageStore;
 
 /**
- * 
+ *
  * @author Andrin Jenal
- * @description In this version of NIO ConnectionManagement the selection thread handles all I/O tasks.
+ * @description In this version of NIO ConnectionManagement one acceptor thread accepts all new connections
+ * and hands them off to one of N SelectorThreads. Each SelectorThread handles all I/O tasks of its connections.
  * The ThreadPool maintains all RequestHandleThreads
  * For the underlying database communication a ConnectionPool is created.
+ * Admission control keeps the number of requests in the middleware below a high watermark. Past the
+ * watermark the SelectorThreads either stop reading from the busiest clients or reply with a BUSY_ERROR.
  *
  */
 
-public class ConnectionManagement implements Runnable {
+public class ConnectionManagement implements Runnable, StatisticsSource {
 	
 	/*
 	 * STATS
 	 */
-	boolean increaseNumberOfThreadsExperiment = false;
-
-	private int numberOfRequestsInSystem;
-	
-	private long timer;
-			
-	private List<ExecutorService> executors;
-	
-	private int numberOfThreadsInPool;
-	
-	private long timingForThreads;
-	
-	private int threadPoolIdx;
+	private AtomicInteger numberOfRequestsInSystem;
 	
 	/*
 	 * STATS END
@@ -58,21 +69,69 @@ public class ConnectionManagement implements Runnable {
 	
 	// Channel on which clients can connect
 	private ServerSocketChannel serverChannel;
-
-	// The selector that is monitored
-	private Selector selector;
+	
+	// Pool of direct buffers shared by all selector loops
+	private BufferPool bufferPool;
+	
+	// Recycled Request objects shared by all selector loops
+	private RequestPool requestPool;
+	
+	// Selector loops which handle the I/O of the accepted connections
+	private SelectorThread[] selectorThreads;
+	
+	// Index of the SelectorThread which gets the next accepted connection
+	private int nextSelectorThread;
 	
 	// ThreadPool with waiting threads to process incoming requests from clients
 	private ExecutorService executor;
 	
-	// A list of SendRequest instances
-	private List<SendRequest> sendRequests = new LinkedList<SendRequest>();
+	// Virtual thread mode: limits the number of RequestHandlerThreads using the DB. null in fixed mode
+	private ResizableSemaphore dbPermits;
 	
-	// Maps a SocketChannel to a list of ByteBuffer instances
-	private ConcurrentHashMap<SocketChannel, List<ByteBuffer>> pendingData = new ConcurrentHashMap<SocketChannel, List<ByteBuffer>>();
+	// Whether the RequestHandlerThreads run on virtual threads
+	private boolean virtualThreads;
+	
+	// Staged pipeline: decode, DB and encode stage indexed by RequestHandlerThread.STAGE_*. null if not staged
+	private Stage[] stages;
+	
+	/*
+	 * ADMISSION CONTROL
+	 */
+	// Requests which were admitted and are not yet completed
+	private AtomicInteger admittedRequests = new AtomicInteger(0);
+	
+	// Number of open client connections
+	private AtomicInteger openConnections = new AtomicInteger(0);
+	
+	// Clients which stopped reading because of an overload
+	private Queue<ClientSession> pausedSessions = new ConcurrentLinkedQueue<ClientSession>();
+	
+	// Past the high watermark no more requests are admitted. Below the low watermark paused clients read again
+	private int highWatermark;
+	private int lowWatermark;
+	
+	// Reply with BUSY_ERROR instead of pausing the busiest clients
+	private boolean rejectOnOverload;
+	
+	// STATS
+	private AtomicLong rejectedRequests = new AtomicLong(0);
+	private AtomicLong pausedReads = new AtomicLong(0);
+	// STATS END
 	
 	// Pooled data source for DB connections
-	private Jdbc3PoolingDataSource pooledDataSource;
+	private ConnectionPool pooledDataSource;
+	
+	// Resizes the worker pool at runtime. null if the pool has a fixed size
+	private PoolSizeController poolSizeController;
+	
+	// Parks receive requests which wait for a message. null if long polling is disabled
+	private LongPollRegistry longPollRegistry;
+	
+	// Subscriptions of the connections to queues
+	private SubscriptionRegistry subscriptionRegistry;
+	
+	// Queues and messages, in the DB, in memory or in the log
+	private MessageStore messageStore;
 	
 	/**
 	 * ConnectionManagement constructor
@@ -80,221 +139,390 @@ public class ConnectionManagement implements Runnable {
 	 * @param portNumber
 	 * @throws IOException
 	 */
-	public ConnectionManagement(InetAddress hostAddress, int portNumber, Jdbc3PoolingDataSource ds) throws IOException {
+	public ConnectionManagement(InetAddress hostAddress, int portNumber, ConnectionPool ds) throws IOException {
 		
 		// Load config class
 		config = Config.getInstance();
 		
-		// STATS		
-		this.numberOfThreadsInPool = config.numberOfThreadsInThreadPool;
-		
-		this.numberOfRequestsInSystem = 0;
-				
-		// Start measuring for increasing threadpool size
-		
-		// STATS EXPERIMENT		
-		if (increaseNumberOfThreadsExperiment) {
-			
-			this.executors = new ArrayList<ExecutorService>();
-			
-			// Prepare for initialization phase
-			this.executors.add(Executors.newFixedThreadPool(1));
-			this.executors.add(Executors.newFixedThreadPool(2));
-			this.executors.add(Executors.newFixedThreadPool(4));
-	
-			
-			// Create "dynamically" increasing list of fixed thread pool executors
-			for (int i = 1; i <= (this.numberOfThreadsInPool / 5); ++i) {
-				
-				executors.add(Executors.newFixedThreadPool(i * 5));
-			}
-			
-			this.threadPoolIdx = 0;
-	
-			this.timingForThreads = System.nanoTime();
-		}
+		// STATS
+		this.numberOfRequestsInSystem = new AtomicInteger(0);
 		// STATS END
 		
 		// Middleware host location with port
 	    this.hostAddress = hostAddress;
 	    this.portNumber = portNumber;
 	    
-	    // Initialize nio.selector. The selector is responsible for handling all arising events
-	    this.selector = this.initSelector();	
+	    // Bind the server socket. The acceptor thread blocks on it
+	    this.serverChannel = this.initServerChannel();
+	    
+	    // Initialize the buffer pool before the selector loops lease from it
+	    this.bufferPool = new BufferPool(config.maxPooledBuffersPerSizeClass);
+	    StatisticsReporter.getInstance().register("buffer_pool", this.bufferPool);
+	    
+	    // Requests are recycled as soon as they are completed. Admission control bounds the number in use
+	    this.requestPool = new RequestPool(2 * config.requestQueueHighWatermark);
+	    StatisticsReporter.getInstance().register("request_pool", this.requestPool);
+	    StatisticsReporter.getInstance().register("compression", BodyCompressor.getInstance());
+	    StatisticsReporter.getInstance().register("statement_cache", StatementCache.getInstance());
+	    
+	    // Initialize the selector loops. Each of them owns its own nio.selector
+	    this.selectorThreads = new SelectorThread[Math.max(1, config.numberOfSelectorThreads)];
+	    
+	    for (int i = 0; i < this.selectorThreads.length; ++i) {
+	    	this.selectorThreads[i] = new SelectorThread(this, i);
+	    	StatisticsReporter.getInstance().register("selector_" + i, this.selectorThreads[i]);
+	    }
+	    
+	    this.nextSelectorThread = 0;
 	    
-	    // Initialize fixed thread pool
-	    /*
-	     * Creates a thread pool that reuses a fixed number of threads operating off a shared unbounded queue. 
-	     * At any point, at most nThreads threads will be active processing tasks. If additional tasks are submitted 
-	     * when all threads are active, they will wait in the queue until a thread is available. 
-	     * If any thread terminates due to a failure during execution prior to shutdown, a new one will take its 
-	     * place if needed to execute subsequent tasks.
-	     * The threads in the pool will exist until it is explicitly shutdown.
-	     */
-	    executor = Executors.newFixedThreadPool(config.numberOfThreadsInThreadPool);
+	    // Admission control
+	    this.highWatermark = config.requestQueueHighWatermark;
+	    this.lowWatermark = Math.min(config.requestQueueLowWatermark, this.highWatermark);
+	    this.rejectOnOverload = config.overloadPolicy.equals("reject");
+	    
+	    if (config.stagedPipeline) {
+	    	
+	    	// Initialize the stages. Every stage has its own queue and threads
+	    	this.stages = new Stage[3];
+	    	this.stages[RequestHandlerThread.STAGE_DECODE] = new Stage("stage_decode", config.decodeStageThreads, 2 * this.highWatermark);
+	    	this.stages[RequestHandlerThread.STAGE_DB] = new Stage("stage_db", config.numberOfThreadsInThreadPool, 2 * this.highWatermark);
+	    	this.stages[RequestHandlerThread.STAGE_ENCODE] = new Stage("stage_encode", config.encodeStageThreads, 2 * this.highWatermark);
+	    	
+	    	for (Stage stage : this.stages) {
+	    		StatisticsReporter.getInstance().register(stage.getName(), stage);
+	    	}
+	    	
+	    } else {
+	    	
+	    	// Initialize thread pool, either fixed or one virtual thread per request
+	    	executor = this.createExecutor();
+	    }
+	    
+	    StatisticsReporter.getInstance().register("admission", this);
+	    
+	    // Messages are pushed to subscribed connections
+	    this.subscriptionRegistry = new SubscriptionRegistry();
+	    StatisticsReporter.getInstance().register("subscriptions", this.subscriptionRegistry);
+	    
+	    // Long polling
+	    if (config.longPolling) {
+	    	this.longPollRegistry = new LongPollRegistry();
+	    	StatisticsReporter.getInstance().register("long_poll", this.longPollRegistry);
+	    }
 	    
 	    // Assign DB connection data source
 	    this.pooledDataSource = ds;
+	    StatisticsReporter.getInstance().register("connection_pool", this.pooledDataSource);
+	    
+	    // Adaptive pool sizing. Resizes the worker pool and the connection pool, started once both are assigned
+	    if (config.adaptivePoolSizing) {
+	    	
+	    	this.poolSizeController = new PoolSizeController(this);
+	    	
+	    	Thread t = new Thread(this.poolSizeController, "PoolSizeController");
+	    	t.setDaemon(true);
+	    	t.start();
+	    }
+	    
+	    // Store of the queues and messages
+	    if (config.messageStore.equals("memory")) {
+	    	
+	    	InMemoryMessageStore inMemoryStore = new InMemoryMessageStore();
+	    	StatisticsReporter.getInstance().register("memory_store", inMemoryStore);
+	    	
+	    	this.messageStore = inMemoryStore;
+	    	
+	    	System.out.println("Messages are kept in memory");
+	    	
+	    } else if (config.messageStore.equals("log")) {
+	    	
+	    	// Recovers the queues and messages of the last run
+	    	LogMessageStore logStore = new LogMessageStore(new File(config.logDirectory), config.logSegmentSize, config.logForce, config.logCompactionThreshold);
+	    	logStore.startCompactor(config.logCompactionIntervalSeconds);
+	    	StatisticsReporter.getInstance().register("log_store", logStore);
+	    	
+	    	this.messageStore = logStore;
+	    	
+	    	System.out.println("Messages are kept in the log " + config.logDirectory);
+	    	
+	    } else {
+	    	
+	    	this.messageStore = new PostgresMessageStore(this.pooledDataSource);
+	    }
+	    
+	    // Group commit of inserts into the DB
+	    if (config.groupCommit && this.messageStore instanceof PostgresMessageStore) {
+	    	
+	    	GroupCommitWriter groupCommitWriter = new GroupCommitWriter(this.pooledDataSource, config.groupCommitWindowMicros, config.groupCommitMaxSize);
+	    	groupCommitWriter.start();
+	    	
+	    	StatisticsReporter.getInstance().register("group_commit", groupCommitWriter);
+	    	
+	    	// MSG_SEND_REQs of the store are committed in groups
+	    	((PostgresMessageStore) this.messageStore).setGroupCommitWriter(groupCommitWriter);
+	    }
+	    
+	    // Receive with remove from messages claimed in batches
+	    PrefetchMessageStore releasingStore = null;
+	    
+	    if (config.prefetch && this.messageStore instanceof PostgresMessageStore) {
+	    	
+	    	final PrefetchMessageStore prefetchStore = new PrefetchMessageStore((PostgresMessageStore) this.messageStore, config.prefetchBatchSize, config.prefetchLeaseMillis);
+	    	
+	    	// Released messages wake the requests waiting for them
+	    	if (this.longPollRegistry != null) {
+	    		
+	    		final LongPollRegistry registry = this.longPollRegistry;
+	    		
+	    		prefetchStore.addInsertListener(new InsertListener() {
+	    			
+	    			public void messageInserted(int senderId, int receiverId, int queueId) {
+	    				registry.messageInserted(queueId, receiverId);
+	    			}
+	    		});
+	    	}
+	    	
+	    	prefetchStore.start();
+	    	StatisticsReporter.getInstance().register("prefetch", prefetchStore);
+	    	
+	    	// Claimed messages go back to the DB when the middleware is stopped
+	    	Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+	    		
+	    		public void run() {
+	    			prefetchStore.close();
+	    		}
+	    		
+	    	}, "PrefetchRelease"));
+	    	
+	    	releasingStore = prefetchStore;
+	    	this.messageStore = prefetchStore;
+	    }
+	    
+	    // Queue creates, deletes and sends to missing queues are answered without a DB call
+	    if (config.queueRegistry && config.messageStore.equals("postgres")) {
+	    	
+	    	QueueRegistryMessageStore queueRegistryStore = new QueueRegistryMessageStore(this.messageStore, this.pooledDataSource, config.queueRegistryRefreshMillis);
+	    	
+	    	try {
+	    		queueRegistryStore.load();
+	    	} catch (SQLException e) {
+	    		// The queues are loaded with the first request for an unknown queue
+	    		System.out.println("Could not load the queues: " + e.getMessage());
+	    	}
+	    	
+	    	StatisticsReporter.getInstance().register("queue_registry", queueRegistryStore);
+	    	
+	    	this.messageStore = queueRegistryStore;
+	    }
+	    
+	    // Empty receive results are answered without a DB call. The in-memory stores need no cache
+	    if (config.negativeCache && config.messageStore.equals("postgres")) {
+	    	
+	    	NegativeCacheMessageStore negativeCacheStore = new NegativeCacheMessageStore(this.messageStore, config.negativeCacheTtlMillis);
+	    	StatisticsReporter.getInstance().register("negative_cache", negativeCacheStore);
+	    	
+	    	// Released messages invalidate the empty results
+	    	if (releasingStore != null) {
+	    		releasingStore.addInsertListener(negativeCacheStore);
+	    	}
+	    	
+	    	this.messageStore = negativeCacheStore;
+	    }
 	}
 	
 	/**
-	 * This method gets called by the RequestHandlerThread instances
-	 * as soon as they want data that should be written to the SocketChannel
-	 * to one of the clients
-	 * @param socket
-	 * @param data
+	 * Create the executor of the RequestHandlerThreads according to config.executionMode
+	 * @return ExecutorService
 	 */
-	public void send(SocketChannel socket, byte[] data) {
+	private ExecutorService createExecutor() {
 		
-		/*
-		 * Make synchronized call, since a lot of RequestHandlerThread
-		 * instances can access sendRequests concurrently
-		 */
-		synchronized(this.sendRequests) {
+		this.virtualThreads = false;
+		this.dbPermits = null;
+		
+		if (config.executionMode.equals("virtual")) {
 			
-			// Indicate we want the interest ops set for a specific SocketChannel changed
-			this.sendRequests.add(new SendRequest(socket, SelectionKey.OP_WRITE));
-	
-			// TODO pendingData is concurrent hash map. Is synchronized still necessary?
-			// Queue the data that should be written back
-			synchronized (this.pendingData) {
+			/*
+			 * One virtual thread per request. A thread blocked in a JDBC call does not block a carrier thread,
+			 * so the number of threads does not cap the concurrency anymore. Instead a semaphore sized
+			 * to the DB connection pool limits how many requests use the DB at the same time.
+			 * Virtual threads exist since Java 21, therefore the executor is looked up by reflection.
+			 */
+			try {
+				
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				
+				ExecutorService virtualExecutor = (ExecutorService) factory.invoke(null);
+				
+				this.virtualThreads = true;
+				this.dbPermits = new ResizableSemaphore(config.maxPooledConnections);
+				
+				System.out.println("RequestHandlerThreads run on virtual threads with " + config.maxPooledConnections + " DB permits");
+				
+				return virtualExecutor;
 				
-				// Get queue corresponding to the SocketChannel
-				List<ByteBuffer> queue = (List<ByteBuffer>) this.pendingData.get(socket);
+			} catch (NoSuchMethodException e) {
 				
-				if (queue == null) {
-					queue = new ArrayList<ByteBuffer>();
-					this.pendingData.put(socket, queue);
-				}
+				System.out.println("Virtual threads need Java 21. Falling back to the fixed thread pool");
 				
-				queue.add(ByteBuffer.wrap(data));
+			} catch (Exception e) {
+				
+				e.printStackTrace();
 			}
 		}
-
-		// Finally, wake up the selecting thread so it can make the required changes
-		this.selector.wakeup();
-
+		
+		/*
+		 * Creates a thread pool that reuses a fixed number of threads operating off a shared bounded queue.
+		 * At any point, at most nThreads threads will be active processing tasks. If additional tasks are submitted
+		 * when all threads are active, they will wait in the queue until a thread is available.
+		 * The admission control keeps the queue below the high watermark. Some slack is left for requests
+		 * which arrive in the same read. If the queue is full the request is rejected with a BUSY_ERROR.
+		 * The threads in the pool will exist until it is explicitly shutdown.
+		 */
+		return new ThreadPoolExecutor(config.numberOfThreadsInThreadPool, config.numberOfThreadsInThreadPool,
+				0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(2 * this.highWatermark));
 	}
-
-	// Initialize a selector, which is responsible for handling all open connections
-	private Selector initSelector() throws IOException {
+	
+	/**
+	 * Number of workers which perform DB requests. These are the threads of the DB stage,
+	 * the threads of the pool or the DB permits of the virtual thread mode
+	 * @return pool size
+	 */
+	public int getWorkerPoolSize() {
+		
+		if (this.stages != null) {
+			return this.stages[RequestHandlerThread.STAGE_DB].getPoolSize();
+		}
 		
-		// Create a new selector provider
-		Selector socketSelector = SelectorProvider.provider().openSelector();
+		if (this.dbPermits != null) {
+			return this.dbPermits.getSize();
+		}
 		
-		// Create a new non-blocking server socket channel
-		this.serverChannel = ServerSocketChannel.open();
-		serverChannel.configureBlocking(false);
+		return ((ThreadPoolExecutor) this.executor).getCorePoolSize();
+	}
+	
+	/**
+	 * Called by the PoolSizeController
+	 * @param size - new number of workers performing DB requests
+	 */
+	public void resizeWorkerPool(int size) {
+		
+		if (this.stages != null) {
+			
+			this.stages[RequestHandlerThread.STAGE_DB].resize(size);
+			
+		} else if (this.dbPermits != null) {
+			
+			this.dbPermits.resize(size);
+			
+		} else {
+			
+			PoolSizeController.resize((ThreadPoolExecutor) this.executor, size);
+		}
+	}
+	
+	/**
+	 * Called for every answered request
+	 * @param waitingTime - in milliseconds
+	 * @param dbTime - in milliseconds
+	 */
+	public void requestServed(double waitingTime, double dbTime) {
+		
+		if (this.poolSizeController != null) {
+			this.poolSizeController.record(waitingTime, dbTime);
+		}
+	}
+	
+	/**
+	 * @param stage - RequestHandlerThread.STAGE_*
+	 * @return Stage or null if the staged pipeline is disabled
+	 */
+	public Stage getStage(int stage) {
+		return this.stages != null ? this.stages[stage] : null;
+	}
+	
+	public Semaphore getDbPermits() {
+		return this.dbPermits;
+	}
+	
+	public LongPollRegistry getLongPollRegistry() {
+		return this.longPollRegistry;
+	}
+	
+	public SubscriptionRegistry getSubscriptionRegistry() {
+		return this.subscriptionRegistry;
+	}
+	
+	public MessageStore getMessageStore() {
+		return this.messageStore;
+	}
+	
+	
+	public RequestPool getRequestPool() {
+		return this.requestPool;
+	}
+	
+	public ConnectionPool getPooledDataSource() {
+		return this.pooledDataSource;
+	}
+	
+	public BufferPool getBufferPool() {
+		return this.bufferPool;
+	}
+	
+	// Initialize the blocking server socket channel on which new clients connect
+	private ServerSocketChannel initServerChannel() throws IOException {
+		
+		// Create a new blocking server socket channel
+		ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+		serverSocketChannel.configureBlocking(true);
 		
 		// Bind the server socket to the specified address and port
 		InetSocketAddress isa = new InetSocketAddress(this.hostAddress, this.portNumber);
-		serverChannel.socket().bind(isa);
-		
-		// Register the server socket channel, indicating an interest in accepting new connections
-		serverChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
+		serverSocketChannel.socket().bind(isa);
 		
-		return socketSelector;
+		return serverSocketChannel;
 	}
 	
+	/**
+	 * The acceptor loop. Starts all SelectorThreads and then hands every
+	 * accepted connection round robin to one of them
+	 */
 	public void run() {
 		
-		System.out.println("ConnectionManagement starts listening at: " + this.hostAddress + " , port: " + this.portNumber);
+		System.out.println("ConnectionManagement starts listening at: " + this.hostAddress + " , port: " + this.portNumber + " with " + this.selectorThreads.length + " selector thread(s)");
+		
+		for (SelectorThread selectorThread : this.selectorThreads) {
+			
+			Thread t = new Thread(selectorThread, "SelectorThread-" + selectorThread.getSelectorId());
+			t.start();
+		}
 		
 		while (true) {
 			
 			try {
 				
-				// Process any pending send requests
-				synchronized (this.sendRequests) {
-					
-					// Create iterator to iterate over requests
-					Iterator<SendRequest> requests = this.sendRequests.iterator();
-					
-					// If any data available, process data
-					while (requests.hasNext()) {
-						
-						// Select next request
-						SendRequest request = (SendRequest) requests.next();
-						
-						// Get the corresponding key to the SocketChannel
-						SelectionKey key = request.socket.keyFor(this.selector);
-						
-						// Change interesting ops to write (if sending request)
-						key.interestOps(request.ops);
-					}
-					
-					// Clear all sending requests
-					this.sendRequests.clear();
-				}
-				
-				// Wait for an event one of the registered channels
-				this.selector.select();
-				
-				Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
-				
-				// Iterate over the set of keys for which events are available
-				while (selectedKeys.hasNext()) {
-					
-					SelectionKey key = (SelectionKey) selectedKeys.next();
-					
-					// After processing channel remove SlectionKey instance
-					selectedKeys.remove();
-					
-					if (!key.isValid()) {
-						continue;
-					}
-		
-					// Check what event is available and deal with it
-					if (key.isAcceptable()) {
-						
-						this.accept(key);
-					
-					} else if (key.isReadable()) {
-						
-						this.read(key);
-						
-					} else if (key.isWritable()) {
-						
-						this.write(key);
-						
-					}
-					
-					// STATS
-					/*if (((System.nanoTime() - this.timer) / 1000000000) >= 5) { // IMPORTANT Update every 10 seconds
-						
-						System.out.println(System.nanoTime()/1000000000 + ":rqsts=" + this.numberOfRequestsInSystem);
-						
-						this.timer = System.nanoTime();
-					}*/
-					// STATS END
-					
-				}
-				
-				// Since selector thread is spinning. Time to write something to the log
-				// TODO STATS
+				this.accept();
 				
 			} catch (Exception e) {
 				
 				e.printStackTrace();
-			
+				
 			}
 		}
 	}
 	
 	
-	// If accept event is available register to SocketChannel
-	private void accept(SelectionKey key) throws IOException {
+	// Block until a client connects and pass the connection to the next SelectorThread
+	private void accept() throws IOException {
 		
-		// For an accept to be pending the channel must be a server socket channel.
-		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
+		// Accept the connection. The SelectorThread makes it non-blocking
+		SocketChannel socketChannel = this.serverChannel.accept();
 		
-		// Accept the connection and make it non-blocking
-		SocketChannel socketChannel = serverSocketChannel.accept();
-
-		socketChannel.configureBlocking(false);
+		SelectorThread selectorThread = this.selectorThreads[this.nextSelectorThread];
 		
-		// Register new SocketChannel with the Selector. Notify when data is waiting to be read
-		socketChannel.register(this.selector, SelectionKey.OP_READ);
+		this.nextSelectorThread = (this.nextSelectorThread + 1) % this.selectorThreads.length;
+		
+		selectorThread.register(socketChannel);
 		
 		if (config.DEBUG) {
 			System.out.println("Middleware accepted client");
@@ -302,149 +530,192 @@ public class ConnectionManagement implements Runnable {
 	}
 	
 	/**
-	 *  If a read event is available read from the SocketChannel to the ByteBuffer
-	 * @param key
-	 * @throws IOException
+	 * Called by the SelectorThreads to hand a request off to the thread pool
+	 * @param requestHandler
+	 * @return false if the bounded queue of the thread pool is full
 	 */
-	private void read(SelectionKey key) throws IOException {
-		
-		// STATS
-		this.timer = System.nanoTime();
-		// STATS END
-		
-		/**
-		 * Buffer in which data will be read from SocketChannel
-		 * Set size to 8192 bytes. Should be large enough to contain all data
-		 * of the Request object
-		 */		
-		ByteBuffer readBuffer = ByteBuffer.allocate(8192);
-		
-		SocketChannel socketChannel = (SocketChannel) key.channel();
+	public boolean execute(RequestHandlerThread requestHandler) {
 		
-		// Clear out the readBuffer to make it ready for the new data
-		readBuffer.clear();
+		// Staged pipeline: the decode stage is the entry point
+		if (this.stages != null) {
+			
+			if (!this.stages[RequestHandlerThread.STAGE_DECODE].submit(requestHandler)) {
 				
-		// Attempt to read off the SocketChannel
-		int numRead;
+				this.rejectedRequests.incrementAndGet();
+				return false;
+			}
+			
+			return true;
+		}
 		
 		try {
 			
-			// numRead indicates whether whole channel was read
-			numRead = socketChannel.read(readBuffer);
-			
-		} catch (IOException e) {
+			this.executor.execute(requestHandler);
 			
-			e.printStackTrace();
-			// If the client closed the connection, cancel
-			// the selection key and close the channel.
-			key.cancel();
-			socketChannel.close();
-			return;
+		} catch (RejectedExecutionException e) {
 			
+			this.rejectedRequests.incrementAndGet();
+			return false;
 		}
 		
-		if (numRead == -1) {
-			
-			// The client shut the socket down cleanly. Do the
-			// same from our end and cancel the channel.
-			key.channel().close();
-			key.cancel();
-			return;
-			
-		}
+		return true;
+	}
+	
+	/**
+	 * Called for a parked request after a message was inserted into its queue. The request goes
+	 * straight to the DB, it was decoded already. Never blocks, the caller is a worker itself
+	 * @param requestHandler
+	 * @return false if no worker can take the request
+	 */
+	public boolean resume(RequestHandlerThread requestHandler) {
 		
-		// STATS
-		this.numberOfRequestsInSystem += 1;		
-		double elapsedProcessingTime = (System.nanoTime() - timer) / 1000000.0; // In milliseconds
-		elapsedProcessingTime = new BigDecimal(elapsedProcessingTime).setScale(2, RoundingMode.HALF_UP).doubleValue(); // Round
-		// STATS END
-
-		// Hand the data off to a request handler from the thread pool. The ThreadPool has a inifinite long queue
-		// Initialize requestHandler to make it ready to process the data from the channel
-		RequestHandlerThread requestHandler = new RequestHandlerThread(this, socketChannel, readBuffer.array(), this.pooledDataSource, elapsedProcessingTime, System.nanoTime(), numberOfRequestsInSystem);
+		if (this.stages != null) {
+			return this.stages[RequestHandlerThread.STAGE_DB].submit(requestHandler);
+		}
 		
-		this.executor.execute(requestHandler);
-
-		/*
-		 * ExecutorService provides an internal BlockingQueue which handles the
-		 * tasks which are passed to the executor.
-		 */
-		// STATS
-		// Increase size of threadpool
-		if (increaseNumberOfThreadsExperiment) {
-			
-			if (((System.nanoTime() - this.timingForThreads) / 1000000000) >= 20) { // IMPORTANT Update every 10 seconds
+		try {
 			
-			this.threadPoolIdx = this.threadPoolIdx + 1;
+			this.executor.execute(requestHandler);
 			
-			this.timingForThreads = System.nanoTime();
+		} catch (RejectedExecutionException e) {
 			
-			//System.out.println(System.nanoTime()/1000000000 + " New index to pool size: " + this.threadPoolIdx);
-				
-			}
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * ADMISSION CONTROL
+	 */
+	
+	/**
+	 * Called by the SelectorThreads for every request before it is handed off
+	 * @param session
+	 * @return false if the request must be answered with a BUSY_ERROR
+	 */
+	public boolean admit(ClientSession session) {
+		
+		if (this.rejectOnOverload && this.admittedRequests.get() >= this.highWatermark) {
 			
-			this.executors.get(this.threadPoolIdx).execute(requestHandler);
+			this.rejectedRequests.incrementAndGet();
+			return false;
 		}
-		// STATS END
+		
+		this.admittedRequests.incrementAndGet();
+		session.getRequestsInFlight().incrementAndGet();
+		
+		return true;
 	}
 	
 	/**
-	 * Write event, writes data from the pendingData hash map to 
-	 * the corresponding SocketChannel
-	 * @param key
-	 * @throws IOException
+	 * Called by the SelectorThreads after a read. While the middleware is overloaded
+	 * clients with more requests in flight than the average client stop reading
+	 * @param session
+	 * @return true if OP_READ of the client should be cleared
 	 */
-	private void write(SelectionKey key) throws IOException {
+	public boolean shouldPause(ClientSession session) {
 		
-		// STATS
-		//timeProcessingRequestStart = System.nanoTime();
-		// STATS END
+		if (this.rejectOnOverload || session.isReadPaused()) {
+			return false;
+		}
 		
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-
-		// TODO: ConcurrentHashMap -> is "synchronized()" still necessary?
-		synchronized (this.pendingData) {
-			
-			List<ByteBuffer> queue = (List<ByteBuffer>) this.pendingData.get(socketChannel);
+		int admitted = this.admittedRequests.get();
+		
+		if (admitted < this.highWatermark) {
+			return false;
+		}
+		
+		int averageInFlight = admitted / Math.max(1, this.openConnections.get());
+		
+		return session.getRequestsInFlight().get() >= Math.max(1, averageInFlight);
+	}
 	
-			// Data is written to corresponding SocketChannel until no data left
-			while (!queue.isEmpty()) {
-				
-				// Get ByteBuffers from queue (List)
-				ByteBuffer buf = (ByteBuffer) queue.get(0);
-				
-				// Write buffers to the SocketChannel
-				socketChannel.write(buf);
-				
-				if (buf.remaining() > 0) {
-					// If SocketChannel buffer is full break
-					break;
-				}
-				
-				// After the buffer is written, remove it from the queue
-				queue.remove(0);
-				
-			}
+	/**
+	 * Remember a client which stopped reading
+	 * @param session
+	 */
+	public void pause(ClientSession session) {
 		
-			if (queue.isEmpty()) {
-				
-				// All data is written. Selector should now be switched back to wait for data
-				key.interestOps(SelectionKey.OP_READ);
-			}
+		this.pausedSessions.add(session);
+		this.pausedReads.incrementAndGet();
+		
+		// All requests may have completed in the meantime
+		if (this.admittedRequests.get() <= this.lowWatermark) {
+			this.resumePausedSessions();
 		}
+	}
+	
+	/**
+	 * Called as soon as a request is completed
+	 * @param session
+	 */
+	public void requestCompleted(ClientSession session) {
 		
-		// STATS
+		session.getRequestsInFlight().decrementAndGet();
 		
-		this.numberOfRequestsInSystem -= 1;
-
-		/*
-		numberOfResponsesSent += 1;
+		if (this.admittedRequests.decrementAndGet() <= this.lowWatermark && !this.pausedSessions.isEmpty()) {
+			this.resumePausedSessions();
+		}
+	}
+	
+	// Let all paused clients read again
+	private void resumePausedSessions() {
 		
-		timeProcessingRequestEnd = System.nanoTime();
+		ClientSession session;
 		
-		double elapsedTimeProcessing = (timeProcessingRequestEnd - timeProcessingRequestStart) / 1000000.0; // In ms
-		*/
-		// STATS END
+		while ((session = this.pausedSessions.poll()) != null) {
+			
+			session.getSelectorThread().resumeReading(session);
+		}
+	}
+	
+	public void connectionOpened() {
+		this.openConnections.incrementAndGet();
+	}
+	
+	public void connectionClosed() {
+		this.openConnections.decrementAndGet();
+	}
+	
+	// STATS
+	public String formatStatistics() {
+		
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("mode=");
+		sb.append(this.stages != null ? "staged" : this.virtualThreads ? "virtual" : "fixed");
+		
+		if (this.dbPermits != null) {
+			sb.append(" db_permits_free=");
+			sb.append(this.dbPermits.availablePermits());
+			sb.append(" db_permits_waiting=");
+			sb.append(this.dbPermits.getQueueLength());
+		}
+		
+		sb.append(" admitted=");
+		sb.append(this.admittedRequests.get());
+		sb.append(" connections=");
+		sb.append(this.openConnections.get());
+		sb.append(" paused_sessions=");
+		sb.append(this.pausedSessions.size());
+		sb.append(" paused_reads=");
+		sb.append(this.pausedReads.get());
+		sb.append(" rejected=");
+		sb.append(this.rejectedRequests.get());
+		
+		return sb.toString();
+	}
+	// STATS END
+	
+	// STATS
+	public int requestEntered() {
+		return this.numberOfRequestsInSystem.incrementAndGet();
+	}
+	
+	public int requestLeft() {
+		return this.numberOfRequestsInSystem.decrementAndGet();
 	}
+	// STATS END
 	
 }
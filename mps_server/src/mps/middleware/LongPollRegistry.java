@@ -0,0 +1,247 @@
+package mps.middleware;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mps.statistics.StatisticsSource;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Parks receive requests with a wait timeout which found an empty queue.
+ * A parked request holds neither a worker thread nor a DB connection. As soon as a message is
+ * inserted into its queue the request is resubmitted and queries the DB again, if the timeout
+ * expires first it is answered with RECORD_NOT_FOUND_ERROR.
+ * Every queue has a sequence number which is incremented by every insert. A request reads it
+ * before it queries the DB and is only parked if no insert happened in the meantime, otherwise
+ * it retries at once. That way an insert between the empty query and the parking is never lost.
+ * Only inserts through this middleware instance wake parked requests, inserts through other
+ * instances are found after the timeout.
+ *
+ */
+
+public class LongPollRegistry implements StatisticsSource {
+	
+	// Parked requests of one queue and its insert sequence number. Guarded by itself
+	private static class QueueWaiters {
+		
+		private long sequence = 0;
+		
+		private ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+	}
+	
+	// A parked request and its scheduled timeout
+	private static class Waiter {
+		
+		private RequestHandlerThread requestHandler;
+		
+		// The receiver a message must be addressed to, besides messages without receiver
+		private int receiverId;
+		
+		private ScheduledFuture<?> timeout;
+	}
+	
+	// Queue id -> parked requests
+	private ConcurrentHashMap<Integer, QueueWaiters> queues = new ConcurrentHashMap<Integer, QueueWaiters>();
+	
+	// Fires the timeouts of the parked requests
+	private ScheduledThreadPoolExecutor timer;
+	
+	/*
+	 * STATS
+	 */
+	private AtomicInteger parkedRequests = new AtomicInteger(0);
+	private AtomicLong woken = new AtomicLong(0);
+	private AtomicLong expired = new AtomicLong(0);
+	private AtomicLong retried = new AtomicLong(0);
+	/*
+	 * STATS END
+	 */
+	
+	public LongPollRegistry() {
+		
+		this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			
+			public Thread newThread(Runnable r) {
+				
+				Thread t = new Thread(r, "LongPollTimer");
+				t.setDaemon(true);
+				
+				return t;
+			}
+		});
+		
+		// Woken requests cancel their timeout, do not keep them until they would have fired
+		this.timer.setRemoveOnCancelPolicy(true);
+	}
+	
+	private QueueWaiters getQueue(int queueId) {
+		
+		QueueWaiters queue = this.queues.get(queueId);
+		
+		if (queue == null) {
+			
+			QueueWaiters newQueue = new QueueWaiters();
+			
+			queue = this.queues.putIfAbsent(queueId, newQueue);
+			
+			if (queue == null) {
+				queue = newQueue;
+			}
+		}
+		
+		return queue;
+	}
+	
+	/**
+	 * Read before the DB is queried
+	 * @param queueId
+	 * @return insert sequence number of the queue
+	 */
+	public long sequence(int queueId) {
+		
+		QueueWaiters queue = getQueue(queueId);
+		
+		synchronized (queue) {
+			return queue.sequence;
+		}
+	}
+	
+	/**
+	 * Park a request which found the queue empty. requestHandler.expire() is called after the timeout,
+	 * requestHandler.resume() after an insert into the queue. Exactly one of them is called
+	 * @param requestHandler
+	 * @param queueId
+	 * @param receiverId - id of the client which waits
+	 * @param sequence - see sequence(), read before the DB was queried
+	 * @param timeoutNanos - remaining wait time
+	 * @return false if a message was inserted since sequence was read, the DB should be queried again
+	 */
+	public boolean park(final RequestHandlerThread requestHandler, final int queueId, int receiverId, long sequence, long timeoutNanos) {
+		
+		final QueueWaiters queue = getQueue(queueId);
+		final Waiter waiter = new Waiter();
+		
+		waiter.requestHandler = requestHandler;
+		waiter.receiverId = receiverId;
+		
+		synchronized (queue) {
+			
+			if (queue.sequence != sequence) {
+				
+				this.retried.incrementAndGet();
+				return false;
+			}
+			
+			queue.waiters.add(waiter);
+			
+			waiter.timeout = this.timer.schedule(new Runnable() {
+				
+				public void run() {
+					
+					// Whoever removes the waiter owns the request
+					synchronized (queue) {
+						
+						if (!queue.waiters.remove(waiter)) {
+							return;
+						}
+					}
+					
+					parkedRequests.decrementAndGet();
+					expired.incrementAndGet();
+					
+					requestHandler.expire();
+				}
+				
+			}, timeoutNanos, TimeUnit.NANOSECONDS);
+			
+			this.parkedRequests.incrementAndGet();
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Called after a message was inserted. Resumes the parked requests the message may be for.
+	 * All of them query the DB again, those which lose the race are parked again
+	 * @param queueId
+	 * @param receiverId - receiver of the message, -1 if none
+	 */
+	public void messageInserted(int queueId, int receiverId) {
+		
+		QueueWaiters queue = this.queues.get(queueId);
+		
+		// Nobody ever waited on this queue
+		if (queue == null) {
+			return;
+		}
+		
+		List<Waiter> resumed = null;
+		
+		synchronized (queue) {
+			
+			++queue.sequence;
+			
+			Iterator<Waiter> it = queue.waiters.iterator();
+			
+			while (it.hasNext()) {
+				
+				Waiter waiter = it.next();
+				
+				if (receiverId == -1 || waiter.receiverId == receiverId) {
+					
+					it.remove();
+					
+					if (resumed == null) {
+						resumed = new ArrayList<Waiter>();
+					}
+					
+					resumed.add(waiter);
+				}
+			}
+		}
+		
+		if (resumed == null) {
+			return;
+		}
+		
+		// Outside of the lock, resubmitting may take a while
+		for (Waiter waiter : resumed) {
+			
+			waiter.timeout.cancel(false);
+			
+			this.parkedRequests.decrementAndGet();
+			this.woken.incrementAndGet();
+			
+			waiter.requestHandler.resume();
+		}
+	}
+	
+	// STATS
+	public String formatStatistics() {
+		
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("parked=");
+		sb.append(this.parkedRequests.get());
+		sb.append(" woken=");
+		sb.append(this.woken.get());
+		sb.append(" expired=");
+		sb.append(this.expired.get());
+		sb.append(" retried=");
+		sb.append(this.retried.get());
+		
+		return sb.toString();
+	}
+	// STATS END
+	
+}
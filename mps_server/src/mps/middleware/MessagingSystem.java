@@ -2,11 +2,11 @@ package mps.middleware;
 
 import java.io.IOException;
 import java.net.InetAddress;
-
-import org.postgresql.jdbc3.Jdbc3PoolingDataSource;
+import java.sql.SQLException;
 
 import mps.config.Config;
 import mps.config.ConfigFile;
+import mps.database.ConnectionPool;
 import mps.statistics.StatisticsLogger;
 
 /**
@@ -71,16 +71,19 @@ public class MessagingSystem {
 			/*
 			 * Initialize the Connection Pool for the server - Database communication
 			 */
-			final Jdbc3PoolingDataSource pooledDataSource = new Jdbc3PoolingDataSource();
-			pooledDataSource.setDataSourceName("PooledDataSource");
-			pooledDataSource.setServerName(config.DB_URL);
-			pooledDataSource.setPortNumber(config.DB_PORT);
-			pooledDataSource.setDatabaseName(config.DB_NAME);
-			pooledDataSource.setUser(config.DB_USER);
-			pooledDataSource.setPassword(config.DB_PASS);
 			// IMPORTANT: Number of pooled connections is number of threads * number of instances
-			pooledDataSource.setMaxConnections(config.maxPooledConnections);
-			pooledDataSource.setInitialConnections(config.maxPooledConnections);
+			final ConnectionPool pooledDataSource = ConnectionPool.create(config);
+			
+			// Open all connections in advance. The in-memory and log message stores need no DB
+			if (config.messageStore.equals("postgres")) {
+				
+				try {
+					pooledDataSource.fill(config.maxPooledConnections);
+				} catch (SQLException e) {
+					// Connections are opened on demand
+					System.out.println("Could not open all DB connections: " + e.getMessage());
+				}
+			}
 			
 			/**
 			 * Prepare and start ConnectionManagement
@@ -0,0 +1,217 @@
+package mps.middleware;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mps.config.Config;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Feedback controller which resizes the worker pool at runtime.
+ * Every interval it measures the throughput, the average waiting time in the queue
+ * and the average DB service time of the completed requests. The pool size is changed by
+ * hill climbing on the throughput: a step which increased the throughput is repeated,
+ * a step which decreased it is reversed. On a throughput plateau the waiting time decides,
+ * a growing queue adds workers, an empty queue removes them. The pool never shrinks below
+ * the number of requests which are in the DB at the same time according to Little's law.
+ * The connection pool follows the workers, it keeps the connections beyond the largest worker pool
+ * for the threads which use the DB besides the workers.
+ * Every decision is written to the statistics log.
+ *
+ */
+
+public class PoolSizeController implements Runnable {
+	
+	// Changes of the throughput within this fraction count as plateau
+	private static final double THROUGHPUT_TOLERANCE = 0.05;
+	
+	// On a plateau the pool grows if the waiting time exceeds this fraction of the DB time
+	private static final double WAITING_RATIO = 0.1;
+	
+	// Assign global singleton Config class
+	private static Config config;
+	
+	// Owner of the worker pool
+	private ConnectionManagement server;
+	
+	// Bounds of the pool size
+	private int minSize;
+	private int maxSize;
+	
+	// Connections of the pool which are not used by the workers
+	private int spareConnections;
+	
+	// Number of workers added or removed in one step
+	private int step;
+	
+	// Interval between two decisions in milliseconds
+	private long interval;
+	
+	// Last direction of the hill climbing, +1 grow, -1 shrink
+	private int direction = 1;
+	
+	// Throughput of the last interval in requests per second
+	private double lastThroughput = 0.0;
+	
+	/*
+	 * STATS
+	 */
+	// Completed requests and sums of their times in microseconds, reset every interval
+	private AtomicLong completedRequests = new AtomicLong(0);
+	private AtomicLong waitingTime = new AtomicLong(0);
+	private AtomicLong dbTime = new AtomicLong(0);
+	/*
+	 * STATS END
+	 */
+	
+	public PoolSizeController(ConnectionManagement server) {
+		
+		config = Config.getInstance();
+		
+		this.server = server;
+		
+		// More workers than DB connections would only wait for a connection
+		this.maxSize = Math.max(1, Math.min(config.maxWorkerThreads, config.maxPooledConnections));
+		this.minSize = Math.max(1, Math.min(config.minWorkerThreads, this.maxSize));
+		
+		this.spareConnections = Math.max(0, config.maxPooledConnections - this.maxSize);
+		
+		this.step = Math.max(1, config.poolControllerStep);
+		this.interval = config.poolControllerIntervalSeconds * 1000L;
+	}
+	
+	/**
+	 * Called for every answered request
+	 * @param waitingTime - time in the queue in milliseconds
+	 * @param dbTime - SQL execution time in milliseconds
+	 */
+	public void record(double waitingTime, double dbTime) {
+		
+		this.completedRequests.incrementAndGet();
+		this.waitingTime.addAndGet((long) (waitingTime * 1000));
+		this.dbTime.addAndGet((long) (dbTime * 1000));
+	}
+	
+	public void run() {
+		
+		while (true) {
+			
+			try {
+				
+				Thread.sleep(this.interval);
+				
+				adjust();
+				
+			} catch (InterruptedException e) {
+				
+				return;
+				
+			} catch (Exception e) {
+				
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	// Take the measurements of the last interval and resize the pool
+	private void adjust() {
+		
+		long completed = this.completedRequests.getAndSet(0);
+		double averageWaitingTime = this.waitingTime.getAndSet(0) / 1000.0 / Math.max(1, completed);
+		double averageDbTime = this.dbTime.getAndSet(0) / 1000.0 / Math.max(1, completed);
+		
+		double throughput = completed * 1000.0 / this.interval;
+		
+		int size = this.server.getWorkerPoolSize();
+		
+		// Nothing to learn from an idle interval
+		if (completed == 0) {
+			log(throughput, averageWaitingTime, averageDbTime, 0, size, size, "idle");
+			return;
+		}
+		
+		String reason;
+		
+		if (this.lastThroughput > 0 && throughput < this.lastThroughput * (1 - THROUGHPUT_TOLERANCE)) {
+			
+			// The last step hurt
+			this.direction = -this.direction;
+			reason = "reverse";
+			
+		} else if (this.lastThroughput > 0 && throughput <= this.lastThroughput * (1 + THROUGHPUT_TOLERANCE)) {
+			
+			// Plateau: let the queue decide
+			this.direction = averageWaitingTime > averageDbTime * WAITING_RATIO ? 1 : -1;
+			reason = this.direction > 0 ? "plateau_queueing" : "plateau_idle";
+			
+		} else {
+			
+			// The last step helped or this is the first measurement
+			reason = "improved";
+		}
+		
+		// Little's law: requests in the DB = throughput * DB service time
+		int littleTarget = (int) Math.ceil(throughput * averageDbTime / 1000.0);
+		
+		int newSize = clamp(size + this.direction * this.step);
+		
+		if (newSize < size && newSize < littleTarget) {
+			
+			newSize = clamp(Math.min(size, littleTarget));
+			reason = reason + "_little_floor";
+		}
+		
+		if (newSize != size) {
+			
+			// Grow the connections first, shrink them last
+			if (newSize > size) {
+				this.server.getPooledDataSource().resize(newSize + this.spareConnections);
+			}
+			
+			this.server.resizeWorkerPool(newSize);
+			
+			if (newSize < size) {
+				this.server.getPooledDataSource().resize(newSize + this.spareConnections);
+			}
+		}
+		
+		this.lastThroughput = throughput;
+		
+		log(throughput, averageWaitingTime, averageDbTime, littleTarget, size, newSize, reason);
+	}
+	
+	private int clamp(int size) {
+		return Math.max(this.minSize, Math.min(this.maxSize, size));
+	}
+	
+	// STATS
+	private void log(double throughput, double waitingTime, double dbTime, int littleTarget, int oldSize, int newSize, String reason) {
+		
+		if (Config.statisticsLog != null) {
+			Config.statisticsLog.info(String.format("pool_controller throughput=%.1f waiting_ms=%.3f db_ms=%.3f little_target=%d size=%d->%d connections=%d reason=%s",
+					throughput, waitingTime, dbTime, littleTarget, oldSize, newSize, this.server.getPooledDataSource().getMaxSize(), reason));
+		}
+	}
+	// STATS END
+	
+	/**
+	 * Resize a fixed thread pool. The core size must never exceed the maximum size
+	 * @param executor
+	 * @param size
+	 */
+	public static void resize(ThreadPoolExecutor executor, int size) {
+		
+		if (size > executor.getMaximumPoolSize()) {
+			
+			executor.setMaximumPoolSize(size);
+			executor.setCorePoolSize(size);
+			
+		} else {
+			
+			executor.setCorePoolSize(size);
+			executor.setMaximumPoolSize(size);
+		}
+	}
+	
+}
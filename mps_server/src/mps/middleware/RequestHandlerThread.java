@@ -1,20 +1,19 @@
 package mps.middleware;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UTFDataFormatException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.nio.channels.SocketChannel;
-
-import org.postgresql.jdbc3.Jdbc3PoolingDataSource;
+import java.util.concurrent.Semaphore;
 
 import mps.config.Config;
-import mps.database.DatabaseCommunication;
+import mps.middleware.SubscriptionRegistry.Subscription;
+import mps.request.Protocol;
 import mps.request.Request;
+import mps.request.RequestCodec;
 import mps.request.Response;
+import mps.request.ResponseEncoder;
+import mps.store.MessageStore;
 import mps.statistics.StatisticsFormatter;
 
 public class RequestHandlerThread implements Runnable {
@@ -38,45 +37,56 @@ public class RequestHandlerThread implements Runnable {
 	 * STATS END
 	 */
 	
-	// Remember the server instance to write data back to the SocketChannel
-	private ConnectionManagement server;
-	
-	// Remember the SocketChannel from which the data came from
-	private SocketChannel socketChannel;
+	// Remember the selector thread which writes data back to the SocketChannel
+	private SelectorThread server;
 	
-	// Store the byte[] from the client
-	private byte[] clientData;
+	// Remember the client session from which the data came from
+	private ClientSession session;
 	
-	// Desired request from the client
+	// Desired request from the client. Holds the frame until it is decoded, recycled afterwards
 	private Request clientRequest;
 	
-	// Pooled data source for DB connections
-	private Jdbc3PoolingDataSource pooledDataSource;
+	// Steps of a request in the staged pipeline
+	public static final int STAGE_DECODE = 0;
+	public static final int STAGE_DB = 1;
+	public static final int STAGE_ENCODE = 2;
+	
+	// Next step of the request in the staged pipeline
+	private int stage = STAGE_DECODE;
+	
+	// Response of the DB step which is encoded by the encode step. Answer of a parked request on timeout
+	private Response response;
+	
+	// Returned by performRequest() if the request was parked
+	private static final Response PARKED = new Response();
+	
+	// Long poll: the request is answered with RECORD_NOT_FOUND_ERROR at this time (System.nanoTime()). 0 until the first query
+	private long pollDeadline = 0;
+	
+	// Admission control: a parked request does not count as admitted anymore
+	private boolean admissionReleased = false;
 	
 	/**
 	 * Prepare RequestHandlerThread to process the client request
 	 * @param server
-	 * @param socketChannel
-	 * @param clientData
+	 * @param session
+	 * @param clientRequest - Request holding the frame read from the client
 	 * @param pTime - Processing time of selector thread
 	 * @param numOfRqsts - number of requests in system
 	 */
-	public RequestHandlerThread(ConnectionManagement server, SocketChannel socketChannel, byte[] clientData, Jdbc3PoolingDataSource ds, double selectorProcessingTime, long waitingTimeStart, int numOfRqsts) {
+	public RequestHandlerThread(SelectorThread server, ClientSession session, Request clientRequest, double selectorProcessingTime, long waitingTimeStart, int numOfRqsts) {
 		
 		// Assign global singleton Config class
 		config = Config.getInstance();
 		
 		this.server = server;
-		this.socketChannel = socketChannel;
-		this.clientData = clientData;
+		this.session = session;
+		this.clientRequest = clientRequest;
 		
 		this.processingTimeOfSelector = selectorProcessingTime;
 		this.waitingTimeStart = waitingTimeStart;
 		//this.numberOfRequestsInTheSystem = numOfRqsts;
 		
-		// Assign pooled data source
-		this.pooledDataSource = ds;
-		
 		if (config.DEBUG) {
 			System.out.println("RequestHandler: " + Thread.currentThread().getId() + " initialized");
 		}
@@ -84,38 +94,261 @@ public class RequestHandlerThread implements Runnable {
 
 	public void run() {
 		
+		if (this.server.getStage(STAGE_DB) != null) {
+			
+			runStage();
+			
+		} else {
+			
+			runAllStages();
+		}
+	}
+	
+	/**
+	 * One thread decodes, performs and answers the request
+	 */
+	private void runAllStages() {
+		
+		// Set as soon as the request is parked. It must not be touched afterwards
+		boolean parked = false;
+		
+		// Virtual thread mode: wait for a DB permit. The time counts as waiting time
+		Semaphore dbPermits = this.server.getDbPermits();
+		
+		if (dbPermits != null) {
+			dbPermits.acquireUninterruptibly();
+		}
+		
 		// Complex logic to handle requests
 		try {
 			
-			// STATS: Elapse time for processing data
-			double elapsedWaitingTime = (System.nanoTime() - this.waitingTimeStart) / 1000000.0;
-			this.elapsedWaitingTime = new BigDecimal(elapsedWaitingTime).setScale(2, RoundingMode.HALF_UP).doubleValue();
-			this.timer = System.nanoTime(); // Start stopping for processing time
+			// STATS
+			startProcessing();
 			// STATS END
 			
-			// Try to process byte[] clientData to Request object
+			// Try to decode the frame of the Request
 			processClientData();
 			
 			// If successfully deserialized the Request object process the client Request
-			processClientRequest();
+			Response rsp = performRequest();
+			
+			// The request waits for a message. Another thread answers it
+			if (rsp == PARKED) {
+				parked = true;
+				return;
+			}
+			
+			// Send response back to client
+			if (rsp != null) {
+				sendResponse(rsp);
+			}
 			
 		} catch (IOException e) {
 			// Exception failed to process the byte[]
 			e.printStackTrace();
 		
+		} finally {
+			
+			if (dbPermits != null) {
+				dbPermits.release();
+			}
+			
+			if (!parked) {
+				complete();
+			}
 		}
 	}
 	
-	private void processClientRequest() throws IOException {
+	/**
+	 * Staged pipeline: run the current step of the request on the thread of its stage
+	 * and hand the request over to the stage of the next step
+	 */
+	private void runStage() {
+		
+		// Set to false as soon as the next stage is responsible for the request
+		boolean completed = true;
 		
-		// If byte stream successfully deserialized open database connection to perform request
-		DatabaseCommunication dbCommunication = new DatabaseCommunication(this.pooledDataSource);
+		try {
+			
+			if (this.stage == STAGE_DECODE) {
+				
+				// STATS
+				startProcessing();
+				// STATS END
+				
+				processClientData();
+				
+				this.stage = STAGE_DB;
+				this.server.getStage(STAGE_DB).handOff(this);
+				completed = false;
+				
+			} else if (this.stage == STAGE_DB) {
+				
+				Response rsp = performRequest();
+				
+				if (rsp == PARKED) {
+					
+					// The request waits for a message. Another thread answers it
+					completed = false;
+					
+				} else if (rsp != null) {
+					
+					this.response = rsp;
+					
+					this.stage = STAGE_ENCODE;
+					this.server.getStage(STAGE_ENCODE).handOff(this);
+					completed = false;
+				}
+				
+			} else {
+				
+				sendResponse(this.response);
+			}
+			
+		} catch (IOException e) {
+			// Exception failed to process the byte[]
+			e.printStackTrace();
+			
+		} finally {
+			
+			// Admission control: the request leaves the middleware
+			if (completed) {
+				complete();
+			}
+		}
+	}
+	
+	// Recycle the request. Admission control: the request leaves the middleware
+	private void complete() {
+		
+		this.server.recycle(this.clientRequest);
+		
+		if (!this.admissionReleased) {
+			this.server.requestCompleted(this.session);
+		}
+		
+		// STATS: pushes and the handshake never entered, only requests leave
+		this.server.requestLeft();
+		// STATS END
+	}
+	
+	/**
+	 * LONG POLL
+	 */
+	
+	/**
+	 * Perform the request against the DB. A receive request with a wait timeout which
+	 * finds the queue empty is parked until a message is inserted or the timeout expires
+	 * @return Response, PARKED if the request was parked, null for an undefined request type
+	 * @throws IOException
+	 */
+	private Response performRequest() throws IOException {
+		
+		LongPollRegistry registry = this.server.getLongPollRegistry();
+		
+		if (registry == null || !this.clientRequest.isLongPoll()) {
+			return processClientRequest();
+		}
+		
+		if (this.pollDeadline == 0) {
+			this.pollDeadline = System.nanoTime() + Math.min(this.clientRequest.waitTimeout, config.maxLongPollTimeout) * 1000000L;
+		}
+		
+		while (true) {
+			
+			// Inserts after this point wake the request or make park() fail
+			long sequence = registry.sequence(this.clientRequest.queueId);
+			
+			Response rsp = processClientRequest();
+			
+			long remaining = this.pollDeadline - System.nanoTime();
+			
+			if (rsp == null || rsp.errorType != 2 || remaining <= 0) {
+				return rsp;
+			}
+			
+			// Answer if the timeout expires
+			this.response = rsp;
+			
+			// A parked request holds no worker and no DB connection, it does not count for the admission control either
+			if (!this.admissionReleased) {
+				this.admissionReleased = true;
+				this.server.requestCompleted(this.session);
+			}
+			
+			if (registry.park(this, this.clientRequest.queueId, this.clientRequest.senderId, sequence, remaining)) {
+				return PARKED;
+			}
+			
+			// A message was inserted in the meantime, query again
+		}
+	}
+	
+	/**
+	 * Called by the LongPollRegistry after a message was inserted into the queue of the parked request.
+	 * The request queries the DB again on a worker
+	 */
+	public void resume() {
+		
+		// STATS: the parked time does not count as waiting time for a worker
+		this.waitingTimeStart = System.nanoTime();
+		
+		if (!this.server.resume(this)) {
+			
+			// No worker available, answer as if the timeout expired. The client polls again
+			expire();
+		}
+	}
+	
+	/**
+	 * Called by the LongPollRegistry if no message arrived within the wait timeout.
+	 * Answers with the RECORD_NOT_FOUND_ERROR of the last query
+	 */
+	public void expire() {
+		
+		try {
+			
+			// STATS: the parked time does not count as processing time
+			this.timer = System.nanoTime();
+			this.response.sqlExecutionTime = 0;
+			
+			sendResponse(this.response);
+			
+		} catch (IOException e) {
+			
+			e.printStackTrace();
+			
+		} finally {
+			
+			complete();
+		}
+	}
+	
+	// STATS: Waiting time ends, processing time starts
+	private void startProcessing() {
+		
+		double elapsedWaitingTime = (System.nanoTime() - this.waitingTimeStart) / 1000000.0;
+		this.elapsedWaitingTime = new BigDecimal(elapsedWaitingTime).setScale(2, RoundingMode.HALF_UP).doubleValue();
+		this.timer = System.nanoTime(); // Start stopping for processing time
+	}
+	// STATS END
+	
+	/**
+	 * Perform the request against the DB
+	 * @return Response which is sent back to the client, null for an undefined request type
+	 * @throws IOException
+	 */
+	private Response processClientRequest() throws IOException {
+		
+		// If byte stream successfully deserialized perform the request against the message store, the DB or memory
+		MessageStore store = this.server.getMessageStore();
 			
 		// In any case a response is sent back to the client
 		Response rsp;
 		/*
 		 * Request.type: MSG_SEND_REQ = 0, MSG_REC_REQ = 1, MSG_QUERY_REQ = 2, QUEUE_READ_REQ = 3, 
-		 * QUEUE_READ_WITH_REMOVE_REQ = 4, QUEUE_QUERY_REQ = 5, QUEUE_CREATE_REQ = 6, QUEUE_DEL_REQ = 7
+		 * QUEUE_READ_WITH_REMOVE_REQ = 4, QUEUE_QUERY_REQ = 5, QUEUE_CREATE_REQ = 6, QUEUE_DEL_REQ = 7,
+		 * MSG_SEND_BATCH_REQ = 8, QUEUE_READ_WITH_REMOVE_BATCH_REQ = 9, SUBSCRIBE_REQ = 10, CREDIT_REQ = 11
 		 */
 		switch (this.clientRequest.type) {
 			
@@ -123,12 +356,9 @@ public class RequestHandlerThread implements Runnable {
 				
 				/*
 				 * MSG_SEND_REQ:
-				 * Insert message into the DB
+				 * Insert message into the DB, together with the inserts of other clients if group commit is enabled
 				 */
-				rsp = dbCommunication.insertMessage(this.clientRequest);
-				
-				// Send response back to client
-				sendResponse(rsp);
+				rsp = store.insertMessage(this.clientRequest);
 								
 				break;
 		 		
@@ -138,10 +368,7 @@ public class RequestHandlerThread implements Runnable {
 				 * MSG_REC_REQ:
 				 * Retrieve a message by receiver id from the DB
 				 */
-				rsp = dbCommunication.retrieveMessageByReceiverId(this.clientRequest);
-				
-				// Send response back to client
-				sendResponse(rsp);
+				rsp = store.retrieveMessageByReceiverId(this.clientRequest);
 								
 				break;
 		
@@ -153,10 +380,7 @@ public class RequestHandlerThread implements Runnable {
 				 * QUEUE_READ_REQ:
 				 * Retrieve a message from a queue from the DB
 				 */
-				rsp = dbCommunication.retrieveMessageFromQueueById(this.clientRequest);
-				
-				// Send response back to client
-				sendResponse(rsp);
+				rsp = store.retrieveMessageFromQueueById(this.clientRequest);
 								
 				break;
 				
@@ -166,10 +390,7 @@ public class RequestHandlerThread implements Runnable {
 				 * QUEUE_READ_WITH_REMOVE_REQ:
 				 * Retrieve a message from a queue from the DB
 				 */
-				rsp = dbCommunication.retrieveMessageFromQueueByIdWithDelete(this.clientRequest);
-								
-				// Send response back to client
-				sendResponse(rsp);
+				rsp = store.retrieveMessageFromQueueByIdWithDelete(this.clientRequest);
 								
 				break;
 				
@@ -179,10 +400,7 @@ public class RequestHandlerThread implements Runnable {
 				 * QUEUE_QUERY_REQ:
 				 * Query for a queue where messages are waiting for a particular client
 				 */
-				rsp = dbCommunication.queryForQueueByReceiverId(this.clientRequest);
-				
-				// Send response back to client
-				sendResponse(rsp);
+				rsp = store.queryForQueueByReceiverId(this.clientRequest);
 				
 				break;
 				
@@ -192,10 +410,7 @@ public class RequestHandlerThread implements Runnable {
 				 * QUEUE_CREATE_REQ:
 				 * Insert queue by id into the DB
 				 */
-				rsp = dbCommunication.insertQueueById(this.clientRequest);
-				
-				// Send response back to client
-				sendResponse(rsp);
+				rsp = store.insertQueueById(this.clientRequest);
 				
 				break;
 				
@@ -205,61 +420,308 @@ public class RequestHandlerThread implements Runnable {
 				 * QUEUE_DEL_REQ:
 				 * Insert queue by id into the DB
 				 */
-				rsp = dbCommunication.deleteQueueById(this.clientRequest);
-				
-				// Send response back to client
-				sendResponse(rsp);
+				rsp = store.deleteQueueById(this.clientRequest);
 								
 				break;
+				
+			case 8:
+				
+				/*
+				 * MSG_SEND_BATCH_REQ:
+				 * Insert all messages of the batch into the DB with one statement
+				 */
+				rsp = store.insertMessages(this.clientRequest);
+				
+				break;
+				
+			case 9:
+				
+				/*
+				 * QUEUE_READ_WITH_REMOVE_BATCH_REQ:
+				 * Retrieve and remove up to maxMessages messages from a queue with one statement
+				 */
+				rsp = store.retrieveMessagesFromQueueWithDelete(this.clientRequest);
+				
+				break;
+				
+			case 10:
+				
+				/*
+				 * SUBSCRIBE_REQ:
+				 * Push the messages of a queue to this connection
+				 */
+				rsp = subscribe(store);
+				
+				break;
+				
+			case 11:
+				
+				/*
+				 * CREDIT_REQ:
+				 * Allow more messages to be pushed. Not answered
+				 */
+				grantCredits(store);
+				
+				rsp = null;
+				
+				break;
 			
 			default:
 				
 				System.out.println("Error: Cannot handle Request with undefined request type");
 				
+				rsp = null;
+				
+		}
+		
+		// Push the inserted messages to subscribers or wake the requests waiting for them
+		if (rsp != null && rsp.errorType == 0 && (this.clientRequest.type == 0 || this.clientRequest.type == 8)) {
+			messagesInserted(store, rsp);
 		}
 		
+		return rsp;
 	}
 
 	/**
-	 * Byte array is transformed to primitive types which are 
-	 * then used to create a Request object
-	 * @throws IOException
+	 * Called after messages were inserted. A message is pushed to a subscription of its queue
+	 * with credits. Otherwise it stays in the queue and the requests waiting for it are woken
+	 * @param store
+	 * @param rsp - Response of the MSG_SEND_REQ or MSG_SEND_BATCH_REQ
 	 */
-	private void processClientData() throws IOException {
-
-		// Process byte[] read from the SocketChannel with a ByteArrayInputStream
-		ByteArrayInputStream bais = new ByteArrayInputStream(clientData);
-		
-		// DataInputStream is used to retrieve primitive types from the byte[]
-		DataInputStream dis = new DataInputStream(bais);
-		
-		// Process DataInputStream and retrieve all Request attributes
-		int requestId = dis.readInt();
-		int type = dis.readInt();
-		int senderId = dis.readInt();
-		int receiverId = dis.readInt();
-		int queueId = dis.readInt();
-		String message = null;
-		
-		// If request type is SEND_MSG_REQ then retrieve the message string as well
-		if (type == 0) {
-			message = dis.readUTF();
+	private void messagesInserted(MessageStore store, Response rsp) {
+		
+		Request req = this.clientRequest;
+		
+		int count = req.type == 0 ? 1 : req.batchCount;
+		
+		// Claim a credit for every message which can be pushed
+		SubscriptionRegistry subscriptions = this.server.getSubscriptionRegistry();
+		
+		Subscription[] claimed = null;
+		int[] claimedIds = null;
+		int numberOfClaimed = 0;
+		
+		for (int i = 0; i < count; ++i) {
+			
+			Subscription subscription = subscriptions.claim(queueId(i), receiverId(i));
+			
+			// The message is only deleted if it can be pushed. Otherwise it stays in the queue
+			if (subscription != null && !canPush(subscription, message(i))) {
+				
+				subscription.addCredits(1);
+				subscription = null;
+			}
+			
+			if (subscription != null) {
+				
+				if (claimed == null) {
+					claimed = new Subscription[count];
+					claimedIds = new int[count];
+				}
+				
+				claimed[i] = subscription;
+				claimedIds[numberOfClaimed++] = messageId(rsp, i);
+			}
+		}
+		
+		// Pushed messages are removed from the queue. A message read by someone else in the meantime is not pushed
+		int[] deleted = numberOfClaimed > 0 ? store.deleteMessages(claimedIds, numberOfClaimed) : null;
+		
+		LongPollRegistry longPollRegistry = this.server.getLongPollRegistry();
+		
+		for (int i = 0; i < count; ++i) {
+			
+			if (claimed != null && claimed[i] != null) {
+				
+				if (contains(deleted, messageId(rsp, i))) {
+					
+					push(claimed[i], messageId(rsp, i), message(i));
+					continue;
+				}
+				
+				// Not pushed, the credit is still available
+				claimed[i].addCredits(1);
+			}
+			
+			if (longPollRegistry != null) {
+				longPollRegistry.messageInserted(queueId(i), receiverId(i));
+			}
+		}
+	}
+	
+	// Queue of the i-th inserted message
+	private int queueId(int i) {
+		return this.clientRequest.type == 0 ? this.clientRequest.queueId : this.clientRequest.batchQueueIds[i];
+	}
+	
+	// Receiver of the i-th inserted message
+	private int receiverId(int i) {
+		return this.clientRequest.type == 0 ? this.clientRequest.receiverId : this.clientRequest.batchReceiverIds[i];
+	}
+	
+	// Body of the i-th inserted message
+	private String message(int i) {
+		return this.clientRequest.type == 0 ? this.clientRequest.getMessage() : this.clientRequest.getBatchMessage(i);
+	}
+	
+	// Id of the i-th inserted message
+	private static int messageId(Response rsp, int i) {
+		return rsp.batchMessageIds != null ? rsp.batchMessageIds[i] : rsp.messageId;
+	}
+	
+	private static boolean contains(int[] ids, int id) {
+		
+		for (int i = 0; i < ids.length; ++i) {
+			
+			if (ids[i] == id) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * SUBSCRIPTIONS
+	 */
+	
+	/**
+	 * Subscribe the connection to the queue of the request. Messages without receiver and messages
+	 * for the receiver of the request are pushed, for the sender if no receiver is given.
+	 * Messages which are already waiting in the queue are pushed at once
+	 * @param store
+	 * @return Response acknowledging the subscription
+	 */
+	private Response subscribe(MessageStore store) {
+		
+		Request req = this.clientRequest;
+		
+		int receiverId = req.receiverId != -1 ? req.receiverId : req.senderId;
+		
+		Subscription subscription = this.server.getSubscriptionRegistry().subscribe(this.session, req.queueId, receiverId, req.requestId, req.credits);
+		
+		Response rsp = new Response();
+		rsp.errorType = 0; // NO_ERROR
+		rsp.requestId = req.requestId;
+		rsp.requestType = req.type;
+		rsp.messageId = -1;
+		rsp.retrievedMessage = "";
+		
+		pushWaitingMessages(store, subscription);
+		
+		return rsp;
+	}
+	
+	/**
+	 * Add the credits of the request to the subscription of the connection. Messages
+	 * which arrived while the subscription had no credits are pushed at once
+	 * @param store
+	 */
+	private void grantCredits(MessageStore store) {
+		
+		Subscription subscription = this.server.getSubscriptionRegistry().grantCredits(this.session, this.clientRequest.queueId, this.clientRequest.credits);
+		
+		if (subscription != null) {
+			pushWaitingMessages(store, subscription);
+		}
+	}
+	
+	// Retrieve and remove messages from the queue of the subscription as far as its credits allow
+	private void pushWaitingMessages(MessageStore store, Subscription subscription) {
+		
+		// Nothing is removed for a closed connection
+		if (subscription.session.isClosed()) {
+			return;
+		}
+		
+		int credits = subscription.takeCredits(Protocol.MAX_BATCH_SIZE);
+		
+		if (credits == 0) {
+			return;
+		}
+		
+		// Same query as a QUEUE_READ_WITH_REMOVE_BATCH_REQ of the subscribed receiver
+		Request pull = new Request();
+		pull.type = 9;
+		pull.requestId = subscription.requestId;
+		pull.senderId = subscription.receiverId;
+		pull.queueId = subscription.queueId;
+		pull.maxMessages = credits;
+		pull.protocolVersion = subscription.session.getProtocolVersion();
+		
+		Response found = store.retrieveMessagesFromQueueWithDelete(pull);
+		
+		int pushed = 0;
+		
+		if (found.batchMessageIds != null) {
+			
+			// Oldest first, the order in which they would have been pushed
+			for (int i = found.batchMessageIds.length - 1; i >= 0; --i) {
+				push(subscription, found.batchMessageIds[i], found.batchMessages[i]);
+			}
+			
+			pushed = found.batchMessageIds.length;
+		}
+		
+		subscription.addCredits(credits - pushed);
+	}
+	
+	/**
+	 * True if the message can be pushed to the subscription: the connection is open
+	 * and a client of protocol version 1 can decode the message
+	 * @param subscription
+	 * @param message
+	 */
+	private static boolean canPush(Subscription subscription, String message) {
+		
+		if (subscription.session.isClosed()) {
+			return false;
 		}
 		
-		// Create new Request object with all assigned fields
-		this.clientRequest = new Request();
-		this.clientRequest.requestId = requestId;
-		this.clientRequest.type = type;
-		this.clientRequest.senderId = senderId;
-		this.clientRequest.receiverId = receiverId;
-		this.clientRequest.queueId = queueId;
+		return ResponseEncoder.canEncode(message, subscription.session.getProtocolVersion());
+	}
+	
+	/**
+	 * Push a message to a subscription. The message is gone if the connection closed in the meantime
+	 * @param subscription
+	 * @param messageId
+	 * @param message
+	 */
+	private void push(Subscription subscription, int messageId, String message) {
+		
+		Response push = new Response();
+		push.errorType = 0; // NO_ERROR
+		push.requestId = subscription.requestId;
+		push.requestType = 12; // MSG_PUSH
+		push.messageId = messageId;
+		push.retrievedMessage = message;
 		
-		if (message != null) {
-			this.clientRequest.message = message;
+		try {
+			
+			subscription.session.getSelectorThread().send(subscription.session, push);
+			
+			this.server.getSubscriptionRegistry().pushed(1);
+			
+		} catch (IOException e) {
+			
+			// Message cannot be encoded for the client
+			e.printStackTrace();
 		}
+	}
+	
+	/**
+	 * The frame read from the SocketChannel is decoded
+	 * into the recycled Request object
+	 * @throws IOException
+	 */
+	private void processClientData() throws IOException {
+		
+		// Header is read straight from the frame buffer, the message body is decoded when the DB needs it
+		RequestCodec.decode(this.clientRequest);
+		RequestCodec.decompressBody(this.clientRequest);
 		
 		if (config.DEBUG) {
-			System.out.println("RequestHandler: " + Thread.currentThread().getId() + " received request from client: " + this.clientRequest.senderId + " : type:" + this.clientRequest.type + " request id: " + this.clientRequest.requestId + " request msg: " + this.clientRequest.message);
+			System.out.println("RequestHandler: " + Thread.currentThread().getId() + " received request from client: " + this.clientRequest.senderId + " : type:" + this.clientRequest.type + " request id: " + this.clientRequest.requestId + " request msg: " + this.clientRequest.getMessage());
 		}
 	}
 	
@@ -271,30 +733,27 @@ public class RequestHandlerThread implements Runnable {
 	 */
 	public void sendResponse(Response response) throws IOException {
 		
-		// Prepare ByteArrayOutputStream to write data to the ByteBuffer
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		
-		// DataInputStream is used to write primitive types from to the buffer
-		DataOutputStream dos = new DataOutputStream(baos);
-		
-		// Process DataInputStream and write all Response attributes
-		dos.writeInt(response.errorType);
-		dos.writeInt(response.requestId);
-		dos.writeInt(response.requestType);
-		dos.writeInt(response.messageId);
-		dos.writeUTF(response.retrievedMessage);
-		
-		// Flush written data to the stream
-		dos.flush();
-		
-		// Get byte[] from ByteArrayOutputStream
-		byte[] data = baos.toByteArray();	
-		
 		/*
-		 *  Send data back to the selector thread which
-		 *  writes data to the corresponding SocketChannel
+		 *  Encode the response into a pooled buffer and queue it at the
+		 *  selector thread which writes data to the corresponding SocketChannel
 		 */
-		this.server.send(socketChannel, data);
+		try {
+			
+			this.server.send(this.session, response);
+			
+		} catch (UTFDataFormatException e) {
+			
+			// Too long for protocol version 1. The stores check this before they remove a message
+			Response tooLong = new Response();
+			tooLong.errorType = 5; // MESSAGE_TOO_LONG_ERROR
+			tooLong.requestId = response.requestId;
+			tooLong.requestType = response.requestType;
+			tooLong.messageId = -1;
+			tooLong.retrievedMessage = "";
+			tooLong.sqlExecutionTime = response.sqlExecutionTime;
+			
+			this.server.send(this.session, tooLong);
+		}
 		
 		
 		// STATS: Elapsed time to process data		
@@ -307,6 +766,9 @@ public class RequestHandlerThread implements Runnable {
 		
 		// Write to the log
 		Config.statisticsLog.info(StatisticsFormatter.formatLogRecord(this.clientRequest.senderId, this.clientRequest.requestId, elapsedProcessingTime, response.sqlExecutionTime, this.processingTimeOfSelector, this.elapsedWaitingTime));
+		
+		// Feedback for the adaptive pool sizing
+		this.server.requestServed(this.elapsedWaitingTime, response.sqlExecutionTime);
 		// STATS END		
 	}
 	
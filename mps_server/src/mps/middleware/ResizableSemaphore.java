@@ -0,0 +1,50 @@
+package mps.middleware;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Semaphore whose number of permits can be changed at runtime.
+ * Used for the DB permits of the virtual thread mode which are sized by the PoolSizeController.
+ * Shrinking takes effect as soon as the surplus permits are released.
+ *
+ */
+
+public class ResizableSemaphore extends Semaphore {
+	
+	private static final long serialVersionUID = 1L;
+	
+	// Current number of permits
+	private int size;
+	
+	public ResizableSemaphore(int permits) {
+		
+		super(permits);
+		
+		this.size = permits;
+	}
+	
+	public synchronized int getSize() {
+		return this.size;
+	}
+	
+	/**
+	 * Change the number of permits
+	 * @param permits
+	 */
+	public synchronized void resize(int permits) {
+		
+		if (permits > this.size) {
+			
+			release(permits - this.size);
+			
+		} else if (permits < this.size) {
+			
+			reducePermits(this.size - permits);
+		}
+		
+		this.size = permits;
+	}
+	
+}
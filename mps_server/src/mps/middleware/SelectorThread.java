@@ -0,0 +1,735 @@
+package mps.middleware;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import mps.config.Config;
+import mps.request.BodyCompressor;
+import mps.request.BodyCompressor.CompressedBody;
+import mps.request.Protocol;
+import mps.request.Request;
+import mps.request.RequestCodec;
+import mps.request.RequestPool;
+import mps.request.Response;
+import mps.request.ResponseEncoder;
+import mps.statistics.StatisticsSource;
+import mps.store.MessageStore;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description One selector loop of the middleware. The acceptor thread in ConnectionManagement
+ * hands every new SocketChannel to one of the SelectorThreads. From then on the SelectorThread owns
+ * all reads, writes and interest op changes of this connection.
+ * RequestHandlerThreads enqueue responses without taking a lock. The selector is woken up
+ * at most once per select cycle.
+ *
+ */
+
+public class SelectorThread implements Runnable, StatisticsSource {
+	
+	/*
+	 * STATS
+	 */
+	private long timer;
+	
+	// Number of gathering writes and of responses flushed with them
+	private volatile long writeCalls;
+	private volatile long responsesWritten;
+	/*
+	 * STATS END
+	 */
+	
+	// Assign global singleton Config class
+	private static Config config;
+	
+	// Capabilities offered to protocol version 2 clients
+	private int supportedCapabilities;
+	
+	// Index of this selector loop. Used to name the thread
+	private int selectorId;
+	
+	// The ConnectionManagement which hands off requests to the thread pool
+	private ConnectionManagement server;
+	
+	// The selector that is monitored
+	private Selector selector;
+	
+	// Pool of the buffers used for reads and responses
+	private BufferPool bufferPool;
+	
+	// Newly accepted channels which have to be registered with the selector
+	private Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<SocketChannel>();
+	
+	// Clients which have new responses and need OP_WRITE
+	private Queue<ClientSession> pendingWriteInterest = new ConcurrentLinkedQueue<ClientSession>();
+	
+	// Clients whose reading was paused by the admission control and may read again
+	private Queue<ClientSession> pendingReadResume = new ConcurrentLinkedQueue<ClientSession>();
+	
+	// Set as soon as a wakeup of the selector was requested in the current select cycle
+	private AtomicBoolean wakeupPending = new AtomicBoolean(false);
+	
+	/**
+	 * SelectorThread constructor
+	 * @param server
+	 * @param selectorId
+	 * @throws IOException
+	 */
+	public SelectorThread(ConnectionManagement server, int selectorId) throws IOException {
+		
+		// Load config class
+		config = Config.getInstance();
+		
+		// Capabilities offered to protocol version 2 clients
+		this.supportedCapabilities = Protocol.SERVER_CAPABILITIES;
+		
+		if (!config.compression) {
+			this.supportedCapabilities &= ~Protocol.CAP_COMPRESSION;
+		}
+		
+		this.server = server;
+		this.selectorId = selectorId;
+		this.bufferPool = server.getBufferPool();
+		
+		// Initialize nio.selector. The selector is responsible for handling all arising events
+		this.selector = SelectorProvider.provider().openSelector();
+	}
+	
+	public int getSelectorId() {
+		return this.selectorId;
+	}
+	
+	/**
+	 * This method gets called by the acceptor thread. The channel is registered
+	 * by the selecting thread itself, since register() blocks while a select() is in progress
+	 * @param socketChannel
+	 */
+	public void register(SocketChannel socketChannel) {
+		
+		this.pendingRegistrations.add(socketChannel);
+		
+		// Wake up the selecting thread so it can register the channel
+		this.wakeup();
+	}
+	
+	/**
+	 * This method gets called by the RequestHandlerThread instances
+	 * as soon as they want data that should be written to the SocketChannel
+	 * to one of the clients
+	 * @param session
+	 * @param response
+	 * @throws IOException if the message cannot be encoded
+	 */
+	public void send(ClientSession session, Response response) throws IOException {
+		
+		// The size of the frame is known ahead, the response is encoded straight into a pooled buffer
+		// The buffer is returned to the pool after it was written
+		int version = session.getProtocolVersion();
+		int bodyLength = ResponseEncoder.bodyLength(response, version);
+		int batchLength = ResponseEncoder.batchLength(response, version);
+		
+		ByteBuffer frame = null;
+		
+		// Large bodies are compressed if the client accepted compression
+		if ((session.getCapabilities() & Protocol.CAP_COMPRESSION) != 0 && bodyLength >= config.compressionThreshold) {
+			
+			CompressedBody body = BodyCompressor.getInstance().compress(ResponseEncoder.message(response), bodyLength);
+			
+			if (body != null) {
+				
+				response.flags |= Protocol.FLAG_COMPRESSED;
+				
+				try {
+					
+					frame = this.bufferPool.lease(ResponseEncoder.frameLength(response, body, batchLength));
+					ResponseEncoder.encode(response, body, batchLength, frame);
+					
+				} finally {
+					
+					// The compressed body is copied into the frame
+					BodyCompressor.getInstance().release(body);
+				}
+			}
+		}
+		
+		if (frame == null) {
+			
+			frame = this.bufferPool.lease(ResponseEncoder.frameLength(response, bodyLength, batchLength, version));
+			ResponseEncoder.encode(response, bodyLength, batchLength, version, frame);
+		}
+		
+		frame.flip();
+		
+		this.enqueue(session, frame);
+	}
+	
+	/**
+	 * Reply to the protocol version 2 handshake of a client with the
+	 * version and the accepted capabilities
+	 * @param session
+	 */
+	private void sendHandshake(ClientSession session) {
+		
+		ByteBuffer reply = this.bufferPool.lease(Protocol.HANDSHAKE_SIZE);
+		reply.put((byte) session.getProtocolVersion());
+		reply.put((byte) session.getCapabilities());
+		reply.flip();
+		
+		this.enqueue(session, reply);
+	}
+	
+	/**
+	 * Queue data which is written to the SocketChannel of the client
+	 * @param session
+	 * @param frame - leased buffer which is returned to the pool after it was written
+	 */
+	private void enqueue(ClientSession session, ByteBuffer frame) {
+		
+		// The client is gone. Nothing to write
+		if (session.isClosed()) {
+			this.bufferPool.release(frame);
+			return;
+		}
+		
+		// Queue the data that should be written back
+		session.getOutboundQueue().add(frame);
+		
+		// The session closed while the data was queued, close() may have drained the queue before the add
+		if (session.isClosed()) {
+			
+			ByteBuffer queued;
+			
+			while ((queued = session.getOutboundQueue().poll()) != null) {
+				this.bufferPool.release(queued);
+			}
+			
+			return;
+		}
+		
+		// Only the first response since the last write needs to change the interest ops
+		if (session.getWriteInterestPending().compareAndSet(false, true)) {
+			
+			this.pendingWriteInterest.add(session);
+			
+			// Finally, wake up the selecting thread so it can make the required changes
+			this.wakeup();
+		}
+	}
+	
+	/**
+	 * Called by ConnectionManagement as soon as the middleware left the overload.
+	 * The selecting thread adds OP_READ again
+	 * @param session
+	 */
+	public void resumeReading(ClientSession session) {
+		
+		this.pendingReadResume.add(session);
+		this.wakeup();
+	}
+	
+	/**
+	 * Wake up the selecting thread. Coalesces concurrent calls so that
+	 * selector.wakeup() is called at most once per select cycle
+	 */
+	private void wakeup() {
+		
+		if (this.wakeupPending.compareAndSet(false, true)) {
+			this.selector.wakeup();
+		}
+	}
+	
+	public void run() {
+		
+		System.out.println("SelectorThread " + this.selectorId + " started");
+		
+		while (true) {
+			
+			try {
+				
+				// Register all channels handed over by the acceptor thread
+				SocketChannel newChannel;
+				
+				while ((newChannel = this.pendingRegistrations.poll()) != null) {
+					
+					this.registerChannel(newChannel);
+				}
+				
+				// Add OP_WRITE for all clients with new responses
+				ClientSession session;
+				
+				while ((session = this.pendingWriteInterest.poll()) != null) {
+					
+					SelectionKey key = session.getKey();
+					
+					if (key.isValid()) {
+						// Keep reading while responses are pending. Clients may pipeline requests
+						key.interestOps(session.interestOps(true));
+					}
+				}
+				
+				// Add OP_READ for all clients which were paused by the admission control
+				while ((session = this.pendingReadResume.poll()) != null) {
+					
+					SelectionKey key = session.getKey();
+					
+					session.setReadPaused(false);
+					
+					if (key.isValid()) {
+						key.interestOps(session.interestOps(session.getWriteInterestPending().get()));
+					}
+				}
+				
+				// Wait for an event one of the registered channels
+				this.selector.select();
+				
+				// Wakeups requested from now on belong to the next select cycle
+				this.wakeupPending.set(false);
+				
+				Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+				
+				// Iterate over the set of keys for which events are available
+				while (selectedKeys.hasNext()) {
+					
+					SelectionKey key = selectedKeys.next();
+					
+					// After processing channel remove SlectionKey instance
+					selectedKeys.remove();
+					
+					if (!key.isValid()) {
+						continue;
+					}
+					
+					// Check what event is available and deal with it
+					if (key.isReadable()) {
+						
+						this.read(key);
+						
+					}
+					
+					if (key.isValid() && key.isWritable()) {
+						
+						this.write(key);
+						
+					}
+				}
+				
+			} catch (Exception e) {
+				
+				e.printStackTrace();
+				
+			}
+		}
+	}
+	
+	// Register a newly accepted SocketChannel with the selector of this thread
+	private void registerChannel(SocketChannel socketChannel) throws IOException {
+		
+		socketChannel.configureBlocking(false);
+		
+		// Register new SocketChannel with the Selector. Notify when data is waiting to be read
+		// The ClientSession keeps the partially read frames and the pending responses of this client
+		ClientSession session = new ClientSession(this, socketChannel, this.bufferPool);
+		
+		SelectionKey key = socketChannel.register(this.selector, SelectionKey.OP_READ, session);
+		
+		session.setKey(key);
+		
+		this.server.connectionOpened();
+		
+		if (config.DEBUG) {
+			System.out.println("SelectorThread " + this.selectorId + " registered client");
+		}
+	}
+	
+	/**
+	 * Close the connection of a client and return all its buffers to the pool
+	 * @param key
+	 * @throws IOException
+	 */
+	private void close(SelectionKey key) throws IOException {
+		
+		SocketChannel socketChannel = (SocketChannel) key.channel();
+		
+		key.cancel();
+		socketChannel.close();
+		
+		((ClientSession) key.attachment()).close();
+		
+		// No more messages are pushed to the connection
+		this.server.getSubscriptionRegistry().unsubscribeAll((ClientSession) key.attachment());
+		
+		this.server.connectionClosed();
+	}
+	
+	/**
+	 *  If a read event is available read from the SocketChannel to the ByteBuffer
+	 * @param key
+	 * @throws IOException
+	 */
+	private void read(SelectionKey key) throws IOException {
+		
+		// STATS
+		this.timer = System.nanoTime();
+		// STATS END
+		
+		// Every client has its own decode buffer which may still contain a partial frame
+		ClientSession session = (ClientSession) key.attachment();
+		
+		// Attempt to read off the SocketChannel
+		int numRead;
+		
+		try {
+			
+			// numRead indicates whether whole channel was read
+			numRead = session.read();
+			
+		} catch (IOException e) {
+			
+			e.printStackTrace();
+			// If the client closed the connection, cancel
+			// the selection key and close the channel.
+			this.close(key);
+			return;
+			
+		}
+		
+		if (numRead == -1) {
+			
+			// The client shut the socket down cleanly. Do the
+			// same from our end and cancel the channel.
+			this.close(key);
+			return;
+			
+		}
+		
+		// The first bytes of a connection select the protocol version
+		if (session.getProtocolVersion() == 0) {
+			
+			if (!session.negotiate(this.supportedCapabilities)) {
+				
+				// Handshake not yet complete
+				session.compact();
+				return;
+			}
+			
+			if (session.getProtocolVersion() >= Protocol.VERSION_2) {
+				this.sendHandshake(session);
+			}
+		}
+		
+		/*
+		 * One read may contain zero, one or many complete requests.
+		 * Hand every complete frame off to its own request handler
+		 */
+		RequestPool requestPool = this.server.getRequestPool();
+		Request request = requestPool.acquire();
+		
+		try {
+			
+			while (session.nextFrame(request)) {
+				
+				dispatch(session, request);
+				
+				request = requestPool.acquire();
+			}
+			
+		} catch (IOException e) {
+			
+			// Corrupted length prefix. The stream cannot be resynchronized
+			e.printStackTrace();
+			requestPool.release(request);
+			this.close(key);
+			return;
+		}
+		
+		// No frame left for the last Request
+		requestPool.release(request);
+		
+		// Keep a partial frame for the next read
+		session.compact();
+		
+		// Admission control: stop reading from a busy client while the middleware is overloaded
+		if (this.server.shouldPause(session)) {
+			
+			session.setReadPaused(true);
+			key.interestOps(session.interestOps(session.getWriteInterestPending().get()));
+			
+			this.server.pause(session);
+		}
+	}
+	
+	/**
+	 * Hand a complete request frame off to a request handler from the thread pool
+	 * @param session
+	 * @param request - request with the complete frame, recycled after it was handled
+	 */
+	private void dispatch(ClientSession session, Request request) {
+		
+		// STATS
+		// Every request leaves the system once it is completed or answered with BUSY
+		int numberOfRequestsInSystem = this.server.requestEntered();
+		// STATS END
+		
+		// Admission control: reply immediately if the middleware is overloaded
+		if (!this.server.admit(session)) {
+			
+			this.sendBusy(session, request);
+			return;
+		}
+		
+		// STATS
+		double elapsedProcessingTime = (System.nanoTime() - timer) / 1000000.0; // In milliseconds
+		elapsedProcessingTime = new BigDecimal(elapsedProcessingTime).setScale(2, RoundingMode.HALF_UP).doubleValue(); // Round
+		// STATS END
+		
+		// Initialize requestHandler to make it ready to process the data from the channel
+		// Responses are written back through this selector thread
+		RequestHandlerThread requestHandler = new RequestHandlerThread(this, session, request, elapsedProcessingTime, System.nanoTime(), numberOfRequestsInSystem);
+		
+		// The bounded request queue is full
+		if (!this.server.execute(requestHandler)) {
+			
+			this.requestCompleted(session);
+			this.sendBusy(session, request);
+		}
+	}
+	
+	/**
+	 * Return a Request to the RequestPool as soon as it is completed
+	 * @param request
+	 */
+	public void recycle(Request request) {
+		
+		this.server.getRequestPool().release(request);
+	}
+	
+	/**
+	 * Called by the RequestHandlerThread for every answered request
+	 * @param waitingTime - in milliseconds
+	 * @param dbTime - in milliseconds
+	 */
+	public void requestServed(double waitingTime, double dbTime) {
+		
+		this.server.requestServed(waitingTime, dbTime);
+	}
+	
+	/**
+	 * @param stage - RequestHandlerThread.STAGE_*
+	 * @return Stage or null if the staged pipeline is disabled
+	 */
+	public Stage getStage(int stage) {
+		
+		return this.server.getStage(stage);
+	}
+	
+	/**
+	 * @return registry of the parked receive requests, null if long polling is disabled
+	 */
+	public LongPollRegistry getLongPollRegistry() {
+		
+		return this.server.getLongPollRegistry();
+	}
+	
+	/**
+	 * @return subscriptions of the connections to queues
+	 */
+	public SubscriptionRegistry getSubscriptionRegistry() {
+		
+		return this.server.getSubscriptionRegistry();
+	}
+	
+	/**
+	 * @return store the requests are performed against
+	 */
+	public MessageStore getMessageStore() {
+		
+		return this.server.getMessageStore();
+	}
+	
+	/**
+	 * Resubmit a parked request
+	 * @param requestHandler
+	 * @return false if no worker can take the request
+	 */
+	public boolean resume(RequestHandlerThread requestHandler) {
+		
+		return this.server.resume(requestHandler);
+	}
+	
+	/**
+	 * @return permits limiting the DB concurrency, null if the thread pool limits it
+	 */
+	public Semaphore getDbPermits() {
+		
+		return this.server.getDbPermits();
+	}
+	
+	/**
+	 * Called by the RequestHandlerThread as soon as its request is completed
+	 * @param session
+	 */
+	public void requestCompleted(ClientSession session) {
+		
+		this.server.requestCompleted(session);
+	}
+	
+	// STATS: called by the RequestHandlerThread as soon as its request left the middleware
+	public void requestLeft() {
+		
+		this.server.requestLeft();
+	}
+	// STATS END
+	
+	/**
+	 * Reply with a BUSY_ERROR without processing the request
+	 * @param session
+	 * @param request - request with the complete frame, recycled after the reply
+	 */
+	private void sendBusy(ClientSession session, Request request) {
+		
+		Response rsp = new Response();
+		rsp.errorType = 4; // BUSY_ERROR
+		rsp.messageId = -1;
+		rsp.retrievedMessage = "";
+		
+		// Only the header is needed to identify the request
+		try {
+			
+			RequestCodec.decode(request);
+			rsp.requestId = request.requestId;
+			rsp.requestType = request.type;
+			
+		} catch (IOException e) {
+			
+			// Malformed request. Reply anyway
+		}
+		
+		// The request is not processed any further
+		this.recycle(request);
+		
+		try {
+			
+			this.send(session, rsp);
+			
+		} catch (IOException e) {
+			
+			e.printStackTrace();
+		}
+		
+		// STATS
+		this.server.requestLeft();
+		// STATS END
+	}
+	
+	/**
+	 * Write event, writes data from the outbound queue of the client
+	 * to the corresponding SocketChannel. All queued responses are flushed
+	 * with gathering writes
+	 * @param key
+	 * @throws IOException
+	 */
+	private void write(SelectionKey key) throws IOException {
+		
+		ClientSession session = (ClientSession) key.attachment();
+		
+		SocketChannel socketChannel = (SocketChannel) key.channel();
+		
+		Queue<ByteBuffer> queue = session.getOutboundQueue();
+		
+		ByteBuffer[] batch = session.getWriteBatch();
+		int count = session.getWriteBatchCount();
+		
+		// Data is written to corresponding SocketChannel until no data left
+		while (true) {
+			
+			// Top up the batch behind a partially written response
+			ByteBuffer buf;
+			
+			while (count < batch.length && (buf = queue.poll()) != null) {
+				batch[count++] = buf;
+			}
+			
+			if (count == 0) {
+				break;
+			}
+			
+			// Write all buffers of the batch with one system call
+			try {
+				
+				socketChannel.write(batch, 0, count);
+				
+			} catch (IOException e) {
+				
+				// The client closed the connection while responses were pending
+				e.printStackTrace();
+				session.setWriteBatchCount(count);
+				this.close(key);
+				return;
+			}
+			
+			// STATS
+			this.writeCalls += 1;
+			// STATS END
+			
+			// Return all completely written buffers to the pool
+			int written = 0;
+			
+			while (written < count && !batch[written].hasRemaining()) {
+				
+				this.bufferPool.release(batch[written]);
+				
+				// STATS
+				this.responsesWritten += 1;
+				// STATS END
+				
+				written++;
+			}
+			
+			// Keep the partially written buffer at the head
+			System.arraycopy(batch, written, batch, 0, count - written);
+			Arrays.fill(batch, count - written, count, null);
+			count -= written;
+			
+			if (count > 0) {
+				// If SocketChannel buffer is full break
+				session.setWriteBatchCount(count);
+				return;
+			}
+		}
+		
+		session.setWriteBatchCount(0);
+		
+		// All data is written. Selector should now be switched back to wait for data
+		key.interestOps(session.interestOps(false));
+		session.getWriteInterestPending().set(false);
+		
+		// A response may have been queued after the queue was found empty
+		if (!queue.isEmpty() && session.getWriteInterestPending().compareAndSet(false, true)) {
+			key.interestOps(session.interestOps(true));
+		}
+	}
+	
+	// STATS
+	public String formatStatistics() {
+		
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("write_calls=");
+		sb.append(this.writeCalls);
+		sb.append(" responses_written=");
+		sb.append(this.responsesWritten);
+		
+		return sb.toString();
+	}
+	// STATS END
+	
+}
@@ -0,0 +1,179 @@
+package mps.middleware;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mps.statistics.StatisticsSource;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description One stage of the staged request pipeline (decode, DB, encode).
+ * A stage owns a bounded queue and a fixed number of worker threads. The SelectorThreads
+ * submit to the first stage without blocking, a stage hands a request off to the next stage
+ * and waits if the queue of the next stage is full. Queue length and service time are reported
+ * to the statistics log to find the bottleneck stage.
+ *
+ */
+
+public class Stage implements StatisticsSource {
+	
+	// Name of the stage in the statistics log
+	private String name;
+	
+	// Bounded queue of requests waiting for a worker
+	private BlockingQueue<Runnable> queue;
+	
+	// Worker threads of the stage
+	private ThreadPoolExecutor executor;
+	
+	// Start time of the task a worker is currently running
+	private ThreadLocal<long[]> taskStart = new ThreadLocal<long[]>() {
+		
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+	
+	/*
+	 * STATS
+	 */
+	private AtomicLong completedTasks = new AtomicLong(0);
+	private AtomicLong serviceTime = new AtomicLong(0); // In nanoseconds
+	private AtomicLong rejectedTasks = new AtomicLong(0);
+	
+	// Values of the last report. Service time is reported per interval
+	private long lastCompletedTasks = 0;
+	private long lastServiceTime = 0;
+	/*
+	 * STATS END
+	 */
+	
+	public Stage(String name, int numberOfThreads, int queueCapacity) {
+		
+		this.name = name;
+		
+		this.queue = new LinkedBlockingQueue<Runnable>(queueCapacity);
+		
+		this.executor = new ThreadPoolExecutor(numberOfThreads, numberOfThreads, 0L, TimeUnit.MILLISECONDS, this.queue) {
+			
+			@Override
+			protected void beforeExecute(Thread t, Runnable r) {
+				taskStart.get()[0] = System.nanoTime();
+			}
+			
+			@Override
+			protected void afterExecute(Runnable r, Throwable t) {
+				serviceTime.addAndGet(System.nanoTime() - taskStart.get()[0]);
+				completedTasks.incrementAndGet();
+			}
+		};
+		
+		// Workers must be running, handOff() puts into the queue directly
+		this.executor.prestartAllCoreThreads();
+	}
+	
+	public String getName() {
+		return this.name;
+	}
+	
+	public int getPoolSize() {
+		return this.executor.getCorePoolSize();
+	}
+	
+	/**
+	 * Change the number of worker threads
+	 * @param numberOfThreads
+	 */
+	public void resize(int numberOfThreads) {
+		
+		PoolSizeController.resize(this.executor, numberOfThreads);
+		
+		// New workers are only started for queued tasks, handOff() needs them running
+		this.executor.prestartAllCoreThreads();
+	}
+	
+	/**
+	 * Submit a task without blocking
+	 * @param task
+	 * @return false if the queue of the stage is full
+	 */
+	public boolean submit(Runnable task) {
+		
+		try {
+			
+			this.executor.execute(task);
+			
+		} catch (RejectedExecutionException e) {
+			
+			this.rejectedTasks.incrementAndGet();
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Hand a task over from the previous stage. Blocks while the queue is full,
+	 * which propagates the back pressure to the previous stage
+	 * @param task
+	 */
+	public void handOff(Runnable task) {
+		
+		boolean interrupted = false;
+		
+		while (true) {
+			
+			try {
+				
+				this.queue.put(task);
+				break;
+				
+			} catch (InterruptedException e) {
+				
+				interrupted = true;
+			}
+		}
+		
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	// STATS
+	public synchronized String formatStatistics() {
+		
+		long completed = this.completedTasks.get();
+		long service = this.serviceTime.get();
+		
+		long intervalCompleted = completed - this.lastCompletedTasks;
+		double averageServiceTime = intervalCompleted > 0 ? (service - this.lastServiceTime) / 1000000.0 / intervalCompleted : 0.0;
+		
+		this.lastCompletedTasks = completed;
+		this.lastServiceTime = service;
+		
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("threads=");
+		sb.append(this.executor.getPoolSize());
+		sb.append(" active=");
+		sb.append(this.executor.getActiveCount());
+		sb.append(" queue=");
+		sb.append(this.queue.size());
+		sb.append(" completed=");
+		sb.append(intervalCompleted);
+		sb.append(" avg_service_ms=");
+		sb.append(String.format("%.3f", averageServiceTime));
+		sb.append(" rejected=");
+		sb.append(this.rejectedTasks.get());
+		
+		return sb.toString();
+	}
+	// STATS END
+	
+}
@@ -0,0 +1,302 @@
+package mps.middleware;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mps.statistics.StatisticsSource;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Subscriptions of client connections to queues. A subscribed client gets the messages
+ * inserted into the queue pushed over its connection instead of polling for them.
+ * A subscription receives the messages without receiver and the messages for its receiver, like a
+ * QUEUE_READ_WITH_REMOVE_REQ of that receiver. Every pushed message is removed from the DB.
+ * Flow control is credit based: a subscription may get as many messages as it has credits, the client
+ * grants new credits with a CREDIT request. Messages arriving without credits stay in the queue.
+ * Subscriptions of a queue are served round robin. They are removed when the connection closes.
+ *
+ */
+
+public class SubscriptionRegistry implements StatisticsSource {
+	
+	/**
+	 * One subscription of a client connection to a queue
+	 */
+	public static class Subscription {
+		
+		public final ClientSession session;
+		
+		public final int queueId;
+		
+		// Messages without receiver and messages for this receiver are pushed
+		public final int receiverId;
+		
+		// Request id of the SUBSCRIBE request. Pushed messages carry it
+		public final int requestId;
+		
+		// Number of messages which may still be pushed
+		private AtomicInteger credits = new AtomicInteger(0);
+		
+		public Subscription(ClientSession session, int queueId, int receiverId, int requestId) {
+			
+			this.session = session;
+			this.queueId = queueId;
+			this.receiverId = receiverId;
+			this.requestId = requestId;
+		}
+		
+		/**
+		 * @param receiverId - receiver of a message, -1 if none
+		 * @return true if the message may be pushed to this subscription
+		 */
+		public boolean matches(int receiverId) {
+			return receiverId == -1 || receiverId == this.receiverId;
+		}
+		
+		/**
+		 * Take up to the given number of credits
+		 * @param max
+		 * @return number of credits taken
+		 */
+		public int takeCredits(int max) {
+			
+			while (true) {
+				
+				int credits = this.credits.get();
+				int taken = Math.min(credits, max);
+				
+				if (taken <= 0) {
+					return 0;
+				}
+				
+				if (this.credits.compareAndSet(credits, credits - taken)) {
+					return taken;
+				}
+			}
+		}
+		
+		/**
+		 * Add credits granted by the client or return credits which were not used
+		 * @param credits
+		 */
+		public void addCredits(int credits) {
+			
+			// Saturate instead of overflowing
+			while (true) {
+				
+				int current = this.credits.get();
+				int updated = (int) Math.min(Integer.MAX_VALUE, (long) current + credits);
+				
+				if (this.credits.compareAndSet(current, updated)) {
+					return;
+				}
+			}
+		}
+		
+		public int getCredits() {
+			return this.credits.get();
+		}
+	}
+	
+	// Subscriptions of one queue
+	private static class QueueSubscriptions {
+		
+		private CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+		
+		// Index of the subscription which is tried first for the next message
+		private AtomicInteger next = new AtomicInteger(0);
+	}
+	
+	// Queue id -> subscriptions
+	private ConcurrentHashMap<Integer, QueueSubscriptions> queues = new ConcurrentHashMap<Integer, QueueSubscriptions>();
+	
+	/*
+	 * STATS
+	 */
+	private AtomicInteger numberOfSubscriptions = new AtomicInteger(0);
+	private AtomicLong pushedMessages = new AtomicLong(0);
+	private AtomicLong withoutCredits = new AtomicLong(0);
+	/*
+	 * STATS END
+	 */
+	
+	private QueueSubscriptions getQueue(int queueId) {
+		
+		QueueSubscriptions queue = this.queues.get(queueId);
+		
+		if (queue == null) {
+			
+			QueueSubscriptions newQueue = new QueueSubscriptions();
+			
+			queue = this.queues.putIfAbsent(queueId, newQueue);
+			
+			if (queue == null) {
+				queue = newQueue;
+			}
+		}
+		
+		return queue;
+	}
+	
+	/**
+	 * Subscribe a connection to a queue. An existing subscription of the connection
+	 * to the queue is replaced, its credits are kept
+	 * @param session
+	 * @param queueId
+	 * @param receiverId
+	 * @param requestId - id of the SUBSCRIBE request
+	 * @param credits - initial credits
+	 * @return the new subscription
+	 */
+	public Subscription subscribe(ClientSession session, int queueId, int receiverId, int requestId, int credits) {
+		
+		Subscription subscription = new Subscription(session, queueId, receiverId, requestId);
+		
+		QueueSubscriptions queue = getQueue(queueId);
+		
+		synchronized (queue) {
+			
+			for (Subscription existing : queue.subscriptions) {
+				
+				if (existing.session == session) {
+					
+					queue.subscriptions.remove(existing);
+					this.numberOfSubscriptions.decrementAndGet();
+					
+					credits += existing.takeCredits(Integer.MAX_VALUE);
+				}
+			}
+			
+			subscription.addCredits(credits);
+			
+			queue.subscriptions.add(subscription);
+			this.numberOfSubscriptions.incrementAndGet();
+		}
+		
+		return subscription;
+	}
+	
+	/**
+	 * Grant credits to the subscription of a connection
+	 * @param session
+	 * @param queueId
+	 * @param credits
+	 * @return the subscription or null if the connection is not subscribed to the queue
+	 */
+	public Subscription grantCredits(ClientSession session, int queueId, int credits) {
+		
+		QueueSubscriptions queue = this.queues.get(queueId);
+		
+		if (queue == null) {
+			return null;
+		}
+		
+		for (Subscription subscription : queue.subscriptions) {
+			
+			if (subscription.session == session) {
+				
+				subscription.addCredits(credits);
+				return subscription;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Take a credit of a subscription the inserted message may be pushed to
+	 * @param queueId
+	 * @param receiverId - receiver of the message, -1 if none
+	 * @return the subscription which has to push the message or null if none has credits.
+	 * Its credit must be returned if the message is not pushed
+	 */
+	public Subscription claim(int queueId, int receiverId) {
+		
+		QueueSubscriptions queue = this.queues.get(queueId);
+		
+		if (queue == null) {
+			return null;
+		}
+		
+		List<Subscription> subscriptions = queue.subscriptions;
+		int size = subscriptions.size();
+		
+		if (size == 0) {
+			return null;
+		}
+		
+		int start = (queue.next.getAndIncrement() & Integer.MAX_VALUE) % size;
+		
+		for (int i = 0; i < size; ++i) {
+			
+			Subscription subscription;
+			
+			try {
+				subscription = subscriptions.get((start + i) % size);
+			} catch (IndexOutOfBoundsException e) {
+				// A subscription was removed concurrently
+				break;
+			}
+			
+			if (subscription.matches(receiverId) && !subscription.session.isClosed() && subscription.takeCredits(1) == 1) {
+				return subscription;
+			}
+		}
+		
+		this.withoutCredits.incrementAndGet();
+		
+		return null;
+	}
+	
+	// STATS: called for every pushed message
+	public void pushed(int messages) {
+		this.pushedMessages.addAndGet(messages);
+	}
+	
+	/**
+	 * Remove all subscriptions of a closed connection
+	 * @param session
+	 */
+	public void unsubscribeAll(ClientSession session) {
+		
+		for (QueueSubscriptions queue : this.queues.values()) {
+			
+			synchronized (queue) {
+				
+				Iterator<Subscription> it = queue.subscriptions.iterator();
+				
+				while (it.hasNext()) {
+					
+					Subscription subscription = it.next();
+					
+					if (subscription.session == session) {
+						queue.subscriptions.remove(subscription);
+						this.numberOfSubscriptions.decrementAndGet();
+					}
+				}
+			}
+		}
+	}
+	
+	// STATS
+	public String formatStatistics() {
+		
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("subscriptions=");
+		sb.append(this.numberOfSubscriptions.get());
+		sb.append(" pushed=");
+		sb.append(this.pushedMessages.get());
+		sb.append(" without_credits=");
+		sb.append(this.withoutCredits.get());
+		
+		return sb.toString();
+	}
+	// STATS END
+	
+}
@@ -0,0 +1,314 @@
+package mps.request;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import mps.statistics.StatisticsSource;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Compresses and decompresses message bodies of protocol version 2 frames
+ * which carry FLAG_COMPRESSED. Raw deflate with BEST_SPEED is used as fast codec.
+ * The Deflaters, Inflaters and scratch arrays are borrowed from a small pool shared by all threads,
+ * also virtual ones. Codecs beyond the pool are ended, large scratch arrays are not kept.
+ * Compression ratio and CPU time are reported to the statistics log.
+ *
+ */
+
+public class BodyCompressor implements StatisticsSource {
+	
+	// Keep only one existing instance of BodyCompressor
+	private static BodyCompressor instance = null;
+	
+	// Scratch arrays up to this size are kept in the pool, larger ones are left to the garbage collector
+	private static final int MAX_POOLED_ARRAY_SIZE = 65536;
+	
+	/**
+	 * Compressed body in borrowed scratch space.
+	 * Valid until it is handed back with release()
+	 */
+	public static class CompressedBody {
+		
+		public byte[] data;
+		public int length;
+		public int originalLength;
+		
+		private Scratch scratch;
+	}
+	
+	// Codecs and scratch space, used by one thread at a time
+	private static class Scratch {
+		
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		Inflater inflater = new Inflater(true);
+		
+		byte[] input = new byte[0];
+		ByteBuffer inputBuffer = ByteBuffer.wrap(this.input);
+		byte[] output = new byte[0];
+		
+		CompressedBody body = new CompressedBody();
+	}
+	
+	// Free scratch spaces
+	private Queue<Scratch> freeScratch = new ConcurrentLinkedQueue<Scratch>();
+	
+	// Number of free scratch spaces. Avoids the O(n) size() of the queue
+	private AtomicInteger freeCount = new AtomicInteger(0);
+	
+	// Upper bound of free scratch spaces, about the number of threads compressing at the same time
+	private final int maxFreeScratch = Runtime.getRuntime().availableProcessors();
+	
+	/*
+	 * STATS
+	 */
+	private AtomicLong compressedBodies = new AtomicLong(0);
+	private AtomicLong uncompressibleBodies = new AtomicLong(0);
+	private AtomicLong bytesBeforeCompression = new AtomicLong(0);
+	private AtomicLong bytesAfterCompression = new AtomicLong(0);
+	private AtomicLong compressionTime = new AtomicLong(0); // In nanoseconds
+	
+	private AtomicLong decompressedBodies = new AtomicLong(0);
+	private AtomicLong bytesBeforeDecompression = new AtomicLong(0);
+	private AtomicLong bytesAfterDecompression = new AtomicLong(0);
+	private AtomicLong decompressionTime = new AtomicLong(0); // In nanoseconds
+	
+	// Borrows which had to create new codecs
+	private AtomicLong createdScratch = new AtomicLong(0);
+	/*
+	 * STATS END
+	 */
+	
+	protected BodyCompressor() {
+	
+	}
+	
+	// Singleton constructor
+	public static synchronized BodyCompressor getInstance() {
+		
+		if (instance == null) {
+			instance = new BodyCompressor();
+		}
+		
+		return instance;
+	}
+	
+	private Scratch borrow() {
+		
+		Scratch s = this.freeScratch.poll();
+		
+		if (s == null) {
+			
+			this.createdScratch.incrementAndGet();
+			return new Scratch();
+		}
+		
+		this.freeCount.decrementAndGet();
+		
+		return s;
+	}
+	
+	private void giveBack(Scratch s) {
+		
+		if (s.input.length > MAX_POOLED_ARRAY_SIZE) {
+			
+			s.input = new byte[0];
+			s.inputBuffer = ByteBuffer.wrap(s.input);
+		}
+		
+		if (s.output.length > MAX_POOLED_ARRAY_SIZE) {
+			s.output = new byte[0];
+		}
+		
+		s.body.data = null;
+		
+		// The pool is full, free the native memory of the codecs now
+		if (this.freeCount.incrementAndGet() > this.maxFreeScratch) {
+			
+			this.freeCount.decrementAndGet();
+			
+			s.deflater.end();
+			s.inflater.end();
+			return;
+		}
+		
+		this.freeScratch.offer(s);
+	}
+	
+	/**
+	 * Compress the message in UTF-8
+	 * @param message
+	 * @param utf8Length - see Protocol.utf8Length()
+	 * @return compressed body or null if compression does not make the body smaller.
+	 * The body must be handed back with release() once it is encoded
+	 */
+	public CompressedBody compress(String message, int utf8Length) {
+		
+		long start = System.nanoTime();
+		
+		Scratch s = borrow();
+		
+		if (s.input.length < utf8Length) {
+			s.input = new byte[utf8Length];
+			s.inputBuffer = ByteBuffer.wrap(s.input);
+		}
+		
+		// Compressed bodies must be smaller than the original
+		if (s.output.length < utf8Length) {
+			s.output = new byte[utf8Length];
+		}
+		
+		s.inputBuffer.clear();
+		Protocol.putUtf8(s.inputBuffer, message);
+		
+		Deflater deflater = s.deflater;
+		deflater.reset();
+		deflater.setInput(s.input, 0, utf8Length);
+		deflater.finish();
+		
+		int length = 0;
+		
+		while (!deflater.finished() && length < utf8Length) {
+			length += deflater.deflate(s.output, length, utf8Length - length);
+		}
+		
+		// STATS
+		this.compressionTime.addAndGet(System.nanoTime() - start);
+		// STATS END
+		
+		if (!deflater.finished() || length >= utf8Length) {
+			
+			giveBack(s);
+			
+			this.uncompressibleBodies.incrementAndGet();
+			return null;
+		}
+		
+		// STATS
+		this.compressedBodies.incrementAndGet();
+		this.bytesBeforeCompression.addAndGet(utf8Length);
+		this.bytesAfterCompression.addAndGet(length);
+		// STATS END
+		
+		s.body.data = s.output;
+		s.body.length = length;
+		s.body.originalLength = utf8Length;
+		s.body.scratch = s;
+		
+		return s.body;
+	}
+	
+	/**
+	 * Hand back the scratch space of a compressed body. The body must not be used afterwards
+	 * @param body
+	 */
+	public void release(CompressedBody body) {
+		giveBack(body.scratch);
+	}
+	
+	/**
+	 * Decompress a message body
+	 * @param data
+	 * @param offset
+	 * @param length - number of compressed bytes
+	 * @param originalLength - number of bytes in UTF-8 after decompression
+	 * @return message
+	 * @throws IOException if the body is corrupted
+	 */
+	public String decompress(byte[] data, int offset, int length, int originalLength) throws IOException {
+		
+		long start = System.nanoTime();
+		
+		Scratch s = borrow();
+		
+		String message;
+		
+		try {
+			
+			if (s.input.length < originalLength) {
+				s.input = new byte[originalLength];
+				s.inputBuffer = ByteBuffer.wrap(s.input);
+			}
+			
+			Inflater inflater = s.inflater;
+			inflater.reset();
+			inflater.setInput(data, offset, length);
+			
+			int inflated = 0;
+			
+			while (inflated < originalLength) {
+				
+				int n = inflater.inflate(s.input, inflated, originalLength - inflated);
+				
+				if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				
+				inflated += n;
+			}
+			
+			if (inflated != originalLength) {
+				throw new IOException("Compressed body has " + inflated + " bytes instead of " + originalLength);
+			}
+			
+			message = new String(s.input, 0, inflated, StandardCharsets.UTF_8);
+			
+		} catch (DataFormatException e) {
+			
+			throw new IOException("Corrupted compressed body", e);
+			
+		} finally {
+			
+			giveBack(s);
+		}
+		
+		// STATS
+		this.decompressionTime.addAndGet(System.nanoTime() - start);
+		this.decompressedBodies.incrementAndGet();
+		this.bytesBeforeDecompression.addAndGet(length);
+		this.bytesAfterDecompression.addAndGet(originalLength);
+		// STATS END
+		
+		return message;
+	}
+	
+	// STATS
+	public String formatStatistics() {
+		
+		long before = this.bytesBeforeCompression.get();
+		long after = this.bytesAfterCompression.get();
+		long compressed = this.compressedBodies.get();
+		long decompressed = this.decompressedBodies.get();
+		
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("compressed=");
+		sb.append(compressed);
+		sb.append(" uncompressible=");
+		sb.append(this.uncompressibleBodies.get());
+		sb.append(" ratio=");
+		sb.append(String.format("%.3f", before > 0 ? (double) after / before : 1.0));
+		sb.append(" compress_us=");
+		sb.append(String.format("%.1f", this.compressionTime.get() / 1000.0 / Math.max(1, compressed + this.uncompressibleBodies.get())));
+		sb.append(" decompressed=");
+		sb.append(decompressed);
+		sb.append(" decompress_ratio=");
+		sb.append(String.format("%.3f", this.bytesAfterDecompression.get() > 0 ? (double) this.bytesBeforeDecompression.get() / this.bytesAfterDecompression.get() : 1.0));
+		sb.append(" decompress_us=");
+		sb.append(String.format("%.1f", this.decompressionTime.get() / 1000.0 / Math.max(1, decompressed)));
+		sb.append(" codecs_created=");
+		sb.append(this.createdScratch.get());
+		
+		return sb.toString();
+	}
+	// STATS END
+	
+}
@@ -0,0 +1,190 @@
+package mps.request;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Constants and varint helpers of the client/middleware wire protocol.
+ * Version 1 frames are prefixed by a 4 byte length and contain fixed 4 byte ints and a writeUTF body.
+ * A version 1 frame always starts with 0x00 because its length is below 2^24.
+ * A version 2 client opens the connection with a handshake [VERSION_2][capabilities], the middleware
+ * replies with [VERSION_2][accepted capabilities]. Version 2 frames are prefixed by a varint length
+ * and contain a flags field, varint header fields and a raw UTF-8 body with a varint length.
+ * Fields which may be negative (ids of -1) are zigzag encoded.
+ *
+ */
+
+public class Protocol {
+	
+	public static final int VERSION_1 = 1;
+	public static final int VERSION_2 = 2;
+	
+	// Version byte and capabilities byte
+	public static final int HANDSHAKE_SIZE = 2;
+	
+	// Capability: message bodies above a threshold may be compressed in both directions
+	public static final int CAP_COMPRESSION = 0x01;
+	
+	// Capabilities the middleware supports
+	public static final int SERVER_CAPABILITIES = CAP_COMPRESSION;
+	
+	// Flag: the message body is compressed with raw deflate
+	public static final int FLAG_COMPRESSED = 0x01;
+	
+	// Flag: a receive request is followed by a wait timeout in milliseconds
+	public static final int FLAG_LONG_POLL = 0x02;
+	
+	// Upper bound of a message body after decompression
+	public static final int MAX_BODY_SIZE = 1 << 24;
+	
+	// Upper bound of the number of items of a batch request
+	public static final int MAX_BATCH_SIZE = 1000;
+	
+	// Maximum number of bytes of a varint encoded int
+	public static final int MAX_VARINT_SIZE = 5;
+	
+	/**
+	 * @param value
+	 * @return number of bytes of the unsigned varint
+	 */
+	public static int varintSize(int value) {
+		
+		int size = 1;
+		
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			++size;
+		}
+		
+		return size;
+	}
+	
+	/**
+	 * Write an int as unsigned varint. Negative values take 5 bytes, use zigzag for them
+	 * @param buffer
+	 * @param value
+	 */
+	public static void putVarint(ByteBuffer buffer, int value) {
+		
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		
+		buffer.put((byte) value);
+	}
+	
+	/**
+	 * Read an unsigned varint
+	 * @param buffer
+	 * @return value
+	 * @throws IOException if the varint is too long or incomplete
+	 */
+	public static int getVarint(ByteBuffer buffer) throws IOException {
+		
+		try {
+			
+			int value = 0;
+			
+			for (int shift = 0; shift < 35; shift += 7) {
+				
+				int b = buffer.get();
+				value |= (b & 0x7F) << shift;
+				
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			
+		} catch (BufferUnderflowException e) {
+			
+			throw new IOException("Incomplete varint");
+		}
+		
+		throw new IOException("Malformed varint");
+	}
+	
+	// Map signed ints to unsigned ones so small negative values stay short: 0, -1, 1, -2, ...
+	public static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+	
+	public static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	/**
+	 * Number of bytes of the string in UTF-8. Unpaired surrogates are encoded as '?' like String.getBytes()
+	 * @param s
+	 * @return number of bytes
+	 */
+	public static int utf8Length(String s) {
+		
+		int length = 0;
+		
+		for (int i = 0; i < s.length(); ++i) {
+			
+			char c = s.charAt(i);
+			
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				++i;
+			} else if (Character.isSurrogate(c)) {
+				length += 1;
+			} else {
+				length += 3;
+			}
+		}
+		
+		return length;
+	}
+	
+	/**
+	 * Write the string in UTF-8, see utf8Length()
+	 * @param buffer
+	 * @param s
+	 */
+	public static void putUtf8(ByteBuffer buffer, String s) {
+		
+		for (int i = 0; i < s.length(); ++i) {
+			
+			char c = s.charAt(i);
+			
+			if (c < 0x80) {
+				
+				buffer.put((byte) c);
+				
+			} else if (c < 0x800) {
+				
+				buffer.put((byte) (0xC0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+				
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				
+				int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				buffer.put((byte) (0xF0 | (codePoint >> 18)));
+				buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+				buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+				
+			} else if (Character.isSurrogate(c)) {
+				
+				buffer.put((byte) '?');
+				
+			} else {
+				
+				buffer.put((byte) (0xE0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+	
+}
@@ -1,7 +1,12 @@
 package mps.request;
 
-public class Request {
+import java.nio.ByteBuffer;
 
+public class Request {
+	
+	// Initial capacity of the frame buffer. Grows with the largest frame of a recycled Request
+	private static final int INITIAL_FRAME_SIZE = 512;
+	
 	/*
 	 * IMPORTANT
 	 * Send request id to uniquely identify requests and their
@@ -11,7 +16,8 @@ public class Request {
 	
 	/*
 	 * Type of possible requests: MSG_SEND_REQ = 0, MSG_REC_REQ = 1, MSG_QUERY_REQ = 2, QUEUE_READ_REQ = 3, 
-	 * QUEUE_READ_WITH_REMOVE_REQ = 4, QUEUE_QUERY_REQ = 5, QUEUE_CREATE_REQ = 6, QUEUE_DEL_REQ = 7
+	 * QUEUE_READ_WITH_REMOVE_REQ = 4, QUEUE_QUERY_REQ = 5, QUEUE_CREATE_REQ = 6, QUEUE_DEL_REQ = 7,
+	 * MSG_SEND_BATCH_REQ = 8, QUEUE_READ_WITH_REMOVE_BATCH_REQ = 9, SUBSCRIBE_REQ = 10, CREDIT_REQ = 11
 	 */
 	public int type;
 	
@@ -24,6 +30,128 @@ public class Request {
 	// Uniquely defined queue id if a queue is necessary for the specific request type
 	public int queueId;
 	
-	// Message body
+	// Message body. Decoded from the frame on first use, see getMessage()
 	public String message;
-}
\ No newline at end of file
+	
+	// Protocol version 2 only: flags of the request
+	public int flags;
+	
+	// Protocol version of the client which sent the frame
+	public int protocolVersion = Protocol.VERSION_1;
+	
+	/*
+	 * Raw frame as read from the SocketChannel, ready to be decoded by the RequestCodec.
+	 * Requests are recycled by the RequestPool, so the buffer is reused
+	 */
+	public ByteBuffer frame = ByteBuffer.allocate(INITIAL_FRAME_SIZE);
+	
+	// Position and length of the modified UTF-8 message body inside the frame. -1 if there is no body
+	public int bodyOffset = -1;
+	public int bodyLength = -1;
+	
+	// Protocol version 2 only: length of a compressed body after decompression. -1 if not compressed
+	public int originalBodyLength = -1;
+	
+	// Scratch space to decode the message body. Reused by the recycled Request
+	public char[] chars;
+	
+	/*
+	 * MSG_SEND_BATCH_REQ only: receiver, queue and position of the message body of every item.
+	 * The arrays are reused by the recycled Request and may be longer than batchCount
+	 */
+	public int batchCount = 0;
+	public int[] batchReceiverIds = new int[0];
+	public int[] batchQueueIds = new int[0];
+	public int[] batchBodyOffsets = new int[0];
+	public int[] batchBodyLengths = new int[0];
+	
+	// QUEUE_READ_WITH_REMOVE_BATCH_REQ only: maximum number of messages to retrieve
+	public int maxMessages = 0;
+	
+	// Receive requests from a queue only: milliseconds to wait for a message if the queue is empty. 0 answers at once
+	public int waitTimeout = 0;
+	
+	// SUBSCRIBE_REQ and CREDIT_REQ only: number of messages the middleware may push
+	public int credits = 0;
+	
+	/**
+	 * Receive requests from a queue with a wait timeout: QUEUE_READ_REQ, QUEUE_READ_WITH_REMOVE_REQ
+	 * and QUEUE_READ_WITH_REMOVE_BATCH_REQ
+	 * @return true if the request waits for a message if the queue is empty
+	 */
+	public boolean isLongPoll() {
+		return this.waitTimeout > 0 && (this.type == 3 || this.type == 4 || this.type == 9);
+	}
+	
+	/**
+	 * Make sure the frame buffer can hold a frame of the given size
+	 * @param frameLength
+	 */
+	public void ensureFrameCapacity(int frameLength) {
+		
+		if (this.frame.capacity() < frameLength) {
+			this.frame = ByteBuffer.allocate(frameLength);
+		}
+	}
+	
+	/**
+	 * Make sure the batch arrays can hold the given number of items
+	 * @param count
+	 */
+	public void ensureBatchCapacity(int count) {
+		
+		if (this.batchReceiverIds.length < count) {
+			
+			this.batchReceiverIds = new int[count];
+			this.batchQueueIds = new int[count];
+			this.batchBodyOffsets = new int[count];
+			this.batchBodyLengths = new int[count];
+		}
+	}
+	
+	/**
+	 * MSG_SEND_BATCH_REQ only: decode the message body of an item
+	 * @param i - index of the item
+	 * @return message
+	 */
+	public String getBatchMessage(int i) {
+		
+		return RequestCodec.decodeBody(this, this.batchBodyOffsets[i], this.batchBodyLengths[i]);
+	}
+	
+	/**
+	 * The message body stays in the frame until it is needed. It is decoded only once
+	 * @return message or null if the request has no message body
+	 */
+	public String getMessage() {
+		
+		if (this.message == null && this.bodyLength >= 0) {
+			this.message = RequestCodec.decodeBody(this, this.bodyOffset, this.bodyLength);
+		}
+		
+		return this.message;
+	}
+	
+	/**
+	 * Forget the previous request before the Request is recycled
+	 */
+	public void reset() {
+		
+		this.requestId = 0;
+		this.type = 0;
+		this.senderId = 0;
+		this.receiverId = 0;
+		this.queueId = 0;
+		this.message = null;
+		this.flags = 0;
+		this.protocolVersion = Protocol.VERSION_1;
+		this.bodyOffset = -1;
+		this.bodyLength = -1;
+		this.originalBodyLength = -1;
+		this.batchCount = 0;
+		this.maxMessages = 0;
+		this.waitTimeout = 0;
+		this.credits = 0;
+		this.frame.clear();
+	}
+}
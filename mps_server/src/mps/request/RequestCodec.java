@@ -0,0 +1,358 @@
+package mps.request;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Decodes the request frames sent by the clients into recycled Request objects.
+ * Version 1: the fixed header consists of 5 ints: requestId, type, senderId, receiverId and queueId.
+ * A MSG_SEND_REQ is followed by the message body in the format of DataOutputStream.writeUTF,
+ * a 2 byte length and modified UTF-8.
+ * Version 2: flags, requestId and type are varints, senderId, receiverId and queueId zigzag varints.
+ * A MSG_SEND_REQ is followed by a varint length and the message body in raw UTF-8.
+ * With FLAG_COMPRESSED the body is raw deflate and preceded by its length after decompression.
+ * A MSG_SEND_BATCH_REQ is followed by the number of messages and the receiverId, queueId and body
+ * of every message, a QUEUE_READ_WITH_REMOVE_BATCH_REQ by the maximum number of messages.
+ * Receive requests from a queue may end with a wait timeout in milliseconds. Version 1 detects it
+ * by the length of the frame, version 2 by FLAG_LONG_POLL.
+ * SUBSCRIBE_REQ and CREDIT_REQ are followed by a number of credits.
+ * The header is read straight from the frame buffer, the body stays in the frame until
+ * the DB layer asks for it. Nothing is allocated to decode a request.
+ *
+ */
+
+public class RequestCodec {
+	
+	// Size of the fixed header in bytes
+	public static final int HEADER_SIZE = 20;
+	
+	// Size of the length in front of the message body
+	private static final int BODY_LENGTH_SIZE = 2;
+	
+	/**
+	 * Decode the frame of the request. The frame must be ready to be read
+	 * @param request
+	 * @throws IOException if the frame is malformed
+	 */
+	public static void decode(Request request) throws IOException {
+		
+		if (request.protocolVersion >= Protocol.VERSION_2) {
+			decodeVersion2(request);
+			return;
+		}
+		
+		ByteBuffer frame = request.frame;
+		int start = frame.position();
+		int frameLength = frame.remaining();
+		
+		if (frameLength < HEADER_SIZE) {
+			throw new IOException("Request frame too short: " + frameLength);
+		}
+		
+		request.requestId = frame.getInt(start);
+		request.type = frame.getInt(start + 4);
+		request.senderId = frame.getInt(start + 8);
+		request.receiverId = frame.getInt(start + 12);
+		request.queueId = frame.getInt(start + 16);
+		request.message = null;
+		
+		// If request type is SEND_MSG_REQ then locate the message body as well
+		if (request.type == 0) {
+			
+			if (frameLength < HEADER_SIZE + BODY_LENGTH_SIZE) {
+				throw new IOException("Request frame without message body");
+			}
+			
+			int bodyLength = frame.getShort(start + HEADER_SIZE) & 0xFFFF;
+			
+			if (HEADER_SIZE + BODY_LENGTH_SIZE + bodyLength > frameLength) {
+				throw new IOException("Message body exceeds request frame: " + bodyLength);
+			}
+			
+			request.bodyOffset = start + HEADER_SIZE + BODY_LENGTH_SIZE;
+			request.bodyLength = bodyLength;
+			
+		} else {
+			
+			request.bodyOffset = -1;
+			request.bodyLength = -1;
+		}
+		
+		// Batch requests carry their items after the header
+		request.batchCount = 0;
+		request.maxMessages = 0;
+		request.waitTimeout = 0;
+		request.credits = 0;
+		
+		// SUBSCRIBE_REQ and CREDIT_REQ carry credits
+		if (request.type == 10 || request.type == 11) {
+			
+			if (frameLength < HEADER_SIZE + 4) {
+				throw new IOException("Request frame without credits");
+			}
+			
+			request.credits = frame.getInt(start + HEADER_SIZE);
+			
+			if (request.credits < 0) {
+				throw new IOException("Invalid number of credits: " + request.credits);
+			}
+		}
+		
+		// Receive requests from a queue may end with a wait timeout
+		if (request.type == 3 || request.type == 4 || request.type == 9) {
+			
+			int waitTimeoutOffset = HEADER_SIZE + (request.type == 9 ? 4 : 0);
+			
+			if (frameLength >= waitTimeoutOffset + 4) {
+				
+				request.waitTimeout = frame.getInt(start + waitTimeoutOffset);
+				
+				if (request.waitTimeout < 0) {
+					throw new IOException("Invalid wait timeout: " + request.waitTimeout);
+				}
+			}
+		}
+		
+		if (request.type == 8 || request.type == 9) {
+			
+			try {
+				
+				frame.position(start + HEADER_SIZE);
+				decodeBatch(request);
+				
+			} finally {
+				
+				// Decoding can be repeated
+				frame.position(start);
+			}
+		}
+	}
+	
+	// Version 2: varint header and raw UTF-8 body
+	private static void decodeVersion2(Request request) throws IOException {
+		
+		ByteBuffer frame = request.frame;
+		int start = frame.position();
+		
+		try {
+			
+			request.flags = Protocol.getVarint(frame);
+			request.requestId = Protocol.getVarint(frame);
+			request.type = Protocol.getVarint(frame);
+			request.senderId = Protocol.unzigzag(Protocol.getVarint(frame));
+			request.receiverId = Protocol.unzigzag(Protocol.getVarint(frame));
+			request.queueId = Protocol.unzigzag(Protocol.getVarint(frame));
+			request.message = null;
+			
+			request.bodyOffset = -1;
+			request.bodyLength = -1;
+			request.originalBodyLength = -1;
+			request.batchCount = 0;
+			request.maxMessages = 0;
+			request.waitTimeout = 0;
+			request.credits = 0;
+			
+			// If request type is SEND_MSG_REQ then locate the message body as well
+			if (request.type == 0) {
+				
+				// A compressed body is preceded by its length after decompression
+				if ((request.flags & Protocol.FLAG_COMPRESSED) != 0) {
+					
+					request.originalBodyLength = Protocol.getVarint(frame);
+					
+					if (request.originalBodyLength < 0 || request.originalBodyLength > Protocol.MAX_BODY_SIZE) {
+						throw new IOException("Invalid length of compressed body: " + request.originalBodyLength);
+					}
+				}
+				
+				int bodyLength = Protocol.getVarint(frame);
+				
+				if (bodyLength < 0 || bodyLength > frame.remaining()) {
+					throw new IOException("Message body exceeds request frame: " + bodyLength);
+				}
+				
+				request.bodyOffset = frame.position();
+				request.bodyLength = bodyLength;
+			}
+			
+			// Batch requests carry their items after the header
+			if (request.type == 8 || request.type == 9) {
+				decodeBatch(request);
+			}
+			
+			// SUBSCRIBE_REQ and CREDIT_REQ carry credits
+			if (request.type == 10 || request.type == 11) {
+				
+				request.credits = Protocol.getVarint(frame);
+				
+				if (request.credits < 0) {
+					throw new IOException("Invalid number of credits: " + request.credits);
+				}
+			}
+			
+			// Receive requests from a queue may end with a wait timeout
+			if ((request.flags & Protocol.FLAG_LONG_POLL) != 0 && (request.type == 3 || request.type == 4 || request.type == 9)) {
+				
+				request.waitTimeout = Protocol.getVarint(frame);
+				
+				if (request.waitTimeout < 0) {
+					throw new IOException("Invalid wait timeout: " + request.waitTimeout);
+				}
+			}
+			
+		} finally {
+			
+			// Decoding can be repeated
+			frame.position(start);
+		}
+	}
+	
+	/**
+	 * Decode the items of a batch request. The frame is positioned after the header.
+	 * MSG_SEND_BATCH_REQ = 8: count, then receiverId, queueId and message body of every item.
+	 * QUEUE_READ_WITH_REMOVE_BATCH_REQ = 9: maximum number of messages to retrieve.
+	 * Version 1 uses 4 byte ints and writeUTF bodies, version 2 zigzag varints and raw UTF-8 bodies
+	 * @param request
+	 * @throws IOException if the frame is malformed
+	 */
+	private static void decodeBatch(Request request) throws IOException {
+		
+		ByteBuffer frame = request.frame;
+		boolean version2 = request.protocolVersion >= Protocol.VERSION_2;
+		
+		try {
+			
+			if (request.type == 9) {
+				
+				request.maxMessages = version2 ? Protocol.getVarint(frame) : frame.getInt();
+				
+				if (request.maxMessages < 1 || request.maxMessages > Protocol.MAX_BATCH_SIZE) {
+					throw new IOException("Invalid number of messages: " + request.maxMessages);
+				}
+				
+				return;
+			}
+			
+			int count = version2 ? Protocol.getVarint(frame) : frame.getInt();
+			
+			if (count < 1 || count > Protocol.MAX_BATCH_SIZE) {
+				throw new IOException("Invalid batch size: " + count);
+			}
+			
+			request.ensureBatchCapacity(count);
+			
+			for (int i = 0; i < count; ++i) {
+				
+				int bodyLength;
+				
+				if (version2) {
+					
+					request.batchReceiverIds[i] = Protocol.unzigzag(Protocol.getVarint(frame));
+					request.batchQueueIds[i] = Protocol.unzigzag(Protocol.getVarint(frame));
+					bodyLength = Protocol.getVarint(frame);
+					
+				} else {
+					
+					request.batchReceiverIds[i] = frame.getInt();
+					request.batchQueueIds[i] = frame.getInt();
+					bodyLength = frame.getShort() & 0xFFFF;
+				}
+				
+				if (bodyLength < 0 || bodyLength > frame.remaining()) {
+					throw new IOException("Message body exceeds request frame: " + bodyLength);
+				}
+				
+				// The body stays in the frame until the DB layer asks for it
+				request.batchBodyOffsets[i] = frame.position();
+				request.batchBodyLengths[i] = bodyLength;
+				
+				frame.position(frame.position() + bodyLength);
+			}
+			
+			request.batchCount = count;
+			
+		} catch (BufferUnderflowException e) {
+			
+			throw new IOException("Batch exceeds request frame");
+		}
+	}
+	
+	/**
+	 * Protocol version 2: decompress the message body if the client compressed it.
+	 * Called after decode() by the thread which processes the request
+	 * @param request
+	 * @throws IOException if the compressed body is corrupted
+	 */
+	public static void decompressBody(Request request) throws IOException {
+		
+		if (request.originalBodyLength < 0 || request.message != null) {
+			return;
+		}
+		
+		request.message = BodyCompressor.getInstance().decompress(request.frame.array(), request.frame.arrayOffset() + request.bodyOffset, request.bodyLength, request.originalBodyLength);
+	}
+	
+	/**
+	 * Decode a message body of the request.
+	 * Malformed sequences are replaced by U+FFFD
+	 * @param request
+	 * @param bodyOffset - position of the body in the frame
+	 * @param bodyLength - number of bytes
+	 * @return message
+	 */
+	public static String decodeBody(Request request, int bodyOffset, int bodyLength) {
+		
+		// Version 2: raw UTF-8
+		if (request.protocolVersion >= Protocol.VERSION_2) {
+			return new String(request.frame.array(), request.frame.arrayOffset() + bodyOffset, bodyLength, StandardCharsets.UTF_8);
+		}
+		
+		byte[] bytes = request.frame.array();
+		int i = request.frame.arrayOffset() + bodyOffset;
+		int end = i + bodyLength;
+		
+		// A message never has more chars than bytes
+		if (request.chars == null || request.chars.length < bodyLength) {
+			request.chars = new char[bodyLength];
+		}
+		
+		char[] chars = request.chars;
+		int n = 0;
+		
+		while (i < end) {
+			
+			int c = bytes[i] & 0xFF;
+			
+			if (c < 0x80) {
+				
+				// 0xxxxxxx
+				chars[n++] = (char) c;
+				i += 1;
+				
+			} else if ((c & 0xE0) == 0xC0 && i + 1 < end) {
+				
+				// 110xxxxx 10xxxxxx
+				chars[n++] = (char) (((c & 0x1F) << 6) | (bytes[i + 1] & 0x3F));
+				i += 2;
+				
+			} else if ((c & 0xF0) == 0xE0 && i + 2 < end) {
+				
+				// 1110xxxx 10xxxxxx 10xxxxxx
+				chars[n++] = (char) (((c & 0x0F) << 12) | ((bytes[i + 1] & 0x3F) << 6) | (bytes[i + 2] & 0x3F));
+				i += 3;
+				
+			} else {
+				
+				chars[n++] = '\uFFFD';
+				i += 1;
+			}
+		}
+		
+		return new String(chars, 0, n);
+	}
+	
+}
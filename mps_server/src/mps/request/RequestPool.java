@@ -0,0 +1,87 @@
+package mps.request;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mps.statistics.StatisticsSource;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Free list of Request objects. The SelectorThreads acquire a Request for every
+ * frame, the RequestHandlerThreads release it as soon as the response is sent.
+ * The free list is an array based queue, so recycling a Request does not allocate either.
+ *
+ */
+
+public class RequestPool implements StatisticsSource {
+	
+	// Recycled requests
+	private BlockingQueue<Request> freeRequests;
+	
+	/*
+	 * STATS
+	 */
+	private AtomicLong hits = new AtomicLong(0);
+	private AtomicLong misses = new AtomicLong(0);
+	/*
+	 * STATS END
+	 */
+	
+	public RequestPool(int capacity) {
+		
+		this.freeRequests = new ArrayBlockingQueue<Request>(Math.max(1, capacity));
+	}
+	
+	/**
+	 * @return recycled or new Request
+	 */
+	public Request acquire() {
+		
+		Request request = this.freeRequests.poll();
+		
+		if (request == null) {
+			
+			this.misses.incrementAndGet();
+			return new Request();
+		}
+		
+		this.hits.incrementAndGet();
+		
+		return request;
+	}
+	
+	/**
+	 * Return a Request to the pool. The caller must not use it afterwards
+	 * @param request
+	 */
+	public void release(Request request) {
+		
+		if (request == null) {
+			return;
+		}
+		
+		request.reset();
+		
+		// If the pool is full the Request is left to the garbage collector
+		this.freeRequests.offer(request);
+	}
+	
+	// STATS
+	public String formatStatistics() {
+		
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("hits=");
+		sb.append(this.hits.get());
+		sb.append(" misses=");
+		sb.append(this.misses.get());
+		sb.append(" free=");
+		sb.append(this.freeRequests.size());
+		
+		return sb.toString();
+	}
+	// STATS END
+	
+}
@@ -0,0 +1,364 @@
+package mps.request;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+import mps.request.BodyCompressor.CompressedBody;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Encodes a Response straight into a ByteBuffer in the protocol version of the client.
+ * Version 1: a 4 byte frame length, errorType, requestId, requestType, messageId and the message
+ * in the format of DataOutputStream.writeUTF.
+ * Version 2: a varint frame length, flags, errorType, requestId, requestType, zigzag messageId
+ * and the message as varint length and raw UTF-8. A compressed message (FLAG_COMPRESSED) is preceded
+ * by its length after decompression and its compressed length.
+ * Batch responses (request types 8 and 9) append the number of messages and the id and body
+ * of every message in the format of the protocol version. Batch bodies are never compressed.
+ * The size of the frame is computed ahead of time, so the caller can lease a buffer which fits
+ * and no intermediate arrays are needed.
+ *
+ */
+
+public class ResponseEncoder {
+	
+	// Version 1: frame length prefix, 4 ints and the length of the message
+	private static final int FIXED_SIZE = 4 + 16 + 2;
+	
+	// writeUTF cannot encode longer messages
+	private static final int MAX_UTF_LENGTH = 65535;
+	
+	/**
+	 * Size of the encoded message
+	 * @param response
+	 * @param version - protocol version of the client
+	 * @return number of bytes
+	 * @throws UTFDataFormatException if the message is too long for writeUTF
+	 */
+	public static int bodyLength(Response response, int version) throws UTFDataFormatException {
+		
+		String message = message(response);
+		
+		if (version >= Protocol.VERSION_2) {
+			return Protocol.utf8Length(message);
+		}
+		
+		return utfLength(message);
+	}
+	
+	/**
+	 * True if a client of the protocol version can decode the message. Version 1 limits the
+	 * length of a message, version 2 accepts any message. Checked before a message is removed
+	 * @param message - null for no message
+	 * @param version - protocol version of the client
+	 * @return false if the message is too long for writeUTF
+	 */
+	public static boolean canEncode(String message, int version) {
+		
+		// Every character takes at most 3 bytes
+		if (version >= Protocol.VERSION_2 || message == null || message.length() <= MAX_UTF_LENGTH / 3) {
+			return true;
+		}
+		
+		try {
+			
+			utfLength(message);
+			
+		} catch (UTFDataFormatException e) {
+			
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Size of the encoded message in modified UTF-8
+	 * @param message
+	 * @return number of bytes
+	 * @throws UTFDataFormatException if the message is too long for writeUTF
+	 */
+	public static int utfLength(String message) throws UTFDataFormatException {
+		
+		int utfLength = 0;
+		
+		for (int i = 0; i < message.length(); ++i) {
+			
+			char c = message.charAt(i);
+			
+			if (c >= 0x0001 && c <= 0x007F) {
+				utfLength += 1;
+			} else if (c > 0x07FF) {
+				utfLength += 3;
+			} else {
+				utfLength += 2;
+			}
+		}
+		
+		if (utfLength > MAX_UTF_LENGTH) {
+			throw new UTFDataFormatException("Encoded message too long: " + utfLength + " bytes");
+		}
+		
+		return utfLength;
+	}
+	
+	/**
+	 * Size of the batch section which follows the message. 0 if the response does not answer a batch request
+	 * @param response
+	 * @param version - protocol version of the client
+	 * @return number of bytes
+	 * @throws UTFDataFormatException if a message is too long for writeUTF
+	 */
+	public static int batchLength(Response response, int version) throws UTFDataFormatException {
+		
+		if (!isBatch(response)) {
+			return 0;
+		}
+		
+		int count = batchCount(response);
+		
+		if (version >= Protocol.VERSION_2) {
+			
+			int batchLength = Protocol.varintSize(count);
+			
+			for (int i = 0; i < count; ++i) {
+				
+				int length = Protocol.utf8Length(batchMessage(response, i));
+				
+				batchLength += Protocol.varintSize(Protocol.zigzag(response.batchMessageIds[i])) + Protocol.varintSize(length) + length;
+			}
+			
+			return batchLength;
+		}
+		
+		// Count, then id and message of every item
+		int batchLength = 4;
+		
+		for (int i = 0; i < count; ++i) {
+			batchLength += 4 + 2 + utfLength(batchMessage(response, i));
+		}
+		
+		return batchLength;
+	}
+	
+	/**
+	 * Size of the whole frame including the length prefix
+	 * @param response
+	 * @param bodyLength - see bodyLength()
+	 * @param batchLength - see batchLength()
+	 * @param version - protocol version of the client
+	 * @return number of bytes
+	 */
+	public static int frameLength(Response response, int bodyLength, int batchLength, int version) {
+		
+		if (version >= Protocol.VERSION_2) {
+			
+			int payloadLength = payloadLength(response, bodyLength) + batchLength;
+			
+			return Protocol.varintSize(payloadLength) + payloadLength;
+		}
+		
+		return FIXED_SIZE + bodyLength + batchLength;
+	}
+	
+	// Version 2: size of the frame without the length prefix and the batch section
+	private static int payloadLength(Response response, int bodyLength) {
+		
+		return Protocol.varintSize(response.flags)
+				+ Protocol.varintSize(response.errorType)
+				+ Protocol.varintSize(response.requestId)
+				+ Protocol.varintSize(response.requestType)
+				+ Protocol.varintSize(Protocol.zigzag(response.messageId))
+				+ Protocol.varintSize(bodyLength)
+				+ bodyLength;
+	}
+	
+	/**
+	 * Write the framed response to the buffer
+	 * @param response
+	 * @param bodyLength - see bodyLength()
+	 * @param batchLength - see batchLength()
+	 * @param version - protocol version of the client
+	 * @param buffer - has at least frameLength() bytes remaining
+	 */
+	public static void encode(Response response, int bodyLength, int batchLength, int version, ByteBuffer buffer) {
+		
+		String message = message(response);
+		
+		if (version >= Protocol.VERSION_2) {
+			
+			Protocol.putVarint(buffer, payloadLength(response, bodyLength) + batchLength);
+			
+			Protocol.putVarint(buffer, response.flags);
+			Protocol.putVarint(buffer, response.errorType);
+			Protocol.putVarint(buffer, response.requestId);
+			Protocol.putVarint(buffer, response.requestType);
+			Protocol.putVarint(buffer, Protocol.zigzag(response.messageId));
+			
+			Protocol.putVarint(buffer, bodyLength);
+			Protocol.putUtf8(buffer, message);
+			
+			encodeBatch(response, version, buffer);
+			
+			return;
+		}
+		
+		// Length prefix excludes itself
+		buffer.putInt(FIXED_SIZE - 4 + bodyLength + batchLength);
+		
+		buffer.putInt(response.errorType);
+		buffer.putInt(response.requestId);
+		buffer.putInt(response.requestType);
+		buffer.putInt(response.messageId);
+		
+		buffer.putShort((short) bodyLength);
+		
+		putModifiedUtf8(buffer, message);
+		
+		encodeBatch(response, version, buffer);
+	}
+	
+	// Write the batch section, nothing if the response does not answer a batch request
+	private static void encodeBatch(Response response, int version, ByteBuffer buffer) {
+		
+		if (!isBatch(response)) {
+			return;
+		}
+		
+		int count = batchCount(response);
+		
+		if (version >= Protocol.VERSION_2) {
+			
+			Protocol.putVarint(buffer, count);
+			
+			for (int i = 0; i < count; ++i) {
+				
+				String message = batchMessage(response, i);
+				
+				Protocol.putVarint(buffer, Protocol.zigzag(response.batchMessageIds[i]));
+				Protocol.putVarint(buffer, Protocol.utf8Length(message));
+				Protocol.putUtf8(buffer, message);
+			}
+			
+			return;
+		}
+		
+		buffer.putInt(count);
+		
+		for (int i = 0; i < count; ++i) {
+			
+			String message = batchMessage(response, i);
+			
+			buffer.putInt(response.batchMessageIds[i]);
+			
+			// Length was checked by batchLength()
+			try {
+				buffer.putShort((short) utfLength(message));
+			} catch (UTFDataFormatException e) {
+				throw new IllegalStateException(e);
+			}
+			
+			putModifiedUtf8(buffer, message);
+		}
+	}
+	
+	// Version 1: the characters of the message in the format of DataOutputStream.writeUTF
+	private static void putModifiedUtf8(ByteBuffer buffer, String message) {
+		
+		for (int i = 0; i < message.length(); ++i) {
+			
+			char c = message.charAt(i);
+			
+			if (c >= 0x0001 && c <= 0x007F) {
+				
+				buffer.put((byte) c);
+				
+			} else if (c > 0x07FF) {
+				
+				buffer.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+				
+			} else {
+				
+				buffer.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+	
+	/**
+	 * Protocol version 2: size of the whole frame with a compressed body
+	 * @param response - with FLAG_COMPRESSED set
+	 * @param body
+	 * @param batchLength - see batchLength()
+	 * @return number of bytes
+	 */
+	public static int frameLength(Response response, CompressedBody body, int batchLength) {
+		
+		int payloadLength = payloadLength(response, body) + batchLength;
+		
+		return Protocol.varintSize(payloadLength) + payloadLength;
+	}
+	
+	// Version 2: size of the frame with a compressed body without the length prefix
+	private static int payloadLength(Response response, CompressedBody body) {
+		
+		return payloadLength(response, body.length) + Protocol.varintSize(body.originalLength);
+	}
+	
+	/**
+	 * Protocol version 2: write the framed response with a compressed body.
+	 * The body is preceded by its length after decompression and its compressed length
+	 * @param response - with FLAG_COMPRESSED set
+	 * @param body
+	 * @param batchLength - see batchLength()
+	 * @param buffer - has at least frameLength() bytes remaining
+	 */
+	public static void encode(Response response, CompressedBody body, int batchLength, ByteBuffer buffer) {
+		
+		Protocol.putVarint(buffer, payloadLength(response, body) + batchLength);
+		
+		Protocol.putVarint(buffer, response.flags);
+		Protocol.putVarint(buffer, response.errorType);
+		Protocol.putVarint(buffer, response.requestId);
+		Protocol.putVarint(buffer, response.requestType);
+		Protocol.putVarint(buffer, Protocol.zigzag(response.messageId));
+		
+		Protocol.putVarint(buffer, body.originalLength);
+		Protocol.putVarint(buffer, body.length);
+		buffer.put(body.data, 0, body.length);
+		
+		encodeBatch(response, Protocol.VERSION_2, buffer);
+	}
+	
+	/**
+	 * @param response
+	 * @return message of the response, an empty message if none is set
+	 */
+	public static String message(Response response) {
+		
+		return response.retrievedMessage != null ? response.retrievedMessage : "";
+	}
+	
+	// MSG_SEND_BATCH_REQ = 8, QUEUE_READ_WITH_REMOVE_BATCH_REQ = 9
+	private static boolean isBatch(Response response) {
+		return response.requestType == 8 || response.requestType == 9;
+	}
+	
+	private static int batchCount(Response response) {
+		return response.batchMessageIds != null ? response.batchMessageIds.length : 0;
+	}
+	
+	// Inserted messages are answered with their ids only
+	private static String batchMessage(Response response, int i) {
+		
+		if (response.batchMessages == null || response.batchMessages[i] == null) {
+			return "";
+		}
+		
+		return response.batchMessages[i];
+	}
+	
+}
@@ -0,0 +1,83 @@
+package mps.statistics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import mps.config.Config;
+
+/**
+ * 
+ * @author Andrin Jenal
+ * @description Writes the counters of all registered StatisticsSources to the statistics log.
+ * The per request log records are written by the RequestHandlerThreads. This thread
+ * adds one record per component every statisticsIntervalSeconds.
+ *
+ */
+
+public class StatisticsReporter implements Runnable {
+	
+	// Keep only one existing instance of StatisticsReporter
+	private static StatisticsReporter instance = null;
+	
+	// Registered components sorted by name
+	private Map<String, StatisticsSource> sources = new ConcurrentSkipListMap<String, StatisticsSource>();
+	
+	// Interval between two reports in milliseconds
+	private long interval;
+	
+	protected StatisticsReporter() {
+		
+		this.interval = Config.getInstance().statisticsIntervalSeconds * 1000L;
+	}
+	
+	// Singleton constructor. The reporter thread is started on first use
+	public static synchronized StatisticsReporter getInstance() {
+		
+		if (instance == null) {
+			
+			instance = new StatisticsReporter();
+			
+			Thread t = new Thread(instance, "StatisticsReporter");
+			t.setDaemon(true);
+			t.start();
+		}
+		
+		return instance;
+	}
+	
+	/**
+	 * Register a component whose counters should be logged
+	 * @param name - prefix of the log record
+	 * @param source
+	 */
+	public void register(String name, StatisticsSource source) {
+		
+		this.sources.put(name, source);
+	}
+	
+	public void run() {
+		
+		while (true) {
+			
+			try {
+				
+				Thread.sleep(this.interval);
+				
+				for (Map.Entry<String, StatisticsSource> entry : this.sources.entrySet()) {
+					
+					if (Config.statisticsLog != null) {
+						Config.statisticsLog.info(entry.getKey() + " " + entry.getValue().formatStatistics());
+					}
+				}
+				
+			} catch (InterruptedException e) {
+				
+				return;
+				
+			} catch (Exception e) {
+				
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package mps.statistics;
+
+/**
+ * Components of the middleware which keep their own counters implement this interface.
+ * The StatisticsReporter periodically writes their counters to the statistics log
+ */
+public interface StatisticsSource {
+	
+	/**
+	 * FORMAT: key=value pairs separated by a blank
+	 * @return current counters of this component
+	 */
+	public String formatStatistics();
+}
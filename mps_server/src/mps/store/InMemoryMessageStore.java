@@ -0,0 +1,731 @@
+package mps.store;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mps.request.Protocol;
+import mps.request.Request;
+import mps.request.Response;
+import mps.request.ResponseEncoder;
+import mps.statistics.StatisticsSource;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description MessageStore which keeps the queues and messages in memory. Runs the middleware at memory
+ * speed and without a DB, the messages are lost when the middleware stops.
+ * Every queue keeps its messages without receiver and its messages per receiver in concurrent skip lists
+ * ordered by message id. Message ids grow with the arrival time, the newest message is the last entry.
+ * A receiver index over all queues serves MSG_REC_REQ and QUEUE_QUERY_REQ.
+ * No operation takes a lock. A message is removed by the thread which flips its removed flag,
+ * competing readers with remove skip it and take the next one.
+ * Subclasses which persist the messages override the protected hooks, see LogMessageStore.
+ *
+ */
+
+public class InMemoryMessageStore implements MessageStore, StatisticsSource {
+	
+	protected static class Message {
+		
+		protected final int messageId;
+		protected final int senderId;
+		protected final int receiverId;
+		
+		// null if a subclass keeps the body elsewhere, see readBody()
+		protected final String body;
+		
+		protected final MemoryQueue queue;
+		
+		// Set by the thread which removes the message
+		protected final AtomicBoolean removed = new AtomicBoolean(false);
+		
+		protected Message(int messageId, int senderId, int receiverId, String body, MemoryQueue queue) {
+			
+			this.messageId = messageId;
+			this.senderId = senderId;
+			this.receiverId = receiverId;
+			this.body = body;
+			this.queue = queue;
+		}
+	}
+	
+	protected static class MemoryQueue {
+		
+		protected final int queueId;
+		
+		// Set when the queue is deleted. Messages inserted concurrently are removed again
+		private volatile boolean deleted = false;
+		
+		// Messages without receiver by message id
+		private final ConcurrentSkipListMap<Integer, Message> noReceiver = new ConcurrentSkipListMap<Integer, Message>();
+		
+		// Receiver id -> messages for the receiver by message id
+		private final ConcurrentHashMap<Integer, ConcurrentSkipListMap<Integer, Message>> byReceiver = new ConcurrentHashMap<Integer, ConcurrentSkipListMap<Integer, Message>>();
+		
+		private MemoryQueue(int queueId) {
+			this.queueId = queueId;
+		}
+	}
+	
+	// Queue id -> queue
+	private ConcurrentHashMap<Integer, MemoryQueue> queues = new ConcurrentHashMap<Integer, MemoryQueue>();
+	
+	// Message id -> message
+	private ConcurrentHashMap<Integer, Message> messages = new ConcurrentHashMap<Integer, Message>();
+	
+	// Receiver id -> messages for the receiver in all queues by message id
+	private ConcurrentHashMap<Integer, ConcurrentSkipListMap<Integer, Message>> receiverIndex = new ConcurrentHashMap<Integer, ConcurrentSkipListMap<Integer, Message>>();
+	
+	// Returned by take() for a message the client cannot decode
+	private static final Message TOO_LONG = new Message(-1, -1, -1, null, null);
+	
+	// Ids start at 1 as the sequence of the DB
+	private AtomicInteger nextMessageId = new AtomicInteger(0);
+	
+	/*
+	 * STATS
+	 */
+	private AtomicLong inserted = new AtomicLong(0);
+	private AtomicLong removed = new AtomicLong(0);
+	private AtomicLong lostRaces = new AtomicLong(0);
+	/*
+	 * STATS END
+	 */
+	
+	/**
+	 * MESSAGES
+	 */
+	
+	public Response insertMessage(Request req) {
+		
+		long start = System.nanoTime();
+		
+		Response rsp = newResponse(req);
+		
+		Message message;
+		
+		try {
+			
+			message = insert(req.senderId, req.receiverId, req.queueId, req.getMessage());
+			
+		} catch (IOException e) {
+			
+			e.printStackTrace();
+			
+			rsp.errorType = 1;
+			return finish(rsp, start);
+		}
+		
+		if (message != null) {
+			
+			rsp.messageId = message.messageId;
+			
+		} else {
+			
+			// As the foreign key violation of the DB
+			rsp.errorType = 3;
+		}
+		
+		return finish(rsp, start);
+	}
+	
+	public Response insertMessages(Request req) {
+		
+		long start = System.nanoTime();
+		
+		Response rsp = newResponse(req);
+		
+		// All queues must exist, otherwise none of the messages is inserted
+		for (int i = 0; i < req.batchCount; ++i) {
+			
+			if (!this.queues.containsKey(req.batchQueueIds[i])) {
+				
+				rsp.errorType = 3;
+				return finish(rsp, start);
+			}
+		}
+		
+		Message[] inserted = new Message[req.batchCount];
+		
+		for (int i = 0; i < req.batchCount; ++i) {
+			
+			try {
+				
+				inserted[i] = insert(req.senderId, req.batchReceiverIds[i], req.batchQueueIds[i], req.getBatchMessage(i));
+				
+				// A queue was deleted in the meantime
+				if (inserted[i] == null) {
+					rsp.errorType = 3;
+				}
+				
+			} catch (IOException e) {
+				
+				e.printStackTrace();
+				
+				rsp.errorType = 1;
+			}
+			
+			if (rsp.errorType != 0) {
+				
+				// Undo the batch
+				for (int j = 0; j < i; ++j) {
+					remove(inserted[j]);
+				}
+				
+				return finish(rsp, start);
+			}
+		}
+		
+		rsp.batchMessageIds = new int[req.batchCount];
+		
+		for (int i = 0; i < req.batchCount; ++i) {
+			rsp.batchMessageIds[i] = inserted[i].messageId;
+		}
+		
+		rsp.messageId = rsp.batchMessageIds[0];
+		
+		return finish(rsp, start);
+	}
+	
+	public Response retrieveMessageByReceiverId(Request req) {
+		
+		long start = System.nanoTime();
+		
+		Response rsp = newResponse(req);
+		
+		// Messages for the client which sent the request, from the client given as receiver
+		Message message = null;
+		
+		ConcurrentSkipListMap<Integer, Message> index = this.receiverIndex.get(req.senderId);
+		
+		if (index != null) {
+			
+			for (Message m : index.descendingMap().values()) {
+				
+				if (!m.removed.get() && m.senderId == req.receiverId) {
+					message = m;
+					break;
+				}
+			}
+		}
+		
+		return finish(found(rsp, message), start);
+	}
+	
+	public Response retrieveMessageFromQueueById(Request req) {
+		
+		long start = System.nanoTime();
+		
+		Response rsp = newResponse(req);
+		
+		MemoryQueue queue = this.queues.get(req.queueId);
+		
+		Message message = queue != null ? newest(queue, req.senderId) : null;
+		
+		return finish(found(rsp, message), start);
+	}
+	
+	public Response retrieveMessageFromQueueByIdWithDelete(Request req) {
+		
+		long start = System.nanoTime();
+		
+		Response rsp = newResponse(req);
+		
+		MemoryQueue queue = this.queues.get(req.queueId);
+		
+		Message message = queue != null ? take(queue, req.senderId, req.protocolVersion) : null;
+		
+		return finish(found(rsp, message), start);
+	}
+	
+	public Response retrieveMessagesFromQueueWithDelete(Request req) {
+		
+		long start = System.nanoTime();
+		
+		Response rsp = newResponse(req);
+		
+		MemoryQueue queue = this.queues.get(req.queueId);
+		
+		int[] ids = new int[req.maxMessages];
+		String[] bodies = new String[req.maxMessages];
+		
+		int n = 0;
+		
+		// Newest first, as the DB returns them
+		while (queue != null && n < req.maxMessages) {
+			
+			Message message = take(queue, req.senderId, req.protocolVersion);
+			
+			if (message == null || message == TOO_LONG) {
+				
+				// The client cannot decode the next message, it stays in the queue
+				if (message == TOO_LONG && n == 0) {
+					rsp.errorType = 5; // MESSAGE_TOO_LONG_ERROR
+					return finish(rsp, start);
+				}
+				
+				break;
+			}
+			
+			ids[n] = message.messageId;
+			bodies[n] = readBody(message);
+			++n;
+		}
+		
+		if (n == 0) {
+			
+			rsp.errorType = 2; // RECORD_NOT_FOUND_ERROR
+			
+		} else {
+			
+			rsp.batchMessageIds = Arrays.copyOf(ids, n);
+			rsp.batchMessages = Arrays.copyOf(bodies, n);
+			
+			rsp.messageId = ids[0];
+			rsp.retrievedMessage = bodies[0];
+		}
+		
+		return finish(rsp, start);
+	}
+	
+	public int[] deleteMessages(int[] messageIds, int count) {
+		
+		int[] deleted = new int[count];
+		int n = 0;
+		
+		for (int i = 0; i < count; ++i) {
+			
+			Message message = this.messages.get(messageIds[i]);
+			
+			if (message != null && remove(message)) {
+				deleted[n++] = message.messageId;
+			}
+		}
+		
+		return Arrays.copyOf(deleted, n);
+	}
+	
+	/**
+	 * QUEUES
+	 */
+	
+	public Response queryForQueueByReceiverId(Request req) {
+		
+		long start = System.nanoTime();
+		
+		Response rsp = newResponse(req);
+		
+		Message message = null;
+		
+		ConcurrentSkipListMap<Integer, Message> index = this.receiverIndex.get(req.receiverId);
+		
+		if (index != null) {
+			message = newest(index);
+		}
+		
+		if (message != null) {
+			
+			rsp.retrievedMessage = "Queue where messages are waiting: " + message.queue.queueId;
+			
+		} else {
+			
+			rsp.errorType = 2; // RECORD_NOT_FOUND_ERROR
+		}
+		
+		return finish(rsp, start);
+	}
+	
+	public Response insertQueueById(Request req) {
+		
+		long start = System.nanoTime();
+		
+		Response rsp = newResponse(req);
+		
+		// An existing queue is kept
+		if (this.queues.putIfAbsent(req.queueId, new MemoryQueue(req.queueId)) == null) {
+			
+			try {
+				
+				queueCreated(req.queueId);
+				
+			} catch (IOException e) {
+				
+				e.printStackTrace();
+				
+				this.queues.remove(req.queueId);
+				rsp.errorType = 1;
+			}
+		}
+		
+		return finish(rsp, start);
+	}
+	
+	public Response deleteQueueById(Request req) {
+		
+		long start = System.nanoTime();
+		
+		Response rsp = newResponse(req);
+		
+		if (this.queues.containsKey(req.queueId)) {
+			
+			try {
+				
+				queueDeleted(req.queueId);
+				
+			} catch (IOException e) {
+				
+				e.printStackTrace();
+				
+				// The queue is kept
+				rsp.errorType = 1;
+				return finish(rsp, start);
+			}
+		}
+		
+		MemoryQueue queue = this.queues.remove(req.queueId);
+		
+		if (queue != null) {
+			
+			// Inserts which still see the queue remove their message themselves
+			queue.deleted = true;
+			
+			// The messages are deleted with the queue
+			for (Message message : queue.noReceiver.values()) {
+				remove(message);
+			}
+			
+			for (ConcurrentSkipListMap<Integer, Message> messages : queue.byReceiver.values()) {
+				
+				for (Message message : messages.values()) {
+					remove(message);
+				}
+			}
+		}
+		
+		return finish(rsp, start);
+	}
+	
+	/**
+	 * HELPERS
+	 */
+	
+	// Insert a message. Returns null if the queue does not exist
+	private Message insert(int senderId, int receiverId, int queueId, String body) throws IOException {
+		
+		MemoryQueue queue = this.queues.get(queueId);
+		
+		if (queue == null) {
+			return null;
+		}
+		
+		Message message = createMessage(this.nextMessageId.incrementAndGet(), senderId, receiverId, body, queue);
+		
+		index(message);
+		
+		messageIndexed(message);
+		
+		// The queue was deleted while the message was inserted
+		if (queue.deleted) {
+			
+			remove(message);
+			return null;
+		}
+		
+		this.inserted.incrementAndGet();
+		
+		return message;
+	}
+	
+	// Remove a message. Returns false if another thread removed it first
+	private boolean remove(Message message) {
+		
+		if (!message.removed.compareAndSet(false, true)) {
+			
+			this.lostRaces.incrementAndGet();
+			return false;
+		}
+		
+		this.messages.remove(message.messageId);
+		
+		if (message.receiverId == -1) {
+			
+			message.queue.noReceiver.remove(message.messageId);
+			
+		} else {
+			
+			ConcurrentSkipListMap<Integer, Message> messages = message.queue.byReceiver.get(message.receiverId);
+			
+			if (messages != null) {
+				messages.remove(message.messageId);
+			}
+			
+			messages = this.receiverIndex.get(message.receiverId);
+			
+			if (messages != null) {
+				messages.remove(message.messageId);
+			}
+		}
+		
+		this.removed.incrementAndGet();
+		
+		messageRemoved(message);
+		
+		return true;
+	}
+	
+	// Make a message visible to the readers
+	private void index(Message message) {
+		
+		this.messages.put(message.messageId, message);
+		
+		if (message.receiverId == -1) {
+			
+			message.queue.noReceiver.put(message.messageId, message);
+			
+		} else {
+			
+			getMessages(message.queue.byReceiver, message.receiverId).put(message.messageId, message);
+			getMessages(this.receiverIndex, message.receiverId).put(message.messageId, message);
+		}
+	}
+	
+	// Newest message of the queue without receiver or for the receiver
+	private static Message newest(MemoryQueue queue, int receiverId) {
+		
+		Message message = newest(queue.noReceiver);
+		
+		ConcurrentSkipListMap<Integer, Message> forReceiver = queue.byReceiver.get(receiverId);
+		
+		if (forReceiver != null) {
+			
+			Message candidate = newest(forReceiver);
+			
+			if (candidate != null && (message == null || candidate.messageId > message.messageId)) {
+				message = candidate;
+			}
+		}
+		
+		return message;
+	}
+	
+	// Newest message which is not removed
+	private static Message newest(ConcurrentSkipListMap<Integer, Message> messages) {
+		
+		for (Message message : messages.descendingMap().values()) {
+			
+			if (!message.removed.get()) {
+				return message;
+			}
+		}
+		
+		return null;
+	}
+	
+	// Remove and return the newest message of the queue without receiver or for the receiver
+	// Remove the newest message. TOO_LONG if the client cannot decode it, it is not removed then
+	private Message take(MemoryQueue queue, int receiverId, int version) {
+		
+		while (true) {
+			
+			Message message = newest(queue, receiverId);
+			
+			if (message == null) {
+				return null;
+			}
+			
+			if (version < Protocol.VERSION_2 && !ResponseEncoder.canEncode(readBody(message), version)) {
+				return TOO_LONG;
+			}
+			
+			if (remove(message)) {
+				return message;
+			}
+			
+			// Another client took it, try the next one
+		}
+	}
+	
+	private static ConcurrentSkipListMap<Integer, Message> getMessages(ConcurrentHashMap<Integer, ConcurrentSkipListMap<Integer, Message>> map, int receiverId) {
+		
+		ConcurrentSkipListMap<Integer, Message> messages = map.get(receiverId);
+		
+		if (messages == null) {
+			
+			ConcurrentSkipListMap<Integer, Message> newMessages = new ConcurrentSkipListMap<Integer, Message>();
+			
+			messages = map.putIfAbsent(receiverId, newMessages);
+			
+			if (messages == null) {
+				messages = newMessages;
+			}
+		}
+		
+		return messages;
+	}
+	
+	private static Response newResponse(Request req) {
+		
+		Response rsp = new Response();
+		
+		// Pre-populate response
+		rsp.errorType = 0; // NO_ERROR
+		rsp.requestId = req.requestId;
+		rsp.requestType = req.type;
+		rsp.messageId = -1;
+		rsp.retrievedMessage = "";
+		
+		return rsp;
+	}
+	
+	// Fill in a message which was read, RECORD_NOT_FOUND_ERROR if there is none
+	private Response found(Response rsp, Message message) {
+		
+		if (message == TOO_LONG) {
+			
+			rsp.errorType = 5; // MESSAGE_TOO_LONG_ERROR
+			
+		} else if (message != null) {
+			
+			rsp.messageId = message.messageId;
+			rsp.retrievedMessage = readBody(message);
+			
+		} else {
+			
+			rsp.errorType = 2; // RECORD_NOT_FOUND_ERROR
+		}
+		
+		return rsp;
+	}
+	
+	/**
+	 * HOOKS for stores which persist the queues and messages. Called outside of any lock
+	 */
+	
+	/**
+	 * Create a new message before it is visible to the readers
+	 * @return the message
+	 * @throws IOException if the message cannot be stored, the request fails with an SQL error then
+	 */
+	protected Message createMessage(int messageId, int senderId, int receiverId, String body, MemoryQueue queue) throws IOException {
+		return new Message(messageId, senderId, receiverId, body, queue);
+	}
+	
+	/**
+	 * @return body of a message
+	 */
+	protected String readBody(Message message) {
+		return message.body;
+	}
+	
+	/**
+	 * Called after a new message is visible to the readers
+	 * @param message
+	 */
+	protected void messageIndexed(Message message) {
+		// Nothing to persist
+	}
+	
+	/**
+	 * Called after a message was removed by a reader, by deleteMessages() or with its queue
+	 * @param message
+	 */
+	protected void messageRemoved(Message message) {
+		// Nothing to persist
+	}
+	
+	/**
+	 * Called after a new queue was created
+	 * @param queueId
+	 * @throws IOException - the queue is not created
+	 */
+	protected void queueCreated(int queueId) throws IOException {
+		// Nothing to persist
+	}
+	
+	/**
+	 * Called before an existing queue and its messages are deleted
+	 * @param queueId
+	 * @throws IOException - the queue is not deleted
+	 */
+	protected void queueDeleted(int queueId) throws IOException {
+		// Nothing to persist
+	}
+	
+	/**
+	 * RECOVERY of a persistent store, before any request is performed
+	 */
+	
+	protected MemoryQueue restoreQueue(int queueId) {
+		
+		MemoryQueue queue = new MemoryQueue(queueId);
+		
+		this.queues.put(queueId, queue);
+		
+		return queue;
+	}
+	
+	protected MemoryQueue getQueue(int queueId) {
+		return this.queues.get(queueId);
+	}
+	
+	protected void restoreMessage(Message message) {
+		index(message);
+	}
+	
+	// The next message gets a larger id
+	protected void restoreMessageId(int messageId) {
+		
+		if (messageId > this.nextMessageId.get()) {
+			this.nextMessageId.set(messageId);
+		}
+	}
+	
+	protected int getLastMessageId() {
+		return this.nextMessageId.get();
+	}
+	
+	/**
+	 * @param messageId
+	 * @return the message or null if it was removed
+	 */
+	protected Message getMessage(int messageId) {
+		return this.messages.get(messageId);
+	}
+	
+	// STATS: the time of the operation is reported as SQL execution time
+	private static Response finish(Response rsp, long start) {
+		
+		double elapsedExecutionTime = (System.nanoTime() - start) / 1000000.0; // In milliseconds
+		
+		rsp.sqlExecutionTime = new BigDecimal(elapsedExecutionTime).setScale(2, RoundingMode.HALF_UP).doubleValue();
+		
+		return rsp;
+	}
+	
+	public String formatStatistics() {
+		
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("queues=");
+		sb.append(this.queues.size());
+		sb.append(" messages=");
+		sb.append(this.messages.size());
+		sb.append(" inserted=");
+		sb.append(this.inserted.get());
+		sb.append(" removed=");
+		sb.append(this.removed.get());
+		sb.append(" lost_races=");
+		sb.append(this.lostRaces.get());
+		
+		return sb.toString();
+	}
+	// STATS END
+	
+}
@@ -0,0 +1,19 @@
+package mps.store;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Notified about messages which a store put into the DB without a MSG_SEND_REQ,
+ * e.g. the messages released by the PrefetchMessageStore. Called after the insert is committed.
+ *
+ */
+
+public interface InsertListener {
+	
+	/**
+	 * @param senderId
+	 * @param receiverId - -1 if the message has no specific receiver
+	 * @param queueId
+	 */
+	public void messageInserted(int senderId, int receiverId, int queueId);
+}
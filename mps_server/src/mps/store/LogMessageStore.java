@@ -0,0 +1,817 @@
+package mps.store;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description MessageStore which appends the messages to a log of memory-mapped segment files.
+ * The indexes of the InMemoryMessageStore are kept, but a message only holds the location of its record
+ * in the log. The body is read from the mapped segment when the message is retrieved.
+ * A removed message is recorded by a tombstone. The compactor thread copies the live records of segments
+ * which are mostly dead into the active segment and deletes the old files.
+ * When the middleware starts, the indexes are rebuilt from the queue file and the segments.
+ * Records are written to the page cache. They survive a crash of the middleware, but only the
+ * records which were forced survive a crash of the machine, see config.logForce.
+ *
+ * Record: type (1 byte), payload length (4 bytes), CRC32 of the payload (4 bytes), payload
+ * MESSAGE payload: message id, sender id, receiver id, queue id, body length (-1 without body), body in UTF-8
+ * TOMBSTONE payload: message id, segment id of the message record
+ * The type is written last, a record of type END or with a wrong checksum ends the segment.
+ *
+ */
+
+public class LogMessageStore extends InMemoryMessageStore {
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/*
+	 * Record types
+	 */
+	private static final byte END = 0;
+	private static final byte MESSAGE = 1;
+	private static final byte TOMBSTONE = 2;
+	
+	private static final int HEADER_SIZE = 9;
+	private static final int MESSAGE_PAYLOAD_SIZE = 20; // Without body
+	private static final int TOMBSTONE_PAYLOAD_SIZE = 8;
+	
+	private static final String QUEUE_FILE = "queues";
+	
+	// A message kept in the log. Its record is moved by the compactor
+	protected static class LogMessage extends Message {
+		
+		// Guarded by the message. Segment and position of the message record
+		private Segment segment;
+		private int position;
+		
+		private final int recordSize;
+		
+		private LogMessage(int messageId, int senderId, int receiverId, MemoryQueue queue, Segment segment, int position, int recordSize) {
+			
+			// The body is read from the log
+			super(messageId, senderId, receiverId, null, queue);
+			
+			this.segment = segment;
+			this.position = position;
+			this.recordSize = recordSize;
+		}
+	}
+	
+	// A segment file mapped into memory
+	private static class Segment {
+		
+		private final int segmentId;
+		
+		private final File file;
+		
+		private final MappedByteBuffer buffer;
+		
+		// Bytes of records. Only the active segment grows
+		private volatile int size = 0;
+		
+		// Bytes of message records which are not removed
+		private final AtomicLong liveBytes = new AtomicLong(0);
+		
+		// Messages appended but not yet indexed, the compactor would miss them
+		private final AtomicInteger unindexedMessages = new AtomicInteger(0);
+		
+		// Guarded by the append lock. Segment id of the messages -> bytes of tombstones for them
+		private final HashMap<Integer, Long> tombstoneBytes = new HashMap<Integer, Long>();
+		
+		private Segment(int segmentId, File file, MappedByteBuffer buffer) {
+			
+			this.segmentId = segmentId;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+	
+	private File directory;
+	
+	private final int segmentSize;
+	
+	private final boolean force;
+	
+	private final double compactionThreshold;
+	
+	// Segment id -> segment. The last one is the active segment
+	private ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+	
+	// Guards the active segment
+	private final Object appendLock = new Object();
+	
+	private Segment activeSegment;
+	
+	/*
+	 * Guarded by queueIds. Existing queues and per queue the last message id when it was deleted,
+	 * older messages of the queue are not recovered
+	 */
+	private TreeSet<Integer> queueIds = new TreeSet<Integer>();
+	private TreeMap<Integer, Integer> deleteWatermarks = new TreeMap<Integer, Integer>();
+	
+	/*
+	 * STATS
+	 */
+	private AtomicLong appendedRecords = new AtomicLong(0);
+	private AtomicLong appendedBytes = new AtomicLong(0);
+	private AtomicLong compactedSegments = new AtomicLong(0);
+	private AtomicLong copiedRecords = new AtomicLong(0);
+	/*
+	 * STATS END
+	 */
+	
+	/**
+	 * Open the log in a directory and recover the queues and messages
+	 * @param directory - created if it does not exist
+	 * @param segmentSize - size of a segment file in bytes
+	 * @param force - force every record to the disk before the request is answered
+	 * @param compactionThreshold - segments with a smaller fraction of live bytes are compacted
+	 * @throws IOException if the log cannot be opened
+	 */
+	public LogMessageStore(File directory, int segmentSize, boolean force, double compactionThreshold) throws IOException {
+		
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.force = force;
+		this.compactionThreshold = compactionThreshold;
+		
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create the log directory " + directory);
+		}
+		
+		recover();
+	}
+	
+	/**
+	 * Start the compactor thread
+	 * @param intervalSeconds - time between two compaction runs
+	 */
+	public void startCompactor(final int intervalSeconds) {
+		
+		Thread t = new Thread(new Runnable() {
+			
+			public void run() {
+				
+				while (true) {
+					
+					try {
+						
+						Thread.sleep(TimeUnit.SECONDS.toMillis(Math.max(1, intervalSeconds)));
+						
+						compact();
+						
+					} catch (InterruptedException e) {
+						
+						// Compactor thread is a daemon, it ends with the middleware
+						return;
+						
+					} catch (IOException e) {
+						
+						// The segment is kept, compaction is repeated in the next run
+						e.printStackTrace();
+					}
+				}
+			}
+			
+		}, "LogCompactor");
+		
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * HOOKS of the InMemoryMessageStore
+	 */
+	
+	@Override
+	protected Message createMessage(int messageId, int senderId, int receiverId, String body, MemoryQueue queue) throws IOException {
+		
+		// A message without body is kept with length -1
+		byte[] bytes = body == null ? new byte[0] : body.getBytes(UTF8);
+		
+		ByteBuffer payload = ByteBuffer.allocate(MESSAGE_PAYLOAD_SIZE + bytes.length);
+		
+		payload.putInt(messageId);
+		payload.putInt(senderId);
+		payload.putInt(receiverId);
+		payload.putInt(queue.queueId);
+		payload.putInt(body == null ? -1 : bytes.length);
+		payload.put(bytes);
+		
+		synchronized (this.appendLock) {
+			
+			int position = append(MESSAGE, payload.array());
+			
+			this.activeSegment.liveBytes.addAndGet(HEADER_SIZE + payload.capacity());
+			this.activeSegment.unindexedMessages.incrementAndGet();
+			
+			return new LogMessage(messageId, senderId, receiverId, queue, this.activeSegment, position, HEADER_SIZE + payload.capacity());
+		}
+	}
+	
+	@Override
+	protected void messageIndexed(Message message) {
+		
+		// Not moved yet, the compactor skips segments with unindexed messages
+		((LogMessage) message).segment.unindexedMessages.decrementAndGet();
+	}
+	
+	@Override
+	protected String readBody(Message message) {
+		
+		LogMessage logMessage = (LogMessage) message;
+		
+		Segment segment;
+		int position;
+		
+		// The compactor may move the record
+		synchronized (logMessage) {
+			
+			segment = logMessage.segment;
+			position = logMessage.position;
+		}
+		
+		// The mapping of a compacted segment stays valid as long as it is referenced
+		ByteBuffer buffer = segment.buffer.duplicate();
+		
+		int length = buffer.getInt(position + HEADER_SIZE + 16);
+		
+		if (length < 0) {
+			return null;
+		}
+		
+		byte[] bytes = new byte[length];
+		
+		buffer.position(position + HEADER_SIZE + MESSAGE_PAYLOAD_SIZE);
+		buffer.get(bytes);
+		
+		return new String(bytes, UTF8);
+	}
+	
+	@Override
+	protected void messageRemoved(Message message) {
+		
+		LogMessage logMessage = (LogMessage) message;
+		
+		ByteBuffer payload = ByteBuffer.allocate(TOMBSTONE_PAYLOAD_SIZE);
+		
+		// The compactor does not move the record while the tombstone is written
+		synchronized (logMessage) {
+			
+			payload.putInt(logMessage.messageId);
+			payload.putInt(logMessage.segment.segmentId);
+			
+			try {
+				
+				synchronized (this.appendLock) {
+					append(TOMBSTONE, payload.array());
+				}
+				
+			} catch (IOException e) {
+				
+				// The message is removed in memory, it is recovered again after a restart
+				e.printStackTrace();
+			}
+			
+			logMessage.segment.liveBytes.addAndGet(-logMessage.recordSize);
+		}
+	}
+	
+	@Override
+	protected void queueCreated(int queueId) throws IOException {
+		
+		synchronized (this.queueIds) {
+			
+			this.queueIds.add(queueId);
+			
+			try {
+				
+				writeQueues();
+				
+			} catch (IOException e) {
+				
+				this.queueIds.remove(queueId);
+				throw e;
+			}
+		}
+	}
+	
+	@Override
+	protected void queueDeleted(int queueId) throws IOException {
+		
+		synchronized (this.queueIds) {
+			
+			Integer watermark = this.deleteWatermarks.get(queueId);
+			
+			this.queueIds.remove(queueId);
+			
+			// Messages inserted while the queue is deleted get a tombstone
+			this.deleteWatermarks.put(queueId, getLastMessageId());
+			
+			try {
+				
+				writeQueues();
+				
+			} catch (IOException e) {
+				
+				this.queueIds.add(queueId);
+				
+				if (watermark == null) {
+					this.deleteWatermarks.remove(queueId);
+				} else {
+					this.deleteWatermarks.put(queueId, watermark);
+				}
+				
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * LOG
+	 */
+	
+	// Append a record to the active segment, the caller holds the append lock. Returns the position of the record
+	private int append(byte type, byte[] payload) throws IOException {
+		
+		int recordSize = HEADER_SIZE + payload.length;
+		
+		// Leave space for the END mark
+		if (recordSize + 1 > this.segmentSize) {
+			throw new IOException("Record of " + recordSize + " bytes does not fit into a segment");
+		}
+		
+		if (this.activeSegment.size + recordSize + 1 > this.segmentSize) {
+			roll();
+		}
+		
+		Segment segment = this.activeSegment;
+		
+		int position = segment.size;
+		
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		
+		ByteBuffer buffer = segment.buffer.duplicate();
+		
+		buffer.position(position + 1);
+		buffer.putInt(payload.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(payload);
+		
+		// END mark after the record, the bytes behind it may be left over from a torn record
+		buffer.put(END);
+		
+		// The type completes the record
+		buffer.put(position, type);
+		
+		if (this.force) {
+			segment.buffer.force();
+		}
+		
+		segment.size = position + recordSize;
+		
+		if (type == TOMBSTONE) {
+			
+			int messageSegmentId = ByteBuffer.wrap(payload).getInt(4);
+			
+			Long bytes = segment.tombstoneBytes.get(messageSegmentId);
+			segment.tombstoneBytes.put(messageSegmentId, (bytes == null ? 0 : bytes) + recordSize);
+		}
+		
+		// STATS
+		this.appendedRecords.incrementAndGet();
+		this.appendedBytes.addAndGet(recordSize);
+		// STATS END
+		
+		return position;
+	}
+	
+	// Seal the active segment and start a new one, the caller holds the append lock
+	private void roll() throws IOException {
+		
+		// Sealed segments are complete on the disk before they are compacted
+		this.activeSegment.buffer.force();
+		
+		// Message ids are not reused when the sealed segments are compacted away
+		synchronized (this.queueIds) {
+			writeQueues();
+		}
+		
+		this.activeSegment = openSegment(this.activeSegment.segmentId + 1, true);
+		this.segments.put(this.activeSegment.segmentId, this.activeSegment);
+	}
+	
+	private Segment openSegment(int segmentId, boolean create) throws IOException {
+		
+		File file = new File(this.directory, String.format("segment-%010d.log", segmentId));
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		
+		try {
+			
+			// A new segment is allocated with its full size, it is filled with END marks
+			if (create) {
+				raf.setLength(this.segmentSize);
+			}
+			
+			// The mapping stays valid when the file is closed
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			
+			return new Segment(segmentId, file, buffer);
+			
+		} finally {
+			
+			raf.close();
+		}
+	}
+	
+	// Scan the records of a segment. Returns the end of the last valid record
+	private static int scan(Segment segment, RecordVisitor visitor) throws IOException {
+		
+		ByteBuffer buffer = segment.buffer.duplicate();
+		
+		int position = 0;
+		
+		while (position + HEADER_SIZE <= buffer.capacity()) {
+			
+			byte type = buffer.get(position);
+			int length = buffer.getInt(position + 1);
+			
+			if (type == END || length < 0 || position + HEADER_SIZE + length > buffer.capacity()) {
+				break;
+			}
+			
+			byte[] payload = new byte[length];
+			
+			buffer.position(position + HEADER_SIZE);
+			buffer.get(payload);
+			
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			
+			// Torn record
+			if ((int) crc.getValue() != buffer.getInt(position + 5)) {
+				break;
+			}
+			
+			visitor.visit(type, ByteBuffer.wrap(payload), position, HEADER_SIZE + length);
+			
+			position += HEADER_SIZE + length;
+		}
+		
+		return position;
+	}
+	
+	private interface RecordVisitor {
+		
+		public void visit(byte type, ByteBuffer payload, int position, int recordSize) throws IOException;
+	}
+	
+	/**
+	 * QUEUE FILE with the queues and the last message id. Written to a temporary file which replaces the old one
+	 */
+	
+	private void writeQueues() throws IOException {
+		
+		File tmp = new File(this.directory, QUEUE_FILE + ".tmp");
+		
+		FileOutputStream out = new FileOutputStream(tmp);
+		
+		try {
+			
+			Writer writer = new OutputStreamWriter(out, UTF8);
+			
+			writer.write("last_message_id " + getLastMessageId() + "\n");
+			
+			for (Map.Entry<Integer, Integer> watermark : this.deleteWatermarks.entrySet()) {
+				writer.write("deleted " + watermark.getKey() + " " + watermark.getValue() + "\n");
+			}
+			
+			for (Integer queueId : this.queueIds) {
+				writer.write("queue " + queueId + "\n");
+			}
+			
+			writer.flush();
+			out.getFD().sync();
+			
+		} finally {
+			
+			out.close();
+		}
+		
+		Files.move(tmp.toPath(), new File(this.directory, QUEUE_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	private void readQueues() throws IOException {
+		
+		File file = new File(this.directory, QUEUE_FILE);
+		
+		if (!file.exists()) {
+			return;
+		}
+		
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+		
+		try {
+			
+			String line;
+			
+			while ((line = reader.readLine()) != null) {
+				
+				String[] fields = line.trim().split(" ");
+				
+				if (fields[0].equals("queue")) {
+					this.queueIds.add(Integer.parseInt(fields[1]));
+				} else if (fields[0].equals("deleted")) {
+					this.deleteWatermarks.put(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+					restoreMessageId(Integer.parseInt(fields[2]));
+				} else if (fields[0].equals("last_message_id")) {
+					restoreMessageId(Integer.parseInt(fields[1]));
+				}
+			}
+			
+		} finally {
+			
+			reader.close();
+		}
+	}
+	
+	/**
+	 * RECOVERY
+	 */
+	
+	private void recover() throws IOException {
+		
+		readQueues();
+		
+		for (Integer queueId : this.queueIds) {
+			restoreQueue(queueId);
+		}
+		
+		// Open the segments in the order of their ids
+		File[] files = this.directory.listFiles();
+		ArrayList<Integer> segmentIds = new ArrayList<Integer>();
+		
+		for (File file : files) {
+			
+			String name = file.getName();
+			
+			if (name.startsWith("segment-") && name.endsWith(".log")) {
+				segmentIds.add(Integer.parseInt(name.substring(8, name.length() - 4)));
+			}
+		}
+		
+		Integer[] ids = segmentIds.toArray(new Integer[segmentIds.size()]);
+		Arrays.sort(ids);
+		
+		final HashSet<Integer> tombstones = new HashSet<Integer>();
+		
+		// First pass: the tombstones and the sizes of the segments
+		for (Integer segmentId : ids) {
+			
+			final Segment segment = openSegment(segmentId, false);
+			
+			segment.size = scan(segment, new RecordVisitor() {
+				
+				public void visit(byte type, ByteBuffer payload, int position, int recordSize) {
+					
+					if (type == MESSAGE) {
+						
+						restoreMessageId(payload.getInt(0));
+						
+					} else if (type == TOMBSTONE) {
+						
+						tombstones.add(payload.getInt(0));
+						
+						Long bytes = segment.tombstoneBytes.get(payload.getInt(4));
+						segment.tombstoneBytes.put(payload.getInt(4), (bytes == null ? 0 : bytes) + recordSize);
+					}
+				}
+			});
+			
+			this.segments.put(segmentId, segment);
+		}
+		
+		// Second pass: the messages which are not removed
+		for (final Segment segment : this.segments.values()) {
+			
+			scan(segment, new RecordVisitor() {
+				
+				public void visit(byte type, ByteBuffer payload, int position, int recordSize) {
+					
+					if (type != MESSAGE) {
+						return;
+					}
+					
+					int messageId = payload.getInt(0);
+					int queueId = payload.getInt(12);
+					
+					Integer watermark = deleteWatermarks.get(queueId);
+					MemoryQueue queue = getQueue(queueId);
+					
+					if (tombstones.contains(messageId) || queue == null || (watermark != null && messageId <= watermark)) {
+						return;
+					}
+					
+					LogMessage copy = (LogMessage) getMessage(messageId);
+					
+					// A message copied by the compactor is in the log twice. Keep the newest copy,
+					// a tombstone written after the restart refers to its segment. The older copy is dead
+					if (copy != null) {
+						
+						copy.segment.liveBytes.addAndGet(-copy.recordSize);
+						
+						copy.segment = segment;
+						copy.position = position;
+						
+						segment.liveBytes.addAndGet(recordSize);
+						return;
+					}
+					
+					restoreMessage(new LogMessage(messageId, payload.getInt(4), payload.getInt(8), queue, segment, position, recordSize));
+					
+					segment.liveBytes.addAndGet(recordSize);
+				}
+			});
+		}
+		
+		// Appends continue in the last segment
+		if (this.segments.isEmpty()) {
+			
+			Segment segment = openSegment(0, true);
+			this.segments.put(segment.segmentId, segment);
+		}
+		
+		this.activeSegment = this.segments.lastEntry().getValue();
+		
+		System.out.println("Log recovered: " + this.segments.size() + " segments, " + getLastMessageId() + " last message id");
+	}
+	
+	/**
+	 * COMPACTION
+	 */
+	
+	// Compact the sealed segments with few live bytes
+	private void compact() throws IOException {
+		
+		for (Segment segment : this.segments.values()) {
+			
+			if (segment == this.activeSegment || segment.size == 0 || segment.unindexedMessages.get() > 0) {
+				continue;
+			}
+			
+			if ((double) liveBytes(segment) / segment.size < this.compactionThreshold) {
+				compact(segment);
+			}
+		}
+	}
+	
+	// Message records which are not removed and tombstones of messages in other segments are live
+	private long liveBytes(Segment segment) {
+		
+		long bytes = segment.liveBytes.get();
+		
+		synchronized (this.appendLock) {
+			
+			for (Map.Entry<Integer, Long> tombstones : segment.tombstoneBytes.entrySet()) {
+				
+				if (tombstones.getKey() != segment.segmentId && this.segments.containsKey(tombstones.getKey())) {
+					bytes += tombstones.getValue();
+				}
+			}
+		}
+		
+		return bytes;
+	}
+	
+	// Copy the live records of a segment into the active segment and delete it
+	private void compact(final Segment segment) throws IOException {
+		
+		scan(segment, new RecordVisitor() {
+			
+			public void visit(byte type, ByteBuffer payload, int position, int recordSize) throws IOException {
+				
+				if (type == MESSAGE) {
+					
+					Message message = getMessage(payload.getInt(0));
+					
+					if (message == null) {
+						return;
+					}
+					
+					LogMessage logMessage = (LogMessage) message;
+					
+					synchronized (logMessage) {
+						
+						// Removed, or this is an older copy of the record
+						if (logMessage.removed.get() || logMessage.segment != segment || logMessage.position != position) {
+							return;
+						}
+						
+						synchronized (appendLock) {
+							
+							logMessage.position = append(MESSAGE, payload.array());
+							logMessage.segment = activeSegment;
+						}
+						
+						logMessage.segment.liveBytes.addAndGet(recordSize);
+						segment.liveBytes.addAndGet(-recordSize);
+					}
+					
+					copiedRecords.incrementAndGet();
+					
+				} else if (type == TOMBSTONE) {
+					
+					int messageSegmentId = payload.getInt(4);
+					
+					// The message record is still in the log
+					if (messageSegmentId != segment.segmentId && segments.containsKey(messageSegmentId)) {
+						
+						synchronized (appendLock) {
+							append(TOMBSTONE, payload.array());
+						}
+						
+						copiedRecords.incrementAndGet();
+					}
+				}
+			}
+		});
+		
+		// The copies are on the disk before the segment is deleted
+		synchronized (this.appendLock) {
+			this.activeSegment.buffer.force();
+		}
+		
+		this.segments.remove(segment.segmentId);
+		
+		if (!segment.file.delete()) {
+			throw new IOException("Cannot delete the compacted segment " + segment.file);
+		}
+		
+		this.compactedSegments.incrementAndGet();
+	}
+	
+	// STATS
+	@Override
+	public String formatStatistics() {
+		
+		long size = 0;
+		long live = 0;
+		
+		for (Segment segment : this.segments.values()) {
+			
+			size += segment.size;
+			live += segment.liveBytes.get();
+		}
+		
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append(super.formatStatistics());
+		sb.append(" segments=");
+		sb.append(this.segments.size());
+		sb.append(" log_bytes=");
+		sb.append(size);
+		sb.append(" live_bytes=");
+		sb.append(live);
+		sb.append(" appended_records=");
+		sb.append(this.appendedRecords.get());
+		sb.append(" appended_bytes=");
+		sb.append(this.appendedBytes.get());
+		sb.append(" compacted_segments=");
+		sb.append(this.compactedSegments.get());
+		sb.append(" copied_records=");
+		sb.append(this.copiedRecords.get());
+		
+		return sb.toString();
+	}
+	// STATS END
+	
+}
@@ -0,0 +1,95 @@
+package mps.store;
+
+import mps.request.Request;
+import mps.request.Response;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Storage of the queues and messages. The RequestHandlerThreads perform the requests
+ * against a MessageStore and do not know where the messages are kept.
+ * Every operation gets the decoded request and returns the response for the client, errors are reported
+ * with the error types of the protocol: 1 SQL error, 2 record not found, 3 e.g. the queue does not exist.
+ * Implementations are shared by all RequestHandlerThreads and must be thread-safe.
+ * Request type 2 (MSG_QUERY_REQ) is not used by the clients and has no operation.
+ *
+ */
+
+public interface MessageStore {
+	
+	/**
+	 * MSG_SEND_REQ = 0: insert the message of the request into its queue
+	 * @param req
+	 * @return Response with the id of the new message
+	 */
+	public Response insertMessage(Request req);
+	
+	/**
+	 * MSG_REC_REQ = 1: read the newest message from the client req.receiverId to the client req.senderId
+	 * in any queue. The message is not removed
+	 * @param req
+	 * @return Response with the message
+	 */
+	public Response retrieveMessageByReceiverId(Request req);
+	
+	/**
+	 * QUEUE_READ_REQ = 3: read the newest message of the queue which has no receiver or is for req.senderId.
+	 * The message is not removed
+	 * @param req
+	 * @return Response with the message
+	 */
+	public Response retrieveMessageFromQueueById(Request req);
+	
+	/**
+	 * QUEUE_READ_WITH_REMOVE_REQ = 4: as QUEUE_READ_REQ, the message is removed. A message is
+	 * received by exactly one client
+	 * @param req
+	 * @return Response with the message
+	 */
+	public Response retrieveMessageFromQueueByIdWithDelete(Request req);
+	
+	/**
+	 * QUEUE_QUERY_REQ = 5: find the queue of the newest message for req.receiverId
+	 * @param req
+	 * @return Response with the queue in the message body
+	 */
+	public Response queryForQueueByReceiverId(Request req);
+	
+	/**
+	 * QUEUE_CREATE_REQ = 6: create the queue req.queueId. Creating an existing queue is no error
+	 * @param req
+	 * @return Response
+	 */
+	public Response insertQueueById(Request req);
+	
+	/**
+	 * QUEUE_DEL_REQ = 7: delete the queue req.queueId and all its messages
+	 * @param req
+	 * @return Response
+	 */
+	public Response deleteQueueById(Request req);
+	
+	/**
+	 * MSG_SEND_BATCH_REQ = 8: insert all messages of the batch. Either all or none are inserted
+	 * @param req
+	 * @return Response with the ids of the new messages in the order of the batch
+	 */
+	public Response insertMessages(Request req);
+	
+	/**
+	 * QUEUE_READ_WITH_REMOVE_BATCH_REQ = 9: read and remove up to req.maxMessages messages of the queue
+	 * which have no receiver or are for req.senderId
+	 * @param req
+	 * @return Response with the messages, newest first
+	 */
+	public Response retrieveMessagesFromQueueWithDelete(Request req);
+	
+	/**
+	 * Remove messages by id, used for the messages which are pushed to subscriptions
+	 * @param messageIds
+	 * @param count - number of ids
+	 * @return ids of the messages which were removed. Messages removed by someone else are missing
+	 */
+	public int[] deleteMessages(int[] messageIds, int count);
+	
+}
@@ -0,0 +1,325 @@
+package mps.store;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mps.request.Request;
+import mps.request.Response;
+import mps.statistics.StatisticsSource;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Negative cache in front of a MessageStore. A receive request which found no message is
+ * remembered, the same request is answered with RECORD_NOT_FOUND_ERROR without a DB call until a message
+ * which it could find is inserted through this middleware, or the TTL expires.
+ * Queue reads (QUEUE_READ_REQ, QUEUE_READ_WITH_REMOVE_REQ and the batch) are cached per (queue, client),
+ * MSG_REC_REQs per (client, sender). Every key has a version which an insert increments. A result is only
+ * cached if the version did not change while the request was performed, so a concurrent insert is never hidden.
+ * Messages put into the DB below this cache, e.g. released by the PrefetchMessageStore, are reported as InsertListener.
+ * The TTL bounds the time a message inserted by another middleware instance stays invisible.
+ *
+ */
+
+public class NegativeCacheMessageStore implements MessageStore, InsertListener, StatisticsSource {
+	
+	// A request which found no message
+	private static class Empty {
+		
+		private final long version;
+		
+		private final long expires;
+		
+		private Empty(long version, long expires) {
+			
+			this.version = version;
+			this.expires = expires;
+		}
+	}
+	
+	private MessageStore store;
+	
+	private final long ttlNanos;
+	
+	/*
+	 * Versions. Queue id -> inserts without receiver, (queue id, receiver id) -> inserts for the receiver,
+	 * (receiver id, sender id) -> inserts from the sender for the receiver
+	 */
+	private ConcurrentHashMap<Integer, AtomicLong> queueVersions = new ConcurrentHashMap<Integer, AtomicLong>();
+	private ConcurrentHashMap<Long, AtomicLong> queueReceiverVersions = new ConcurrentHashMap<Long, AtomicLong>();
+	private ConcurrentHashMap<Long, AtomicLong> receiverSenderVersions = new ConcurrentHashMap<Long, AtomicLong>();
+	
+	// (queue id, client id) -> empty queue read, (client id, sender id) -> empty MSG_REC_REQ
+	private ConcurrentHashMap<Long, Empty> emptyQueues = new ConcurrentHashMap<Long, Empty>();
+	private ConcurrentHashMap<Long, Empty> emptyReceivers = new ConcurrentHashMap<Long, Empty>();
+	
+	/*
+	 * STATS
+	 */
+	private AtomicLong hits = new AtomicLong(0);
+	private AtomicLong misses = new AtomicLong(0);
+	private AtomicLong expired = new AtomicLong(0);
+	private AtomicLong invalidations = new AtomicLong(0);
+	/*
+	 * STATS END
+	 */
+	
+	/**
+	 * @param store - performs the requests
+	 * @param ttlMillis - time an empty result is cached at most
+	 */
+	public NegativeCacheMessageStore(MessageStore store, int ttlMillis) {
+		
+		this.store = store;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMillis));
+	}
+	
+	public Response retrieveMessageByReceiverId(Request req) {
+		
+		long start = System.nanoTime();
+		
+		// Messages from req.receiverId to the client req.senderId
+		long key = key(req.senderId, req.receiverId);
+		
+		long version = get(this.receiverSenderVersions, key);
+		
+		if (isEmpty(this.emptyReceivers, key, version, start)) {
+			return notFound(req, start);
+		}
+		
+		Response rsp = this.store.retrieveMessageByReceiverId(req);
+		
+		if (rsp.errorType == 2) {
+			this.emptyReceivers.put(key, new Empty(version, start + this.ttlNanos));
+		}
+		
+		return rsp;
+	}
+	
+	public Response retrieveMessageFromQueueById(Request req) {
+		
+		long start = System.nanoTime();
+		
+		long version = queueVersion(req);
+		
+		if (isEmpty(this.emptyQueues, key(req.queueId, req.senderId), version, start)) {
+			return notFound(req, start);
+		}
+		
+		return cacheQueue(req, this.store.retrieveMessageFromQueueById(req), version, start);
+	}
+	
+	public Response retrieveMessageFromQueueByIdWithDelete(Request req) {
+		
+		long start = System.nanoTime();
+		
+		long version = queueVersion(req);
+		
+		if (isEmpty(this.emptyQueues, key(req.queueId, req.senderId), version, start)) {
+			return notFound(req, start);
+		}
+		
+		return cacheQueue(req, this.store.retrieveMessageFromQueueByIdWithDelete(req), version, start);
+	}
+	
+	public Response retrieveMessagesFromQueueWithDelete(Request req) {
+		
+		long start = System.nanoTime();
+		
+		long version = queueVersion(req);
+		
+		if (isEmpty(this.emptyQueues, key(req.queueId, req.senderId), version, start)) {
+			return notFound(req, start);
+		}
+		
+		return cacheQueue(req, this.store.retrieveMessagesFromQueueWithDelete(req), version, start);
+	}
+	
+	public Response insertMessage(Request req) {
+		
+		Response rsp = this.store.insertMessage(req);
+		
+		// After the insert: a read which started before sees a new version
+		if (rsp.errorType == 0) {
+			inserted(req.senderId, req.receiverId, req.queueId);
+		}
+		
+		return rsp;
+	}
+	
+	public Response insertMessages(Request req) {
+		
+		Response rsp = this.store.insertMessages(req);
+		
+		if (rsp.errorType == 0) {
+			
+			for (int i = 0; i < req.batchCount; ++i) {
+				inserted(req.senderId, req.batchReceiverIds[i], req.batchQueueIds[i]);
+			}
+		}
+		
+		return rsp;
+	}
+	
+	/**
+	 * Performed by the store. Deleting messages or queues does not make an empty result wrong
+	 */
+	
+	public Response queryForQueueByReceiverId(Request req) {
+		return this.store.queryForQueueByReceiverId(req);
+	}
+	
+	public Response insertQueueById(Request req) {
+		return this.store.insertQueueById(req);
+	}
+	
+	public Response deleteQueueById(Request req) {
+		return this.store.deleteQueueById(req);
+	}
+	
+	public int[] deleteMessages(int[] messageIds, int count) {
+		return this.store.deleteMessages(messageIds, count);
+	}
+	
+	public MessageStore getStore() {
+		return this.store;
+	}
+	
+	public void messageInserted(int senderId, int receiverId, int queueId) {
+		inserted(senderId, receiverId, queueId);
+	}
+	
+	// Invalidate the empty results which could find the message
+	private void inserted(int senderId, int receiverId, int queueId) {
+		
+		this.invalidations.incrementAndGet();
+		
+		if (receiverId == -1) {
+			
+			// Every client of the queue could read the message
+			increment(this.queueVersions, queueId);
+			
+		} else {
+			
+			increment(this.queueReceiverVersions, key(queueId, receiverId));
+			increment(this.receiverSenderVersions, key(receiverId, senderId));
+		}
+	}
+	
+	// Version of a queue read. Both versions only grow, their sum changes with either of them
+	private long queueVersion(Request req) {
+		
+		AtomicLong version = this.queueVersions.get(req.queueId);
+		
+		return (version != null ? version.get() : 0) + get(this.queueReceiverVersions, key(req.queueId, req.senderId));
+	}
+	
+	private Response cacheQueue(Request req, Response rsp, long version, long start) {
+		
+		if (rsp.errorType == 2) {
+			this.emptyQueues.put(key(req.queueId, req.senderId), new Empty(version, start + this.ttlNanos));
+		}
+		
+		return rsp;
+	}
+	
+	// True if the request is known to find no message. Counts the hits and misses
+	private boolean isEmpty(ConcurrentHashMap<Long, Empty> cache, long key, long version, long now) {
+		
+		Empty empty = cache.get(key);
+		
+		if (empty != null) {
+			
+			if (empty.version == version && empty.expires - now > 0) {
+				
+				this.hits.incrementAndGet();
+				return true;
+			}
+			
+			if (empty.version == version) {
+				this.expired.incrementAndGet();
+			}
+			
+			// Stale, a message was inserted or the TTL expired
+			cache.remove(key, empty);
+		}
+		
+		this.misses.incrementAndGet();
+		
+		return false;
+	}
+	
+	private static long key(int a, int b) {
+		return ((long) a << 32) | (b & 0xffffffffL);
+	}
+	
+	private static long get(ConcurrentHashMap<Long, AtomicLong> versions, long key) {
+		
+		AtomicLong version = versions.get(key);
+		
+		return version != null ? version.get() : 0;
+	}
+	
+	private static <K> void increment(ConcurrentHashMap<K, AtomicLong> versions, K key) {
+		
+		AtomicLong version = versions.get(key);
+		
+		if (version == null) {
+			
+			AtomicLong created = new AtomicLong(0);
+			
+			version = versions.putIfAbsent(key, created);
+			
+			if (version == null) {
+				version = created;
+			}
+		}
+		
+		version.incrementAndGet();
+	}
+	
+	// STATS: a cached result is reported with the time of the lookup as SQL execution time
+	private static Response notFound(Request req, long start) {
+		
+		Response rsp = new Response();
+		
+		rsp.errorType = 2; // RECORD_NOT_FOUND_ERROR
+		rsp.requestId = req.requestId;
+		rsp.requestType = req.type;
+		rsp.messageId = -1;
+		rsp.retrievedMessage = "";
+		rsp.sqlExecutionTime = new BigDecimal((System.nanoTime() - start) / 1000000.0).setScale(2, RoundingMode.HALF_UP).doubleValue();
+		
+		return rsp;
+	}
+	
+	public String formatStatistics() {
+		
+		long hits = this.hits.get();
+		long misses = this.misses.get();
+		
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("hits=");
+		sb.append(hits);
+		sb.append(" misses=");
+		sb.append(misses);
+		sb.append(" hit_rate=");
+		sb.append(String.format("%.2f", hits + misses > 0 ? (double) hits / (hits + misses) : 0.0));
+		sb.append(" expired=");
+		sb.append(this.expired.get());
+		sb.append(" invalidations=");
+		sb.append(this.invalidations.get());
+		sb.append(" empty_queues=");
+		sb.append(this.emptyQueues.size());
+		sb.append(" empty_receivers=");
+		sb.append(this.emptyReceivers.size());
+		
+		return sb.toString();
+	}
+	// STATS END
+	
+}
@@ -0,0 +1,96 @@
+package mps.store;
+
+import javax.sql.DataSource;
+
+import mps.database.DatabaseCommunication;
+import mps.database.GroupCommitWriter;
+import mps.request.Request;
+import mps.request.Response;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description MessageStore backed by the PostgreSQL DB. Every operation is performed by a new
+ * DatabaseCommunication on a pooled connection, as the RequestHandlerThreads did before.
+ *
+ */
+
+public class PostgresMessageStore implements MessageStore {
+	
+	/*
+	 * Pooled data source. DatabaseCommunication keeps the connection
+	 * only as long as a query takes
+	 */
+	private DataSource pooledDataSource;
+	
+	// Commits the MSG_SEND_REQs of several clients in one transaction. null if group commit is disabled
+	private GroupCommitWriter groupCommitWriter;
+	
+	public PostgresMessageStore(DataSource ds) {
+		
+		this.pooledDataSource = ds;
+	}
+	
+	// DatabaseCommunication measures the SQL execution time of one request, it is not shared
+	private DatabaseCommunication db() {
+		return new DatabaseCommunication(this.pooledDataSource);
+	}
+	
+	public Response insertMessage(Request req) {
+		
+		if (this.groupCommitWriter != null) {
+			return this.groupCommitWriter.insert(req);
+		}
+		
+		return db().insertMessage(req);
+	}
+	
+	public Response retrieveMessageByReceiverId(Request req) {
+		return db().retrieveMessageByReceiverId(req);
+	}
+	
+	public Response retrieveMessageFromQueueById(Request req) {
+		return db().retrieveMessageFromQueueById(req);
+	}
+	
+	public Response retrieveMessageFromQueueByIdWithDelete(Request req) {
+		return db().retrieveMessageFromQueueByIdWithDelete(req);
+	}
+	
+	public Response queryForQueueByReceiverId(Request req) {
+		return db().queryForQueueByReceiverId(req);
+	}
+	
+	public Response insertQueueById(Request req) {
+		return db().insertQueueById(req);
+	}
+	
+	public Response deleteQueueById(Request req) {
+		return db().deleteQueueById(req);
+	}
+	
+	public Response insertMessages(Request req) {
+		return db().insertMessages(req);
+	}
+	
+	public Response retrieveMessagesFromQueueWithDelete(Request req) {
+		return db().retrieveMessagesFromQueueWithDelete(req);
+	}
+	
+	public int[] deleteMessages(int[] messageIds, int count) {
+		return db().deleteMessages(messageIds, count);
+	}
+	
+	public DataSource getDataSource() {
+		return this.pooledDataSource;
+	}
+	
+	/**
+	 * Insert the messages of MSG_SEND_REQs together with the inserts of other clients
+	 * @param groupCommitWriter - started writer, null to insert every message on its own
+	 */
+	public void setGroupCommitWriter(GroupCommitWriter groupCommitWriter) {
+		this.groupCommitWriter = groupCommitWriter;
+	}
+	
+}
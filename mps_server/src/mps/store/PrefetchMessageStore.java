@@ -0,0 +1,529 @@
+package mps.store;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.util.PSQLException;
+
+import mps.database.DatabaseCommunication;
+import mps.database.StoredMessage;
+import mps.request.Protocol;
+import mps.request.Request;
+import mps.request.Response;
+import mps.request.ResponseEncoder;
+import mps.statistics.StatisticsSource;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Prefetch buffer for QUEUE_READ_WITH_REMOVE_REQs on the PostgreSQL DB. A request which finds
+ * no buffered message claims a batch of the newest messages of the queue for its client with one statement.
+ * The messages are deleted from the DB and kept in memory under a lease, the following requests are served
+ * from memory. Messages without receiver are shared by all clients of the queue, messages for a receiver are
+ * buffered per receiver. A message whose lease expired is inserted again with its id and arrival time, as are
+ * all buffered messages when the middleware shuts down. The InsertListeners are notified about them.
+ * An insert through this middleware marks the buffers of its queue and receiver stale, the next request
+ * claims again and gets the newest of the buffered and the claimed messages.
+ * While a message is claimed, the other requests on the DB do not see it. Claimed messages are lost if the
+ * middleware crashes. All other requests are performed by the PostgresMessageStore.
+ *
+ */
+
+public class PrefetchMessageStore implements MessageStore, StatisticsSource {
+	
+	// A claimed message and the end of its lease
+	private static class Claim {
+		
+		private final StoredMessage message;
+		
+		private final long leaseExpires;
+		
+		private Claim(StoredMessage message, long leaseExpires) {
+			
+			this.message = message;
+			this.leaseExpires = leaseExpires;
+		}
+	}
+	
+	// Claimed messages of a queue for one receiver, or without receiver. Guarded by the buffer
+	private static class PrefetchBuffer {
+		
+		// Newest first
+		private final ArrayDeque<Claim> claims = new ArrayDeque<Claim>();
+		
+		// A message newer than the buffered ones may have been inserted into the DB
+		private boolean stale = false;
+	}
+	
+	// Returned by take() for a message the client cannot decode
+	private static final StoredMessage TOO_LONG = new StoredMessage();
+	
+	private PostgresMessageStore store;
+	
+	private final int batchSize;
+	
+	private final long leaseNanos;
+	
+	// (queue id, receiver id) -> buffer. Receiver id -1 for the messages without receiver
+	private ConcurrentHashMap<Long, PrefetchBuffer> buffers = new ConcurrentHashMap<Long, PrefetchBuffer>();
+	
+	// Notified about the released messages, e.g. caches and waiting requests
+	private List<InsertListener> insertListeners = new CopyOnWriteArrayList<InsertListener>();
+	
+	/*
+	 * STATS
+	 */
+	private AtomicLong hits = new AtomicLong(0);
+	private AtomicLong claims = new AtomicLong(0);
+	private AtomicLong emptyClaims = new AtomicLong(0);
+	private AtomicLong claimedMessages = new AtomicLong(0);
+	private AtomicLong releasedMessages = new AtomicLong(0);
+	/*
+	 * STATS END
+	 */
+	
+	/**
+	 * @param store - performs all requests but the QUEUE_READ_WITH_REMOVE_REQs
+	 * @param batchSize - messages claimed per DB call
+	 * @param leaseMillis - time a claimed message is kept in memory
+	 */
+	public PrefetchMessageStore(PostgresMessageStore store, int batchSize, int leaseMillis) {
+		
+		this.store = store;
+		this.batchSize = Math.max(1, batchSize);
+		this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, leaseMillis));
+	}
+	
+	/**
+	 * Start the thread which releases the messages with an expired lease
+	 */
+	public void start() {
+		
+		Thread t = new Thread(new Runnable() {
+			
+			public void run() {
+				
+				while (true) {
+					
+					try {
+						
+						// A message is released at most half a lease after it expired
+						Thread.sleep(Math.max(1, TimeUnit.NANOSECONDS.toMillis(leaseNanos) / 2));
+						
+						release(false);
+						
+					} catch (InterruptedException e) {
+						
+						// Thread is a daemon, it ends with the middleware
+						return;
+					}
+				}
+			}
+			
+		}, "PrefetchLeaseReaper");
+		
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * @param listener - notified about every message which is inserted into the DB again
+	 */
+	public void addInsertListener(InsertListener listener) {
+		this.insertListeners.add(listener);
+	}
+	
+	/**
+	 * Release all buffered messages, e.g. when the middleware shuts down
+	 */
+	public void close() {
+		release(true);
+	}
+	
+	public Response retrieveMessageFromQueueByIdWithDelete(Request req) {
+		
+		long start = System.nanoTime();
+		
+		PrefetchBuffer personal = getBuffer(req.queueId, req.senderId);
+		PrefetchBuffer shared = getBuffer(req.queueId, -1);
+		
+		StoredMessage message = take(personal, shared, false, req.protocolVersion);
+		
+		if (message != null) {
+			
+			this.hits.incrementAndGet();
+			
+			return found(req, message, start);
+		}
+		
+		// The claim sees every message inserted before
+		setStale(personal, shared, false);
+		
+		// Claim the next batch for this client
+		List<StoredMessage> claimed;
+		
+		try {
+			
+			claimed = new DatabaseCommunication(this.store.getDataSource()).claimMessages(req.queueId, req.senderId, this.batchSize);
+			
+		} catch (PSQLException e) {
+			
+			setStale(personal, shared, true);
+			
+			return newResponse(req, 3, start);
+			
+		} catch (SQLException e) {
+			
+			e.printStackTrace();
+			
+			// The next request claims again
+			setStale(personal, shared, true);
+			
+			return newResponse(req, 1, start);
+		}
+		
+		// STATS
+		this.claims.incrementAndGet();
+		this.claimedMessages.addAndGet(claimed.size());
+		// STATS END
+		
+		if (claimed.isEmpty()) {
+			this.emptyClaims.incrementAndGet();
+		}
+		
+		// Buffer the claimed messages, the newest buffered message is for this request
+		long leaseExpires = System.nanoTime() + this.leaseNanos;
+		
+		for (int i = 0; i < claimed.size(); ++i) {
+			
+			StoredMessage buffered = claimed.get(i);
+			
+			PrefetchBuffer buffer = buffered.receiverId == -1 ? shared : personal;
+			
+			synchronized (buffer) {
+				
+				// Claims of concurrent requests may interleave, keep the buffer newest first
+				addNewestFirst(buffer.claims, new Claim(buffered, leaseExpires));
+			}
+		}
+		
+		message = take(personal, shared, true, req.protocolVersion);
+		
+		if (message == null) {
+			return newResponse(req, 2, start); // RECORD_NOT_FOUND_ERROR
+		}
+		
+		return found(req, message, start);
+	}
+	
+	public Response deleteQueueById(Request req) {
+		
+		Response rsp = this.store.deleteQueueById(req);
+		
+		// The buffered messages of the queue are deleted as well
+		if (rsp.errorType == 0) {
+			
+			Iterator<Long> keys = this.buffers.keySet().iterator();
+			
+			while (keys.hasNext()) {
+				
+				if ((int) (keys.next() >> 32) == req.queueId) {
+					keys.remove();
+				}
+			}
+		}
+		
+		return rsp;
+	}
+	
+	public Response insertMessage(Request req) {
+		
+		Response rsp = this.store.insertMessage(req);
+		
+		if (rsp.errorType == 0) {
+			inserted(req.queueId, req.receiverId);
+		}
+		
+		return rsp;
+	}
+	
+	public Response insertMessages(Request req) {
+		
+		Response rsp = this.store.insertMessages(req);
+		
+		if (rsp.errorType == 0) {
+			
+			for (int i = 0; i < req.batchCount; ++i) {
+				inserted(req.batchQueueIds[i], req.batchReceiverIds[i]);
+			}
+		}
+		
+		return rsp;
+	}
+	
+	/**
+	 * Performed by the PostgresMessageStore. The claimed messages are not seen
+	 */
+	
+	public Response retrieveMessageByReceiverId(Request req) {
+		return this.store.retrieveMessageByReceiverId(req);
+	}
+	
+	public Response retrieveMessageFromQueueById(Request req) {
+		return this.store.retrieveMessageFromQueueById(req);
+	}
+	
+	public Response queryForQueueByReceiverId(Request req) {
+		return this.store.queryForQueueByReceiverId(req);
+	}
+	
+	public Response insertQueueById(Request req) {
+		return this.store.insertQueueById(req);
+	}
+	
+	public Response retrieveMessagesFromQueueWithDelete(Request req) {
+		return this.store.retrieveMessagesFromQueueWithDelete(req);
+	}
+	
+	public int[] deleteMessages(int[] messageIds, int count) {
+		return this.store.deleteMessages(messageIds, count);
+	}
+	
+	public PostgresMessageStore getStore() {
+		return this.store;
+	}
+	
+	private PrefetchBuffer getBuffer(int queueId, int receiverId) {
+		
+		Long key = key(queueId, receiverId);
+		
+		PrefetchBuffer buffer = this.buffers.get(key);
+		
+		if (buffer == null) {
+			
+			PrefetchBuffer created = new PrefetchBuffer();
+			
+			buffer = this.buffers.putIfAbsent(key, created);
+			
+			if (buffer == null) {
+				buffer = created;
+			}
+		}
+		
+		return buffer;
+	}
+	
+	// Mark the buffer which a request for the inserted message reads stale
+	private void inserted(int queueId, int receiverId) {
+		
+		PrefetchBuffer buffer = this.buffers.get(key(queueId, receiverId));
+		
+		if (buffer != null) {
+			
+			synchronized (buffer) {
+				buffer.stale = true;
+			}
+		}
+	}
+	
+	private static void setStale(PrefetchBuffer personal, PrefetchBuffer shared, boolean stale) {
+		
+		synchronized (personal) {
+			
+			synchronized (shared) {
+				
+				personal.stale = stale;
+				shared.stale = stale;
+			}
+		}
+	}
+	
+	// Take the newest buffered message of both buffers, null if one of them is stale. Always locked in the same order.
+	// TOO_LONG if the client cannot decode the newest message, it stays buffered then
+	private static StoredMessage take(PrefetchBuffer personal, PrefetchBuffer shared, boolean ignoreStale, int version) {
+		
+		synchronized (personal) {
+			
+			synchronized (shared) {
+				
+				if (!ignoreStale && (personal.stale || shared.stale)) {
+					return null;
+				}
+				
+				Claim p = personal.claims.peekFirst();
+				Claim s = shared.claims.peekFirst();
+				
+				if (p == null && s == null) {
+					return null;
+				}
+				
+				PrefetchBuffer buffer = s == null || (p != null && p.message.messageId > s.message.messageId) ? personal : shared;
+				
+				if (version < Protocol.VERSION_2 && !ResponseEncoder.canEncode(buffer.claims.peekFirst().message.body, version)) {
+					return TOO_LONG;
+				}
+				
+				return buffer.claims.pollFirst().message;
+			}
+		}
+	}
+	
+	private static long key(int queueId, int receiverId) {
+		return ((long) queueId << 32) | (receiverId & 0xffffffffL);
+	}
+	
+	private static void addNewestFirst(ArrayDeque<Claim> claims, Claim claim) {
+		
+		if (claims.isEmpty() || claims.peekLast().message.messageId > claim.message.messageId) {
+			
+			claims.addLast(claim);
+			return;
+		}
+		
+		// Rare: insert in order
+		ArrayDeque<Claim> newer = new ArrayDeque<Claim>();
+		
+		while (!claims.isEmpty() && claims.peekFirst().message.messageId > claim.message.messageId) {
+			newer.addLast(claims.pollFirst());
+		}
+		
+		claims.addFirst(claim);
+		
+		while (!newer.isEmpty()) {
+			claims.addFirst(newer.pollLast());
+		}
+	}
+	
+	// Insert the messages whose lease expired, or all, into the DB again
+	private void release(boolean all) {
+		
+		long now = System.nanoTime();
+		
+		List<StoredMessage> expired = new ArrayList<StoredMessage>();
+		
+		for (PrefetchBuffer buffer : this.buffers.values()) {
+			
+			synchronized (buffer) {
+				
+				Iterator<Claim> claims = buffer.claims.iterator();
+				
+				while (claims.hasNext()) {
+					
+					Claim claim = claims.next();
+					
+					if (all || claim.leaseExpires - now <= 0) {
+						
+						expired.add(claim.message);
+						claims.remove();
+					}
+				}
+			}
+		}
+		
+		if (expired.isEmpty()) {
+			return;
+		}
+		
+		try {
+			
+			new DatabaseCommunication(this.store.getDataSource()).releaseMessages(expired);
+			
+			this.releasedMessages.addAndGet(expired.size());
+			
+		} catch (SQLException e) {
+			
+			e.printStackTrace();
+			
+			// Nothing was inserted. Buffer the messages again, their lease stays expired and the next run retries.
+			// Messages of a queue which was deleted in the meantime are dropped by the retry
+			for (StoredMessage message : expired) {
+				
+				PrefetchBuffer buffer = getBuffer(message.queueId, message.receiverId);
+				
+				synchronized (buffer) {
+					addNewestFirst(buffer.claims, new Claim(message, now));
+				}
+			}
+			
+			return;
+		}
+		
+		// The messages are visible again, as if they were sent
+		for (StoredMessage message : expired) {
+			
+			for (InsertListener listener : this.insertListeners) {
+				listener.messageInserted(message.senderId, message.receiverId, message.queueId);
+			}
+		}
+	}
+	
+	private static Response found(Request req, StoredMessage message, long start) {
+		
+		if (message == TOO_LONG) {
+			return newResponse(req, 5, start); // MESSAGE_TOO_LONG_ERROR
+		}
+		
+		Response rsp = newResponse(req, 0, start);
+		
+		rsp.messageId = message.messageId;
+		rsp.retrievedMessage = message.body;
+		
+		return rsp;
+	}
+	
+	// STATS: the time of a buffered request is reported as SQL execution time as well
+	private static Response newResponse(Request req, int errorType, long start) {
+		
+		Response rsp = new Response();
+		
+		rsp.errorType = errorType;
+		rsp.requestId = req.requestId;
+		rsp.requestType = req.type;
+		rsp.messageId = -1;
+		rsp.retrievedMessage = "";
+		rsp.sqlExecutionTime = new BigDecimal((System.nanoTime() - start) / 1000000.0).setScale(2, RoundingMode.HALF_UP).doubleValue();
+		
+		return rsp;
+	}
+	
+	// STATS
+	public String formatStatistics() {
+		
+		int buffered = 0;
+		
+		for (PrefetchBuffer buffer : this.buffers.values()) {
+			
+			synchronized (buffer) {
+				buffered += buffer.claims.size();
+			}
+		}
+		
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("hits=");
+		sb.append(this.hits.get());
+		sb.append(" claims=");
+		sb.append(this.claims.get());
+		sb.append(" empty_claims=");
+		sb.append(this.emptyClaims.get());
+		sb.append(" claimed_messages=");
+		sb.append(this.claimedMessages.get());
+		sb.append(" released_messages=");
+		sb.append(this.releasedMessages.get());
+		sb.append(" buffered=");
+		sb.append(buffered);
+		
+		return sb.toString();
+	}
+	// STATS END
+	
+}
@@ -0,0 +1,283 @@
+package mps.store;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import mps.database.DatabaseCommunication;
+import mps.request.Request;
+import mps.request.Response;
+import mps.statistics.StatisticsSource;
+
+/**
+ *
+ * @author Andrin Jenal
+ * @description Registry of the queues in the DB, kept in front of a MessageStore. The queues are loaded
+ * at startup and kept current by the QUEUE_CREATE_REQs and QUEUE_DEL_REQs of this middleware.
+ * Creating a queue created by this middleware and sending to a missing queue are answered without
+ * a DB call, as the DB would answer them. Deletes are always performed by the DB. A load does not add a queue which this
+ * middleware deleted while the load was running.
+ * Other middleware instances may create and delete queues as well. A queue which is not known is looked up
+ * in the DB again, at most once per refresh interval. A queue deleted by another instance is forgotten
+ * when a send to it fails with a foreign key violation.
+ *
+ */
+
+public class QueueRegistryMessageStore implements MessageStore, StatisticsSource {
+	
+	// SQLState of a foreign key violation: the queue of the message does not exist
+	private static final String FOREIGN_KEY_VIOLATION = "23503";
+	
+	private MessageStore store;
+	
+	private DataSource pooledDataSource;
+	
+	private final long refreshNanos;
+	
+	// Ids of the existing queues
+	private Set<Integer> queueIds = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	
+	// Ids of the queues created by this middleware. Only a create of these is answered without the DB
+	private Set<Integer> createdIds = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	
+	// Queue id -> number of the delete by this middleware. Deletes are numbered in order
+	private ConcurrentHashMap<Integer, Long> deletedIds = new ConcurrentHashMap<Integer, Long>();
+	private final AtomicLong deletes = new AtomicLong(0);
+	
+	// Time of the last load of the queues
+	private final AtomicLong lastRefresh = new AtomicLong(0);
+	
+	private volatile boolean loaded = false;
+	
+	/*
+	 * STATS
+	 */
+	private AtomicLong shortCircuited = new AtomicLong(0);
+	private AtomicLong refreshes = new AtomicLong(0);
+	/*
+	 * STATS END
+	 */
+	
+	/**
+	 * @param store - performs the requests
+	 * @param ds - data source to load the queues
+	 * @param refreshMillis - minimum time between two loads of the queues
+	 */
+	public QueueRegistryMessageStore(MessageStore store, DataSource ds, int refreshMillis) {
+		
+		this.store = store;
+		this.pooledDataSource = ds;
+		this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, refreshMillis));
+	}
+	
+	/**
+	 * Load the queues of the DB
+	 * @throws SQLException if the queues could not be read, they are loaded again with the next unknown queue
+	 */
+	public synchronized void load() throws SQLException {
+		
+		this.lastRefresh.set(System.nanoTime());
+		
+		this.refreshes.incrementAndGet();
+		
+		// Deletes with a higher number may have happened after the queues were read
+		long since = this.deletes.get();
+		
+		// Only add: a queue created by this middleware while loading is not lost
+		for (Integer queueId : new DatabaseCommunication(this.pooledDataSource).retrieveQueueIds()) {
+			
+			Long deleted = this.deletedIds.get(queueId);
+			
+			if (deleted == null || deleted <= since) {
+				this.queueIds.add(queueId);
+			}
+		}
+		
+		// The older deletes are seen by every following load
+		Iterator<Map.Entry<Integer, Long>> it = this.deletedIds.entrySet().iterator();
+		
+		while (it.hasNext()) {
+			
+			if (it.next().getValue() <= since) {
+				it.remove();
+			}
+		}
+		
+		this.loaded = true;
+	}
+	
+	public Response insertQueueById(Request req) {
+		
+		long start = System.nanoTime();
+		
+		// insert_queue keeps an existing queue. A loaded queue may have been deleted by another instance
+		if (this.createdIds.contains(req.queueId)) {
+			return shortCircuit(req, 0, start);
+		}
+		
+		Response rsp = this.store.insertQueueById(req);
+		
+		if (rsp.errorType == 0) {
+			
+			this.deletedIds.remove(req.queueId);
+			this.queueIds.add(req.queueId);
+			this.createdIds.add(req.queueId);
+		}
+		
+		return rsp;
+	}
+	
+	public Response deleteQueueById(Request req) {
+		
+		// Always performed by the store, the queue may have been created by another middleware instance
+		Response rsp = this.store.deleteQueueById(req);
+		
+		if (rsp.errorType == 0) {
+			
+			// A running load must not add the queue again
+			this.deletedIds.put(req.queueId, this.deletes.incrementAndGet());
+			this.queueIds.remove(req.queueId);
+			this.createdIds.remove(req.queueId);
+		}
+		
+		return rsp;
+	}
+	
+	public Response insertMessage(Request req) {
+		
+		long start = System.nanoTime();
+		
+		// The DB rejects the message with a foreign key violation
+		if (!exists(req.queueId)) {
+			return shortCircuit(req, 3, start); // PSQL_EXCEPTION_ERROR
+		}
+		
+		Response rsp = this.store.insertMessage(req);
+		
+		// The queue was deleted by another middleware instance
+		if (rsp.errorType == 3 && FOREIGN_KEY_VIOLATION.equals(rsp.sqlState)) {
+			
+			this.queueIds.remove(req.queueId);
+			this.createdIds.remove(req.queueId);
+		}
+		
+		return rsp;
+	}
+	
+	public Response insertMessages(Request req) {
+		
+		long start = System.nanoTime();
+		
+		// The whole batch is rejected if one of its queues is missing
+		for (int i = 0; i < req.batchCount; ++i) {
+			
+			if (!exists(req.batchQueueIds[i])) {
+				return shortCircuit(req, 3, start); // PSQL_EXCEPTION_ERROR
+			}
+		}
+		
+		return this.store.insertMessages(req);
+	}
+	
+	/**
+	 * Performed by the store
+	 */
+	
+	public Response retrieveMessageByReceiverId(Request req) {
+		return this.store.retrieveMessageByReceiverId(req);
+	}
+	
+	public Response retrieveMessageFromQueueById(Request req) {
+		return this.store.retrieveMessageFromQueueById(req);
+	}
+	
+	public Response retrieveMessageFromQueueByIdWithDelete(Request req) {
+		return this.store.retrieveMessageFromQueueByIdWithDelete(req);
+	}
+	
+	public Response queryForQueueByReceiverId(Request req) {
+		return this.store.queryForQueueByReceiverId(req);
+	}
+	
+	public Response retrieveMessagesFromQueueWithDelete(Request req) {
+		return this.store.retrieveMessagesFromQueueWithDelete(req);
+	}
+	
+	public int[] deleteMessages(int[] messageIds, int count) {
+		return this.store.deleteMessages(messageIds, count);
+	}
+	
+	public MessageStore getStore() {
+		return this.store;
+	}
+	
+	// True if the queue exists. An unknown queue may have been created by another middleware instance
+	private boolean exists(int queueId) {
+		
+		if (this.queueIds.contains(queueId)) {
+			return true;
+		}
+		
+		long last = this.lastRefresh.get();
+		
+		// One request loads the queues again, the others take the registry as it is
+		if (!this.loaded || (System.nanoTime() - last >= this.refreshNanos && this.lastRefresh.compareAndSet(last, System.nanoTime()))) {
+			
+			try {
+				
+				load();
+				
+			} catch (SQLException e) {
+				
+				e.printStackTrace();
+				
+				// Let the DB decide
+				return true;
+			}
+		}
+		
+		return this.queueIds.contains(queueId);
+	}
+	
+	// STATS: answered without the DB, the time of the lookup is reported as SQL execution time
+	private Response shortCircuit(Request req, int errorType, long start) {
+		
+		this.shortCircuited.incrementAndGet();
+		
+		Response rsp = new Response();
+		
+		rsp.errorType = errorType;
+		rsp.requestId = req.requestId;
+		rsp.requestType = req.type;
+		rsp.messageId = -1;
+		rsp.retrievedMessage = "";
+		rsp.sqlExecutionTime = new BigDecimal((System.nanoTime() - start) / 1000000.0).setScale(2, RoundingMode.HALF_UP).doubleValue();
+		
+		return rsp;
+	}
+	
+	public String formatStatistics() {
+		
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("queues=");
+		sb.append(this.queueIds.size());
+		sb.append(" short_circuited=");
+		sb.append(this.shortCircuited.get());
+		sb.append(" refreshes=");
+		sb.append(this.refreshes.get());
+		
+		return sb.toString();
+	}
+	// STATS END
+	
+}
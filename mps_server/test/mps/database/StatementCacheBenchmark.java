@@ -0,0 +1,253 @@
+package mps.database;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * @author andrin
+ *
+ *
+ * IMPORTANT
+ *
+ * The DB is replaced by a stand-in connection which charges a fixed cost
+ * for preparing a statement (parse and plan round trip) and for executing it.
+ * No PostgreSQL instance is needed
+ *
+ * The benchmark compares the per call cost of the stored procedure calls of
+ * DatabaseCommunication.updateQuery() with and without the StatementCache
+ *
+ */
+
+public class StatementCacheBenchmark {
+	
+	// Simulated cost of preparing a statement and of executing it in microseconds
+	private static final int PREPARE_MICROS = 80;
+	private static final int EXECUTE_MICROS = 60;
+	
+	// Stored procedure calls of DatabaseCommunication
+	private static final String[] CALLS = {
+		"{call insert_message(?,?,?,?,?)}",
+		"{call get_message_from_receiver(?,?,?,?)}",
+		"{call get_message_from_queue(?,?,?,?)}",
+		"{call delete_message(?)}",
+		"{call get_queue_from_receiver(?,?)}",
+		"{call insert_queue(?)}",
+		"{call delete_queue(?)}"
+	};
+	
+	private static final int WARMUP_CALLS = 2000;
+	private static final int CALLS_PER_RUN = 5000;
+	
+	/**
+	 * Stand-in for a JDBC connection. Counts prepared and closed statements
+	 */
+	private static class StandInConnection implements InvocationHandler {
+		
+		AtomicInteger prepared = new AtomicInteger(0);
+		AtomicInteger closed = new AtomicInteger(0);
+		
+		Connection proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, this);
+		
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			
+			String name = method.getName();
+			
+			if (name.equals("prepareCall") || name.equals("prepareStatement")) {
+				
+				spin(PREPARE_MICROS);
+				prepared.incrementAndGet();
+				
+				return statement();
+			}
+			
+			// Behaves like a physical JDBC 4 connection
+			if (name.equals("isWrapperFor")) {
+				return args[0] == Connection.class;
+			}
+			
+			if (name.equals("unwrap")) {
+				return proxy;
+			}
+			
+			if (name.equals("isClosed")) {
+				return false;
+			}
+			
+			if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			
+			if (name.equals("equals")) {
+				return proxy == args[0];
+			}
+			
+			return null;
+		}
+		
+		private CallableStatement statement() {
+			
+			return (CallableStatement) Proxy.newProxyInstance(CallableStatement.class.getClassLoader(), new Class<?>[] { CallableStatement.class }, new InvocationHandler() {
+				
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					
+					String name = method.getName();
+					
+					if (name.equals("executeUpdate")) {
+						
+						spin(EXECUTE_MICROS);
+						return 1;
+					}
+					
+					if (name.equals("close")) {
+						
+						closed.incrementAndGet();
+						return null;
+					}
+					
+					if (name.equals("getInt")) {
+						return 42;
+					}
+					
+					if (name.equals("hashCode")) {
+						return System.identityHashCode(proxy);
+					}
+					
+					if (name.equals("equals")) {
+						return proxy == args[0];
+					}
+					
+					return null;
+				}
+			});
+		}
+	}
+	
+	// Busy wait, sleeping is too coarse for microseconds
+	private static void spin(int micros) {
+		
+		long end = System.nanoTime() + micros * 1000L;
+		
+		while (System.nanoTime() < end) {
+			// Wait
+		}
+	}
+	
+	// Same steps as DatabaseCommunication.updateQuery() for a MSG_SEND_REQ
+	private static void call(StatementCache cache, Connection connection, String sql) throws SQLException {
+		
+		CallableStatement cstmt = cache.prepareCall(connection, sql);
+		
+		cstmt.setInt(1, 1);
+		cstmt.setInt(2, 2);
+		cstmt.registerOutParameter(3, Types.INTEGER);
+		cstmt.executeUpdate();
+		cstmt.getInt(3);
+		
+		cache.release(connection, sql, cstmt, false);
+	}
+	
+	// Average time of one call in microseconds
+	private static double run(StatementCache cache, Connection connection, int calls) throws SQLException {
+		
+		long start = System.nanoTime();
+		
+		for (int i = 0; i < calls; ++i) {
+			call(cache, connection, CALLS[i % CALLS.length]);
+		}
+		
+		return (System.nanoTime() - start) / 1000.0 / calls;
+	}
+	
+	@Test
+	public void benchmarkPerCallSaving() throws SQLException {
+		
+		StandInConnection uncachedDb = new StandInConnection();
+		StandInConnection cachedDb = new StandInConnection();
+		
+		StatementCache uncached = new StatementCache(0);
+		StatementCache cached = new StatementCache(32);
+		
+		// Warm up the JIT
+		run(uncached, uncachedDb.proxy, WARMUP_CALLS);
+		run(cached, cachedDb.proxy, WARMUP_CALLS);
+		
+		double uncachedMicros = run(uncached, uncachedDb.proxy, CALLS_PER_RUN);
+		double cachedMicros = run(cached, cachedDb.proxy, CALLS_PER_RUN);
+		
+		System.out.println(String.format("StatementCacheBenchmark: uncached=%.1fus/call cached=%.1fus/call saving=%.1fus/call (prepare=%dus execute=%dus)",
+				uncachedMicros, cachedMicros, uncachedMicros - cachedMicros, PREPARE_MICROS, EXECUTE_MICROS));
+		System.out.println("StatementCacheBenchmark: " + cached.formatStatistics());
+		
+		// Without the cache every call prepares and closes its statement
+		assertEquals(WARMUP_CALLS + CALLS_PER_RUN, uncachedDb.prepared.get());
+		assertEquals(WARMUP_CALLS + CALLS_PER_RUN, uncachedDb.closed.get());
+		
+		// With the cache every stored procedure is prepared once per connection
+		assertEquals(CALLS.length, cachedDb.prepared.get());
+		assertEquals(0, cachedDb.closed.get());
+		assertEquals(WARMUP_CALLS + CALLS_PER_RUN - CALLS.length, cached.getHits());
+	}
+	
+	@Test
+	public void testStatementsArePerConnection() throws SQLException {
+		
+		StatementCache cache = new StatementCache(32);
+		
+		StandInConnection first = new StandInConnection();
+		StandInConnection second = new StandInConnection();
+		
+		call(cache, first.proxy, CALLS[0]);
+		call(cache, second.proxy, CALLS[0]);
+		call(cache, first.proxy, CALLS[0]);
+		
+		assertEquals(1, first.prepared.get());
+		assertEquals(1, second.prepared.get());
+		assertEquals(1, cache.getHits());
+	}
+	
+	@Test
+	public void testFailedStatementIsPreparedAgain() throws SQLException {
+		
+		StatementCache cache = new StatementCache(32);
+		StandInConnection db = new StandInConnection();
+		
+		CallableStatement cstmt = cache.prepareCall(db.proxy, CALLS[0]);
+		cache.release(db.proxy, CALLS[0], cstmt, true);
+		
+		assertEquals(1, db.closed.get());
+		
+		call(cache, db.proxy, CALLS[0]);
+		
+		assertEquals(2, db.prepared.get());
+	}
+	
+	@Test
+	public void testLeastRecentlyUsedStatementIsClosed() throws SQLException {
+		
+		StatementCache cache = new StatementCache(2);
+		StandInConnection db = new StandInConnection();
+		
+		call(cache, db.proxy, CALLS[0]);
+		call(cache, db.proxy, CALLS[1]);
+		call(cache, db.proxy, CALLS[0]);
+		call(cache, db.proxy, CALLS[2]);
+		
+		// CALLS[1] was evicted, CALLS[0] is still cached
+		assertEquals(1, db.closed.get());
+		
+		call(cache, db.proxy, CALLS[0]);
+		
+		assertEquals(3, db.prepared.get());
+	}
+	
+}
@@ -0,0 +1,363 @@
+package mps.store;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+
+import mps.request.Request;
+import mps.request.Response;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author andrin
+ *
+ *
+ * IMPORTANT
+ *
+ * Every test writes a log into its own temporary directory, opens it again
+ * as the middleware does after a restart and checks which messages were recovered.
+ * Crashes are simulated by changing the segment files between two opens
+ *
+ */
+
+public class LogMessageStoreTest {
+	
+	// Small segments, a few messages fill one
+	private static final int SEGMENT_SIZE = 256;
+	
+	// Segments with less than half live bytes are compacted
+	private static final double COMPACTION_THRESHOLD = 0.5;
+	
+	private static final int QUEUE = 1;
+	
+	private File directory;
+	
+	@Before
+	public void createDirectory() throws IOException {
+		this.directory = Files.createTempDirectory("log-store-test").toFile();
+	}
+	
+	@After
+	public void deleteDirectory() {
+		
+		for (File file : this.directory.listFiles()) {
+			file.delete();
+		}
+		
+		this.directory.delete();
+	}
+	
+	private LogMessageStore open() throws IOException {
+		return new LogMessageStore(this.directory, SEGMENT_SIZE, false, COMPACTION_THRESHOLD);
+	}
+	
+	private File segmentFile(int segmentId) {
+		return new File(this.directory, String.format("segment-%010d.log", segmentId));
+	}
+	
+	private static Request request(int type, int queueId, String message) {
+		
+		Request req = new Request();
+		req.type = type;
+		req.senderId = 1;
+		req.receiverId = -1;
+		req.queueId = queueId;
+		req.message = message;
+		
+		return req;
+	}
+	
+	private static void createQueue(LogMessageStore store, int queueId) {
+		assertEquals(0, store.insertQueueById(request(6, queueId, null)).errorType);
+	}
+	
+	private static int send(LogMessageStore store, int queueId, String message) {
+		
+		Response rsp = store.insertMessage(request(0, queueId, message));
+		
+		assertEquals(0, rsp.errorType);
+		
+		return rsp.messageId;
+	}
+	
+	private static void remove(LogMessageStore store, int messageId) {
+		assertEquals(1, store.deleteMessages(new int[] { messageId }, 1).length);
+	}
+	
+	// Message id -> body of the messages of a queue. Does not remove them
+	private static Map<Integer, String> messages(LogMessageStore store, int queueId) {
+		
+		Map<Integer, String> messages = new TreeMap<Integer, String>();
+		
+		for (int messageId = 0; messageId <= store.getLastMessageId(); ++messageId) {
+			
+			InMemoryMessageStore.Message message = store.getMessage(messageId);
+			
+			if (message != null && message.queue.queueId == queueId) {
+				messages.put(messageId, store.readBody(message));
+			}
+		}
+		
+		return messages;
+	}
+	
+	// Same as a run of the compactor thread
+	private static void compact(LogMessageStore store) throws Exception {
+		
+		Method compact = LogMessageStore.class.getDeclaredMethod("compact");
+		compact.setAccessible(true);
+		compact.invoke(store);
+	}
+	
+	@Test
+	public void testMessagesAreRecovered() throws IOException {
+		
+		LogMessageStore store = open();
+		createQueue(store, QUEUE);
+		
+		int first = send(store, QUEUE, "first");
+		int second = send(store, QUEUE, "second");
+		int third = send(store, QUEUE, null);
+		
+		remove(store, second);
+		
+		Map<Integer, String> expected = new TreeMap<Integer, String>();
+		expected.put(first, "first");
+		expected.put(third, null);
+		
+		store = open();
+		
+		assertEquals(expected, messages(store, QUEUE));
+		
+		// Message ids are not reused
+		assertTrue(send(store, QUEUE, "fourth") > third);
+	}
+	
+	@Test
+	public void testTornRecordIsDropped() throws IOException {
+		
+		LogMessageStore store = open();
+		createQueue(store, QUEUE);
+		
+		int first = send(store, QUEUE, "first");
+		send(store, QUEUE, "second");
+		
+		// Crash while the second record was written: its body does not match the checksum
+		int secondRecord = 9 + 20 + "first".length();
+		
+		RandomAccessFile raf = new RandomAccessFile(segmentFile(0), "rw");
+		
+		try {
+			raf.seek(secondRecord + 9 + 20);
+			raf.write('X');
+		} finally {
+			raf.close();
+		}
+		
+		store = open();
+		
+		Map<Integer, String> expected = new TreeMap<Integer, String>();
+		expected.put(first, "first");
+		
+		assertEquals(expected, messages(store, QUEUE));
+		
+		// The next record replaces the torn one
+		int third = send(store, QUEUE, "third");
+		expected.put(third, "third");
+		
+		store = open();
+		
+		assertEquals(expected, messages(store, QUEUE));
+	}
+	
+	@Test
+	public void testTombstonesSurviveCompaction() throws Exception {
+		
+		LogMessageStore store = open();
+		createQueue(store, QUEUE);
+		
+		Map<Integer, String> expected = new TreeMap<Integer, String>();
+		
+		// Keep every fifth message, the others are removed
+		for (int i = 0; i < 40; ++i) {
+			
+			int messageId = send(store, QUEUE, "message-" + i);
+			
+			if (i % 5 == 0) {
+				expected.put(messageId, "message-" + i);
+			} else {
+				remove(store, messageId);
+			}
+		}
+		
+		int segments = this.directory.list().length;
+		
+		compact(store);
+		
+		// The mostly dead segments are deleted
+		assertTrue(this.directory.list().length < segments);
+		assertEquals(expected, messages(store, QUEUE));
+		
+		store = open();
+		
+		assertEquals(expected, messages(store, QUEUE));
+		
+		// Compact the recovered log once more
+		compact(store);
+		
+		store = open();
+		
+		assertEquals(expected, messages(store, QUEUE));
+	}
+	
+	@Test
+	public void testRecordsCopiedByCompactionAreRecoveredOnce() throws Exception {
+		
+		LogMessageStore store = open();
+		createQueue(store, QUEUE);
+		
+		Map<Integer, String> expected = new TreeMap<Integer, String>();
+		
+		// The first segment keeps one message, the later ones keep all
+		int kept = send(store, QUEUE, "kept");
+		expected.put(kept, "kept");
+		
+		while (!segmentFile(1).exists()) {
+			remove(store, send(store, QUEUE, "removed"));
+		}
+		
+		for (int i = 0; i < 10; ++i) {
+			
+			String message = "live-" + i;
+			expected.put(send(store, QUEUE, message), message);
+		}
+		
+		byte[] firstSegment = Files.readAllBytes(segmentFile(0).toPath());
+		
+		compact(store);
+		
+		assertFalse(segmentFile(0).exists());
+		
+		// Crash after the records were copied, before the segment was deleted
+		Files.write(segmentFile(0).toPath(), firstSegment);
+		
+		store = open();
+		
+		assertEquals(expected, messages(store, QUEUE));
+		
+		// Every message is retrieved once
+		Request req = request(9, QUEUE, null);
+		req.maxMessages = 100;
+		
+		Response rsp = store.retrieveMessagesFromQueueWithDelete(req);
+		
+		assertEquals(expected.size(), rsp.batchMessageIds.length);
+		assertEquals(2, store.retrieveMessagesFromQueueWithDelete(req).errorType);
+		
+		store = open();
+		
+		assertTrue(messages(store, QUEUE).isEmpty());
+	}
+	
+	@Test
+	public void testRemovedCopyStaysRemovedAfterCompaction() throws Exception {
+		
+		LogMessageStore store = open();
+		createQueue(store, QUEUE);
+		
+		int copied = send(store, QUEUE, "copied");
+		
+		while (!segmentFile(1).exists()) {
+			remove(store, send(store, QUEUE, "removed"));
+		}
+		
+		byte[] firstSegment = Files.readAllBytes(segmentFile(0).toPath());
+		
+		// The record is copied into segment 1
+		compact(store);
+		
+		Map<Integer, String> expected = new TreeMap<Integer, String>();
+		
+		// Segment 1 stays mostly live and is not compacted again
+		while (!segmentFile(2).exists()) {
+			
+			String message = "live-" + expected.size();
+			expected.put(send(store, QUEUE, message), message);
+		}
+		
+		// Crash after the records were copied, before the segment was deleted
+		Files.write(segmentFile(0).toPath(), firstSegment);
+		
+		store = open();
+		
+		// The tombstone refers to the segment of the recovered copy
+		remove(store, copied);
+		
+		while (!segmentFile(3).exists()) {
+			remove(store, send(store, QUEUE, "removed"));
+		}
+		
+		// Deletes segment 0 with the old copy and segment 2 with the tombstone
+		compact(store);
+		
+		assertFalse(segmentFile(0).exists());
+		assertTrue(segmentFile(1).exists());
+		assertFalse(segmentFile(2).exists());
+		
+		store = open();
+		
+		assertEquals(expected, messages(store, QUEUE));
+	}
+	
+	@Test
+	public void testDeleteWatermarkHidesMessagesOfDeletedQueue() throws IOException {
+		
+		LogMessageStore store = open();
+		createQueue(store, QUEUE);
+		createQueue(store, QUEUE + 1);
+		
+		send(store, QUEUE, "before delete");
+		int other = send(store, QUEUE + 1, "other queue");
+		
+		byte[] segment = Files.readAllBytes(segmentFile(0).toPath());
+		
+		assertEquals(0, store.deleteQueueById(request(7, QUEUE, null)).errorType);
+		
+		createQueue(store, QUEUE);
+		
+		// Crash before the tombstones of the deleted messages reached the disk, the queue file was written
+		Files.write(segmentFile(0).toPath(), segment);
+		
+		store = open();
+		
+		Map<Integer, String> expected = new TreeMap<Integer, String>();
+		
+		assertEquals(expected, messages(store, QUEUE));
+		
+		expected.put(other, "other queue");
+		
+		assertEquals(expected, messages(store, QUEUE + 1));
+		
+		// Message ids are not reused
+		int after = send(store, QUEUE, "after create");
+		
+		assertTrue(after > other);
+		
+		store = open();
+		
+		expected.clear();
+		expected.put(after, "after create");
+		
+		assertEquals(expected, messages(store, QUEUE));
+	}
+	
+}